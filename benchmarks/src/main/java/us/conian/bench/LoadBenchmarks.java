@@ -0,0 +1,66 @@
+package us.conian.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.*;
+
+import us.conian.SampleSet;
+import us.conian.SampleUtils;
+
+/* Loading a whole directory of Samples CSV files, the way a corpus of captures
+ * is loaded for analysis. The directory is generated once per trial into a
+ * temporary directory, so after the first iteration the files are read from
+ * the page cache.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LoadBenchmarks {
+
+	@Param({ "30" })
+	public int numProcesses;
+
+	@Param({ "100" })
+	public int numSamples;
+
+	@Param({ "28" })
+	public int numCounters;
+
+	@Param({ "20" })
+	public int numCaptures;
+
+	@Param({ "1", "8" })
+	public int parallelism;
+
+	private Path directory;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		directory = Files.createTempDirectory("trackercore-bench");
+		new SyntheticCaptureGenerator(numProcesses, numSamples, numCounters).writeSampleDirectory(directory, numCaptures);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		try (Stream<Path> paths = Files.walk(directory)) {
+			for (Path path : paths.sorted(Comparator.reverseOrder()).toList())
+				Files.delete(path);
+		}
+	}
+
+	@Benchmark
+	public Map<String, List<SampleSet>> loadSampleSets() {
+		return SampleUtils.loadSampleSets(directory.toFile(), parallelism);
+	}
+
+}
@@ -0,0 +1,69 @@
+package us.conian.bench;
+
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import us.conian.CSVSampleParser;
+import us.conian.CounterUtils;
+import us.conian.Sample;
+import us.conian.SampleParseException;
+import us.conian.SampleSet;
+import us.conian.SampleUtils;
+
+/* Parsing of the raw Get-Counter output and of the Samples CSV format.
+ * One operation parses the whole capture (raw) or a single process's CSV file.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParseBenchmarks {
+
+	@Param({ "50" })
+	public int numProcesses;
+
+	@Param({ "100", "1000" })
+	public int numSamples;
+
+	@Param({ "28" })
+	public int numCounters;
+
+	private List<String> rawLines;
+	private String csv;
+	private List<String> csvLines;
+	private CSVSampleParser parser;
+
+	@Setup
+	public void setup() {
+		SyntheticCaptureGenerator generator = new SyntheticCaptureGenerator(numProcesses, numSamples, numCounters);
+		rawLines = generator.rawLines();
+		SampleSet samples = generator.sampleSets().get(0);
+		csv = SampleUtils.toCSVString(samples);
+		csvLines = csv.lines().toList();
+		parser = new CSVSampleParser();
+	}
+
+	@Benchmark
+	public Map<String, List<Sample>> parseRaw() throws SampleParseException {
+		return CounterUtils.parseRaw(rawLines);
+	}
+
+	@Benchmark
+	public SampleSet fromCSVStrings() throws SampleParseException {
+		//the same work SampleUtils#loadSampleSets used to do per file
+		return new SampleSet("chrome", new ArrayList<>(SampleUtils.fromCSVStrings(csvLines)));
+	}
+
+	@Benchmark
+	public SampleSet csvSampleParser() throws SampleParseException {
+		return parser.parse("chrome", CharBuffer.wrap(csv), true, true);
+	}
+
+}
@@ -0,0 +1,67 @@
+package us.conian.bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import us.conian.Sample;
+import us.conian.SampleSet;
+import us.conian.SampleUtils;
+
+/* Building a SampleSet from a single process's Samples, computing its Meta,
+ * and writing it back out as CSV.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SampleSetBenchmarks {
+
+	@Param({ "100", "1000", "10000" })
+	public int numSamples;
+
+	@Param({ "28" })
+	public int numCounters;
+
+	private List<Sample> samples;
+	private SampleSet sampleSet;
+
+	@Setup
+	public void setup() {
+		SyntheticCaptureGenerator generator = new SyntheticCaptureGenerator(1, numSamples, numCounters, 0, 42);
+		samples = generator.samples().get("chrome");
+		sampleSet = new SampleSet("chrome", samples);
+	}
+
+	@Benchmark
+	public SampleSet construct() {
+		return new SampleSet("chrome", samples);
+	}
+
+	//Meta is computed lazily, so every statistic is asked for from a fresh SampleSet
+	@Benchmark
+	public void meta(Blackhole blackhole) {
+		SampleSet.Meta meta = new SampleSet("chrome", samples).meta();
+		blackhole.consume(meta.intervals());
+		blackhole.consume(meta.minInterval());
+		blackhole.consume(meta.maxInterval());
+		blackhole.consume(meta.meanInterval());
+		blackhole.consume(meta.minSample());
+		blackhole.consume(meta.maxSample());
+		blackhole.consume(meta.meanSample());
+		blackhole.consume(meta.isGenuine());
+		blackhole.consume(meta.isComplete());
+		blackhole.consume(meta.maxNumReadings());
+		blackhole.consume(meta.getCovMatrix());
+	}
+
+	@Benchmark
+	public String toCSVString() {
+		return SampleUtils.toCSVString(sampleSet);
+	}
+
+}
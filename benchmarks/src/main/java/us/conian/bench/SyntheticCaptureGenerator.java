@@ -0,0 +1,241 @@
+package us.conian.bench;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.*;
+
+import us.conian.CSVUtils;
+import us.conian.CounterUtils;
+import us.conian.Sample;
+import us.conian.SampleSet;
+import us.conian.SampleUtils;
+
+/* Generates deterministic, realistic looking captures for the benchmarks: the raw
+ * output of the Get-Counter script in CounterUtils, and directories of Samples CSV
+ * files like the ones ProcessTracker saves. The same parameters and seed always
+ * produce the same data.
+ *
+ * Processes are named after a handful of executables, so there are several
+ * instances of each one, which get "#n" counterNames the same way Windows
+ * names them. Some of the processes exit partway through the capture, after
+ * which all of their readings are 0 (i.e. they produce dead samples).
+ */
+public class SyntheticCaptureGenerator {
+
+	//the counters Get-Counter reports for every process, as listed in the README
+	private static final String[] COUNTERS = {
+			"% processor time", "% user time", "% privileged time", "virtual bytes peak",
+			"virtual bytes", "page faults/sec", "working set peak", "working set",
+			"page file bytes peak", "page file bytes", "private bytes", "thread count",
+			"priority base", "elapsed time", "id process", "creating process id",
+			"pool paged bytes", "pool nonpaged bytes", "handle count", "io read operations/sec",
+			"io write operations/sec", "io data operations/sec", "io other operations/sec",
+			"io read bytes/sec", "io write bytes/sec", "io data bytes/sec", "io other bytes/sec",
+			"working set - private"
+	};
+
+	private static final String[] EXECUTABLES = {
+			"chrome", "svchost", "javaw", "explorer", "code", "conhost", "runtimebroker", "discord"
+	};
+
+	private static final String HOST = "desktop-bench";
+
+	private final int numProcesses;
+	private final int numSamples;
+	private final String[] counters;
+	private final double deadFraction;
+	private final long seed;
+
+	private final LocalDateTime start = LocalDateTime.of(2022, 4, 1, 15, 21, 28);
+	private final int sampleInterval = 3;
+
+	public SyntheticCaptureGenerator(int numProcesses, int numSamples, int numCounters, double deadFraction, long seed) {
+		if (numProcesses < 1 || numSamples < 2 || numCounters < 2)
+			throw new IllegalArgumentException("There must be at least 1 process, 2 samples and 2 counters");
+		if (deadFraction < 0 || deadFraction > 1)
+			throw new IllegalArgumentException("The dead fraction must be between 0 and 1");
+		this.numProcesses = numProcesses;
+		this.numSamples = numSamples;
+		this.deadFraction = deadFraction;
+		this.seed = seed;
+		//id process is always included, since SampleSets need it to be genuine
+		this.counters = new String[numCounters];
+		counters[0] = "id process";
+		for (int c = 1, k = 0; c < numCounters; k++) {
+			String name = k < COUNTERS.length ? COUNTERS[k] : "synthetic counter " + k;
+			if (!name.equals("id process"))
+				counters[c++] = name;
+		}
+	}
+
+	public SyntheticCaptureGenerator(int numProcesses, int numSamples, int numCounters) {
+		this(numProcesses, numSamples, numCounters, 0.1, 42);
+	}
+
+	public String[] counterNames() {
+		String[] names = new String[numProcesses];
+		Map<String, Integer> instances = new HashMap<>();
+		for (int p = 0; p < numProcesses; p++) {
+			String executable = EXECUTABLES[p % EXECUTABLES.length];
+			int instance = instances.merge(executable, 1, Integer::sum) - 1;
+			names[p] = instance == 0 ? executable : executable + "#" + instance;
+		}
+		return names;
+	}
+
+	/* Generates every reading, indexed as [process][sample][counter]. Each process
+	 * gets its own Random so the values don't depend on how many processes there are.
+	 */
+	private double[][][] generate() {
+		double[][][] values = new double[numProcesses][numSamples][counters.length];
+		for (int p = 0; p < numProcesses; p++) {
+			Random random = new Random(seed * 31 + p);
+			int pid = 1000 + random.nextInt(60000);
+			int parent = 4 + random.nextInt(1000);
+			//dead processes exit somewhere in the second half of the capture
+			int exitsAt = random.nextDouble() < deadFraction
+					? numSamples / 2 + random.nextInt(Math.max(1, numSamples / 2))
+					: numSamples;
+			double[] levels = new double[counters.length];
+			for (int c = 0; c < counters.length; c++)
+				levels[c] = 1 + random.nextInt(1 << 20);
+			double elapsed = random.nextInt(500000) + random.nextDouble();
+			for (int i = 0; i < Math.min(exitsAt, numSamples); i++) {
+				elapsed += sampleInterval + random.nextInt(1000) / 1e7;
+				for (int c = 0; c < counters.length; c++) {
+					String counter = counters[c];
+					double value;
+					if (counter.equals("id process"))
+						value = pid;
+					else if (counter.equals("creating process id"))
+						value = parent;
+					else if (counter.equals("elapsed time"))
+						value = Math.round(elapsed * 1e7) / 1e7;
+					else if (counter.startsWith("%"))
+						//mostly idle, occasionally busy
+						value = random.nextInt(4) == 0 ? Math.round(random.nextDouble() * 100 * 1e7) / 1e7 : 0;
+					else if (counter.endsWith("/sec"))
+						value = random.nextInt(3) == 0 ? random.nextInt(100000) : 0;
+					else {
+						//sizes and counts mostly stay the same between samples
+						if (random.nextInt(5) == 0)
+							levels[c] = Math.max(0, levels[c] + random.nextInt(8192) - 4096);
+						value = levels[c];
+					}
+					values[p][i][c] = value;
+				}
+			}
+		}
+		return values;
+	}
+
+	private LocalDateTime timestamp(int sample) {
+		return start.plusSeconds((long) sample * sampleInterval);
+	}
+
+	//Writes the capture in the same format as the output of the Get-Counter script
+	public void writeRaw(Writer out) throws IOException {
+		double[][][] values = generate();
+		String[] counterNames = counterNames();
+		out.write("\n");
+		for (int i = 0; i < numSamples; i++) {
+			out.write("\nTimestamp : ");
+			out.write(CounterUtils.TIMESTAMP_FORMAT.format(timestamp(i)));
+			out.write("\n");
+			boolean first = true;
+			for (int p = 0; p < numProcesses; p++) {
+				for (int c = 0; c < counters.length; c++) {
+					out.write(first ? "Readings  : " : "            ");
+					first = false;
+					out.write("\\\\" + HOST + "\\process(" + counterNames[p] + ")\\" + counters[c] + " :\n");
+					out.write("            " + SampleUtils.DOUBLE_FORMAT.format(values[p][i][c]) + "\n\n");
+				}
+			}
+			out.write("End       : End\n\n");
+		}
+	}
+
+	public List<String> rawLines() {
+		StringBuilderWriter writer = new StringBuilderWriter();
+		try {
+			writeRaw(writer);
+		} catch (IOException e) {
+			throw new InternalError(e);
+		}
+		return writer.toString().lines().toList();
+	}
+
+	//The Samples of each process, keyed by counterName
+	public Map<String, List<Sample>> samples() {
+		double[][][] values = generate();
+		String[] counterNames = counterNames();
+		Map<String, List<Sample>> samples = new LinkedHashMap<>();
+		for (int p = 0; p < numProcesses; p++) {
+			List<Sample> processSamples = new ArrayList<>(numSamples);
+			for (int i = 0; i < numSamples; i++) {
+				Sample.Reading[] readings = new Sample.Reading[counters.length];
+				for (int c = 0; c < counters.length; c++)
+					readings[c] = new Sample.Reading(counters[c], values[p][i][c]);
+				processSamples.add(new Sample(timestamp(i), readings));
+			}
+			samples.put(counterNames[p], processSamples);
+		}
+		return samples;
+	}
+
+	public List<SampleSet> sampleSets() {
+		return samples().entrySet()
+				.stream()
+				.map((entry) -> new SampleSet(entry.getKey(), entry.getValue()))
+				.toList();
+	}
+
+	/* Writes the capture as a directory of Samples CSV files (one per counterName),
+	 * split into numCaptures subdirectories the same way repeated runs of
+	 * ProcessTracker would lay them out.
+	 */
+	public void writeSampleDirectory(Path directory, int numCaptures) throws IOException {
+		if (numCaptures < 1)
+			throw new IllegalArgumentException("There must be at least 1 capture");
+		List<SampleSet> sampleSets = sampleSets();
+		for (int capture = 0; capture < numCaptures; capture++) {
+			Path captureDirectory = directory.resolve("capture" + capture);
+			Files.createDirectories(captureDirectory);
+			for (SampleSet samples : sampleSets) {
+				Files.writeString(captureDirectory.resolve(samples.counterName() + CSVUtils.FILE_EXTENSION),
+						SampleUtils.toCSVString(samples));
+			}
+		}
+	}
+
+	private static final class StringBuilderWriter extends Writer {
+
+		private final StringBuilder sb = new StringBuilder();
+
+		@Override
+		public void write(char[] cbuf, int off, int len) {
+			sb.append(cbuf, off, len);
+		}
+
+		@Override
+		public void write(String str) {
+			sb.append(str);
+		}
+
+		@Override
+		public void flush() { }
+
+		@Override
+		public void close() { }
+
+		@Override
+		public String toString() {
+			return sb.toString();
+		}
+
+	}
+
+}
@@ -0,0 +1,296 @@
+package us.conian;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/* A group of SampleSets (typically every process of a capture) aligned onto a
+ * common time grid, as a dense matrix with a row per point of the grid and a
+ * column per SampleSet and counter. The processes of a capture are never sampled
+ * at exactly the same moments, and start and die at different times, so their
+ * SampleSets can't be compared sample by sample; on the grid they can.
+ *
+ * The grid starts at a given time (by default, the earliest timestamp of the
+ * SampleSets rounded down to a multiple of the step, so that grids of different
+ * captures with the same step line up) and has a point every step. The value of
+ * a column at a point of the grid is found using an Interpolation, and is NaN
+ * wherever the SampleSet has nothing to say about it, such as before the process
+ * started or after it died.
+ *
+ * The grid is split into ranges of points that are aligned in parallel, each
+ * one in a single pass over the samples of each SampleSet within it, so every row
+ * of the matrix is only ever written by one thread. Like SampleSet, an
+ * AlignedSamples is immutable.
+ */
+public class AlignedSamples {
+
+	public static enum Interpolation {
+		/* The value of the latest sample taken at or before the point (which is
+		 * NaN if that sample has no reading for the counter)
+		 */
+		PREVIOUS,
+		/* The value at the point on the line between the samples taken right
+		 * before and right after it, or the value of a sample taken exactly at the
+		 * point. NaN if either sample has no reading for the counter.
+		 */
+		LINEAR,
+		/* No interpolation: the value of the first sample taken within the step
+		 * starting at the point, and NaN if no sample was
+		 */
+		NONE
+	}
+
+	//A column of the matrix: one counter of one of the aligned SampleSets
+	public static record Column(String counterName, String counter) {}
+
+	private final long start;
+	private final long step;
+	private final CounterSchema counters;
+	private final List<Column> columns;
+	//indexed as matrix[point][set * counters.size() + counter]
+	private final double[][] matrix;
+
+	private AlignedSamples(long start, long step, CounterSchema counters, List<Column> columns, double[][] matrix) {
+		this.start = start;
+		this.step = step;
+		this.counters = counters;
+		this.columns = columns;
+		this.matrix = matrix;
+	}
+
+	/* Aligns every counter any of the SampleSets has onto a grid covering all of
+	 * them, using the common pool
+	 */
+	public static AlignedSamples align(List<SampleSet> samples, Duration step, Interpolation interpolation) {
+		return align(samples, null, null, null, step, interpolation, ForkJoinPool.commonPool());
+	}
+
+	/* Aligns the given counters (or every counter any of the SampleSets has, if
+	 * counters is null) onto a grid with a point every step from the start (which
+	 * may be null to start at the earliest timestamp, rounded down to a multiple of
+	 * the step) up to, but not including, the end (which may be null to end right
+	 * after the latest timestamp). SampleSets without a counter get a column of
+	 * NaNs for it.
+	 */
+	public static AlignedSamples align(List<SampleSet> samples, Collection<String> counters, LocalDateTime start, LocalDateTime end,
+			Duration step, Interpolation interpolation, ForkJoinPool pool) {
+		if (samples == null || step == null || interpolation == null || pool == null)
+			throw new NullPointerException();
+		if (samples.isEmpty())
+			throw new IllegalArgumentException("There must be at least 1 SampleSet to align");
+		long stepNanos = step.toNanos();
+		if (stepNanos <= 0)
+			throw new IllegalArgumentException("The step must be positive");
+		long first = Long.MAX_VALUE;
+		long last = Long.MIN_VALUE;
+		for (SampleSet s : samples) {
+			SampleColumns c = s.columns();
+			first = Math.min(first, c.timestamp(0));
+			last = Math.max(last, c.timestamp(c.numSamples() - 1));
+		}
+		long startNanos = start == null ? Math.floorDiv(first, stepNanos) * stepNanos : SampleUtils.toEpochNanos(start);
+		long endNanos;
+		int numPoints;
+		try {
+			endNanos = end == null ? Math.addExact(last, 1) : SampleUtils.toEpochNanos(end);
+			//rounded up, so the last point is the last one before the end
+			long span = Math.subtractExact(endNanos, startNanos);
+			numPoints = span <= 0 ? 0 : Math.toIntExact(span / stepNanos + (span % stepNanos == 0 ? 0 : 1));
+		} catch (ArithmeticException e) {
+			throw new IllegalArgumentException("The grid has too many points", e);
+		}
+		if (numPoints == 0)
+			throw new IllegalArgumentException("The grid must have at least 1 point");
+		CounterSchema schema;
+		if (counters != null)
+			schema = CounterSchema.of(counters);
+		else {
+			//the same as SampleSet's union of schemas: the first spelling of a counter wins
+			Map<String, String> names = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+			for (SampleSet s : samples) {
+				for (String name : s.schema())
+					names.putIfAbsent(name, name);
+			}
+			schema = CounterSchema.ofSorted(names.values().toArray(String[]::new));
+		}
+		int numColumns;
+		try {
+			numColumns = Math.multiplyExact(samples.size(), schema.size());
+		} catch (ArithmeticException e) {
+			throw new IllegalArgumentException("The matrix has too many columns", e);
+		}
+		List<Column> columns = new ArrayList<>(numColumns);
+		for (SampleSet s : samples) {
+			for (String counter : schema)
+				columns.add(new Column(s.counterName(), counter));
+		}
+		double[][] matrix = new double[numPoints][numColumns];
+		SampleSet[] sets = samples.toArray(SampleSet[]::new);
+		//each set's counter for each of the counters, or -1 if it doesn't have it
+		int[][] indices = new int[sets.length][schema.size()];
+		for (int s = 0; s < sets.length; s++) {
+			for (int k = 0; k < schema.size(); k++)
+				indices[s][k] = sets[s].schema().indexOf(schema.name(k));
+		}
+		pool.invoke(new AlignTask(sets, indices, matrix, startNanos, stepNanos, interpolation, 0, numPoints));
+		return new AlignedSamples(startNanos, stepNanos, schema, Collections.unmodifiableList(columns), matrix);
+	}
+
+	/* Splits the points of the grid in half until each task has at most THRESHOLD
+	 * cells of the matrix to fill in
+	 */
+	private static final class AlignTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+		private static final int THRESHOLD = 16 * 1024;
+
+		private final SampleSet[] sets;
+		private final int[][] indices;
+		private final double[][] matrix;
+		private final long start;
+		private final long step;
+		private final Interpolation interpolation;
+		private final int from;
+		private final int to;
+
+		private AlignTask(SampleSet[] sets, int[][] indices, double[][] matrix, long start, long step,
+				Interpolation interpolation, int from, int to) {
+			this.sets = sets;
+			this.indices = indices;
+			this.matrix = matrix;
+			this.start = start;
+			this.step = step;
+			this.interpolation = interpolation;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			int numColumns = matrix[from].length;
+			if (to - from == 1 || (long) (to - from) * numColumns <= THRESHOLD) {
+				for (int s = 0; s < sets.length; s++)
+					alignSet(sets[s], s * indices[s].length, indices[s], matrix, from, to, start, step, interpolation);
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new AlignTask(sets, indices, matrix, start, step, interpolation, from, mid),
+					new AlignTask(sets, indices, matrix, start, step, interpolation, mid, to));
+		}
+
+	}
+
+	/* Fills in the set's columns (starting at the given column) of the rows in
+	 * [from, to). The points of the grid and the samples are both in order, so a
+	 * cursor into the samples is found for the first point, and then moved along
+	 * with the points.
+	 */
+	private static void alignSet(SampleSet set, int column, int[] indices, double[][] matrix, int from, int to,
+			long start, long step, Interpolation interpolation) {
+		SampleColumns columns = set.columns();
+		int n = columns.numSamples();
+		long first = columns.timestamp(0);
+		long last = columns.timestamp(n - 1);
+		//for NONE, the first sample at or after the point; otherwise, the first sample after it
+		long firstPoint = start + from * step;
+		int cursor = set.firstAtOrAfter(interpolation == Interpolation.NONE ? firstPoint : firstPoint + 1);
+		for (int p = from; p < to; p++) {
+			double[] row = matrix[p];
+			long point = start + p * step;
+			int sample = -1;
+			int next = -1;
+			if (interpolation == Interpolation.NONE) {
+				while (cursor < n && columns.timestamp(cursor) < point)
+					cursor++;
+				if (cursor < n && columns.timestamp(cursor) - point < step)
+					sample = cursor;
+			}
+			else if (point >= first && point <= last) {
+				while (cursor < n && columns.timestamp(cursor) <= point)
+					cursor++;
+				sample = cursor - 1;
+				//the point is before the last sample (or it would have been taken at the point), so there is a next one
+				if (interpolation == Interpolation.LINEAR && columns.timestamp(sample) != point)
+					next = cursor;
+			}
+			for (int k = 0; k < indices.length; k++) {
+				int c = indices[k];
+				double value;
+				if (c == -1 || sample == -1)
+					value = Double.NaN;
+				else if (next == -1)
+					value = columns.value(c, sample);
+				else {
+					long t0 = columns.timestamp(sample);
+					double v0 = columns.value(c, sample);
+					double v1 = columns.value(c, next);
+					//NaNs carry through, so a missing reading on either side gives NaN
+					value = v0 + (v1 - v0) * ((double) (point - t0) / (columns.timestamp(next) - t0));
+				}
+				row[column + k] = value;
+			}
+		}
+	}
+
+	public int numPoints() {
+		return matrix.length;
+	}
+
+	public int numColumns() {
+		return columns.size();
+	}
+
+	public LocalDateTime start() {
+		return SampleUtils.fromEpochNanos(start);
+	}
+
+	public Duration step() {
+		return Duration.ofNanos(step);
+	}
+
+	//The time of the given point of the grid
+	public LocalDateTime timestamp(int point) throws IndexOutOfBoundsException {
+		return SampleUtils.fromEpochNanos(timestampNanos(point));
+	}
+
+	//The same as timestamp(), in epoch nanos
+	public long timestampNanos(int point) throws IndexOutOfBoundsException {
+		if (point < 0 || point >= matrix.length)
+			throw new IndexOutOfBoundsException(point);
+		return start + point * step;
+	}
+
+	//The counters each SampleSet has a column for
+	public CounterSchema counters() {
+		return counters;
+	}
+
+	//In the order of the matrix's columns
+	public List<Column> columns() {
+		return columns;
+	}
+
+	//The column of the counter of the set-th SampleSet, or -1 if the counter wasn't aligned
+	public int column(int set, String counter) throws IndexOutOfBoundsException {
+		int numSets = counters.size() == 0 ? 0 : columns.size() / counters.size();
+		if (set < 0 || set >= numSets)
+			throw new IndexOutOfBoundsException(set);
+		int index = counters.indexOf(counter);
+		return index == -1 ? -1 : set * counters.size() + index;
+	}
+
+	public double value(int point, int column) throws IndexOutOfBoundsException {
+		return matrix[point][column];
+	}
+
+	//A copy of the matrix, indexed as matrix[point][column]
+	public double[][] matrix() {
+		double[][] copy = new double[matrix.length][];
+		for (int p = 0; p < matrix.length; p++)
+			copy[p] = matrix[p].clone();
+		return copy;
+	}
+
+}
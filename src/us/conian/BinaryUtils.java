@@ -0,0 +1,246 @@
+package us.conian;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/* A compact binary alternative to the CSV format for storing a single SampleSet.
+ * Unlike the CSV format, it is read by memory mapping the file and using the
+ * mapped data directly as the SampleSet's columns, so loading a file costs
+ * little more than reading it from the page cache. Values are stored exactly,
+ * so converting a CSV file to this format and back is lossless.
+ *
+ * Layout (all little-endian):
+ *
+ * int     MAGIC
+ * int     VERSION
+ * string  counterName
+ * int     number of counters
+ * string  each counter name, in CounterSchema order
+ * int     number of samples
+ * (zero padding up to the next multiple of 8 bytes)
+ * long    each timestamp, in epoch nanos (see SampleUtils#toEpochNanos)
+ * double  each value of the first counter, then each value of the second counter, etc.
+ *
+ * Where a string is an int byte length followed by that many bytes of UTF-8.
+ * Missing readings are stored as NaN, the same as in SampleSet.
+ */
+public class BinaryUtils {
+	
+	public static final String FILE_EXTENSION = ".tcol";
+	
+	public static final FileFilter FILE_FILTER = (file) -> file.isFile() && file.getName().endsWith(FILE_EXTENSION);
+	
+	private static final int MAGIC = 0x4C4F4354;//"TCOL"
+	private static final int VERSION = 1;
+	
+	private static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+	
+	public static void write(SampleSet samples, Path file) throws IOException {
+		if (samples == null || file == null)
+			throw new NullPointerException();
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE,
+				StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			write(samples, channel);
+		}
+	}
+	
+	//Writes the SampleSet starting at the channel's current position
+	public static void write(SampleSet samples, FileChannel channel) throws IOException {
+		if (samples == null || channel == null)
+			throw new NullPointerException();
+		ByteBuffer header = header(samples);
+		header.flip();
+		while (header.hasRemaining())
+			channel.write(header);
+		SampleColumns columns = samples.columns();
+		ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024).order(ORDER);
+		for (int i = 0; i < columns.numSamples(); i++) {
+			if (buffer.remaining() < Long.BYTES)
+				drain(buffer, channel);
+			buffer.putLong(columns.timestamp(i));
+		}
+		for (int c = 0; c < columns.numCounters(); c++) {
+			for (int i = 0; i < columns.numSamples(); i++) {
+				if (buffer.remaining() < Double.BYTES)
+					drain(buffer, channel);
+				buffer.putDouble(columns.value(c, i));
+			}
+		}
+		drain(buffer, channel);
+	}
+	
+	private static void drain(ByteBuffer buffer, FileChannel channel) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+	
+	private static ByteBuffer header(SampleSet samples) {
+		CounterSchema schema = samples.schema();
+		byte[] counterName = samples.counterName().getBytes(StandardCharsets.UTF_8);
+		byte[][] counters = new byte[schema.size()][];
+		int length = Integer.BYTES * 5 + counterName.length;
+		for (int c = 0; c < counters.length; c++) {
+			counters[c] = schema.name(c).getBytes(StandardCharsets.UTF_8);
+			length += Integer.BYTES + counters[c].length;
+		}
+		ByteBuffer header = ByteBuffer.allocate(align(length)).order(ORDER);
+		header.putInt(MAGIC)
+		.putInt(VERSION)
+		.putInt(counterName.length)
+		.put(counterName)
+		.putInt(counters.length);
+		for (byte[] counter : counters) {
+			header.putInt(counter.length)
+			.put(counter);
+		}
+		header.putInt(samples.size());
+		header.position(header.capacity());
+		return header;
+	}
+	
+	private static int align(int length) {
+		return (length + Long.BYTES - 1) & -Long.BYTES;
+	}
+	
+	public static SampleSet read(Path file) throws IOException, SampleParseException {
+		return read(file, true, true);
+	}
+	
+	public static SampleSet read(Path file, boolean assertGenuine, boolean assertComplete) throws IOException, SampleParseException {
+		if (file == null)
+			throw new NullPointerException();
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			//the mapping remains valid after the channel is closed
+			return read(map(channel, 0, channel.size()), assertGenuine, assertComplete);
+		}
+	}
+	
+	//A single mapping can't be larger than Integer.MAX_VALUE bytes
+	static ByteBuffer map(FileChannel channel, long position, long size) throws IOException, SampleParseException {
+		if (size > Integer.MAX_VALUE)
+			throw new SampleParseException("The SampleSet is too large to map (" + size + " bytes)");
+		return channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+	}
+	
+	/* Reads a SampleSet from the buffer's current position up to its limit. The
+	 * returned SampleSet is backed by the buffer's contents; they are not copied.
+	 */
+	public static SampleSet read(ByteBuffer buffer, boolean assertGenuine, boolean assertComplete) throws SampleParseException {
+		if (buffer == null)
+			throw new NullPointerException();
+		ByteBuffer data = buffer.slice().order(ORDER);
+		String counterName;
+		CounterSchema schema;
+		SampleColumns columns;
+		try {
+			if (data.getInt() != MAGIC)
+				throw new SampleParseException("Not a SampleSet binary file");
+			int version = data.getInt();
+			if (version != VERSION)
+				throw new SampleParseException("Unsupported SampleSet binary version: " + version);
+			counterName = readString(data);
+			String[] counters = new String[data.getInt()];
+			for (int c = 0; c < counters.length; c++)
+				counters[c] = readString(data);
+			int numSamples = data.getInt();
+			if (numSamples < 0)
+				throw new SampleParseException("Corrupt SampleSet binary header");
+			data.position(align(data.position()));
+			long expected = (long) numSamples * Long.BYTES + (long) counters.length * numSamples * Double.BYTES;
+			if (data.remaining() != expected)
+				throw new SampleParseException("Expected " + expected + " bytes of sample data, found " + data.remaining());
+			schema = CounterSchema.of(counters);
+			for (int c = 0; c < counters.length; c++) {
+				if (!schema.name(c).equals(counters[c]))
+					throw new SampleParseException("The counters are not in CounterSchema order");
+			}
+			ByteBuffer timestamps = data.slice().order(ORDER).limit(numSamples * Long.BYTES);
+			data.position(data.position() + numSamples * Long.BYTES);
+			ByteBuffer values = data.slice().order(ORDER);
+			LongBuffer timestampColumn = timestamps.asLongBuffer();
+			//the columns are used as-is, so the chronological order everything else relies on is checked here
+			for (int i = 1; i < numSamples; i++) {
+				if (timestampColumn.get(i - 1) > timestampColumn.get(i))
+					throw new SampleParseException("The timestamps are not in chronological order");
+			}
+			columns = new SampleColumns.Buffered(counters.length, numSamples, timestampColumn, values.asDoubleBuffer());
+		} catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e) {
+			throw new SampleParseException("Corrupt SampleSet binary file", e);
+		}
+		return new SampleSet(counterName, schema, columns, assertGenuine, assertComplete);
+	}
+	
+	private static String readString(ByteBuffer data) {
+		byte[] bytes = new byte[data.getInt()];
+		data.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	
+	/* Converts every Samples CSV file in the source directory (and its subdirectories)
+	 * into the binary format, mirroring the directory structure in the target directory,
+	 * which must not be the source directory or inside it. Files that fail to convert
+	 * are reported to System.err and skipped.
+	 */
+	public static void convertFromCSV(File source, File target) throws IOException {
+		convert(source, target, CSVUtils.FILE_EXTENSION, FILE_EXTENSION, (file, samples) -> write(samples, file));
+	}
+	
+	//The inverse of convertFromCSV
+	public static void convertToCSV(File source, File target) throws IOException {
+		convert(source, target, FILE_EXTENSION, CSVUtils.FILE_EXTENSION, (file, samples) -> CSVSampleWriter.write(samples, file));
+	}
+	
+	@FunctionalInterface
+	private interface SampleSetWriter {
+		
+		public void write(Path file, SampleSet samples) throws IOException;
+	
+	}
+	
+	private static void convert(File source, File target, String sourceExtension, String targetExtension, SampleSetWriter writer) throws IOException {
+		if (source == null || target == null)
+			throw new NullPointerException();
+		if (!source.isDirectory())
+			throw new IllegalArgumentException("Given File is not a directory: " + source.getAbsolutePath());
+		//otherwise both copies would be found when loading the source directory, and the conversion would descend into its own output
+		if (target.getCanonicalFile().toPath().startsWith(source.getCanonicalFile().toPath()))
+			throw new IllegalArgumentException("The target directory must not be inside the source directory: " + target.getAbsolutePath());
+		convertDirectory(source, target, sourceExtension, targetExtension, writer);
+	}
+	
+	private static void convertDirectory(File source, File target, String sourceExtension, String targetExtension, SampleSetWriter writer) throws IOException {
+		Files.createDirectories(target.toPath());
+		File[] files = source.listFiles((file) -> file.isFile() && file.getName().endsWith(sourceExtension));
+		if (files != null) {
+			for (File f : files) {
+				String counterName = f.getName().substring(0, f.getName().length() - sourceExtension.length());
+				try {
+					//assertions are turned off, so ingenuine or incomplete files are converted as-is
+					SampleSet samples = SampleUtils.loadSampleSet(f, false, false);
+					writer.write(new File(target, counterName + targetExtension).toPath(), samples);
+				} catch(Exception e) {
+					System.err.println("Failed to convert Samples file "
+							+ f.getAbsolutePath() + ": " + e.getLocalizedMessage());
+				}
+			}
+		}
+		File[] subdirectories = source.listFiles(File::isDirectory);
+		if (subdirectories != null) {
+			for (File s : subdirectories)
+				convertDirectory(s, new File(target, s.getName()), sourceExtension, targetExtension, writer);
+		}
+	}
+
+}
@@ -0,0 +1,261 @@
+package us.conian;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/* A sparse index of where the samples of a Samples CSV file start, stored next to
+ * the file (as the file's name + FILE_EXTENSION), so that reading a time range out
+ * of a large file only needs the part of the file the range is in (see
+ * CSVSampleParser#read).
+ *
+ * The index holds the timestamp and byte offset of every INTERVAL-th sample, as well
+ * as the size and last modified time of the file when it was indexed; an index that
+ * doesn't match its file anymore is ignored (and rebuilt by forFile). Ranges can only
+ * be narrowed down for files whose samples are in chronological order, which is the
+ * case for every file written from a SampleSet.
+ *
+ * Layout (all little-endian):
+ *
+ * int     MAGIC
+ * int     VERSION
+ * long    the size of the indexed file
+ * long    the last modified time of the indexed file, in millis
+ * int     1 if the samples are in chronological order, 0 otherwise
+ * int     number of samples in the file
+ * int     number of indexed samples
+ * long    each indexed sample's timestamp (in epoch nanos), then each one's byte offset
+ */
+public class CSVSampleIndex {
+
+	public static final String FILE_EXTENSION = ".tidx";
+
+	//files smaller than this are always read as a whole, so they are never indexed
+	public static final long INDEX_THRESHOLD = 1024 * 1024;
+	//one in every INTERVAL samples is indexed
+	public static final int INTERVAL = 64;
+
+	private static final int MAGIC = 0x58444954;//"TIDX"
+	private static final int VERSION = 1;
+
+	private static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final long size;
+	private final long lastModified;
+	private final boolean sorted;
+	private final int numSamples;
+	private final long[] timestamps;
+	private final long[] offsets;
+
+	private CSVSampleIndex(long size, long lastModified, boolean sorted, int numSamples, long[] timestamps, long[] offsets) {
+		this.size = size;
+		this.lastModified = lastModified;
+		this.sorted = sorted;
+		this.numSamples = numSamples;
+		this.timestamps = timestamps;
+		this.offsets = offsets;
+	}
+
+	public static Path indexFile(Path file) {
+		if (file == null)
+			throw new NullPointerException();
+		return file.resolveSibling(file.getFileName() + FILE_EXTENSION);
+	}
+
+	/* Returns the file's index, building (and saving) it if the file is at least
+	 * INDEX_THRESHOLD bytes and has no up to date index. Returns null for smaller
+	 * files without an index.
+	 */
+	public static CSVSampleIndex forFile(Path file) throws IOException, SampleParseException {
+		CSVSampleIndex index = load(file);
+		if (index != null || Files.size(file) < INDEX_THRESHOLD)
+			return index;
+		index = build(file);
+		try {
+			index.write(indexFile(file));
+		} catch (IOException e) {
+			//the index is only an optimization, so the file can still be read without saving it
+			System.err.println("Failed to save Samples index for " + file.toAbsolutePath() + ": " + e.getLocalizedMessage());
+		}
+		return index;
+	}
+
+	//Returns null if the file has no index, or the index is out of date or unreadable
+	public static CSVSampleIndex load(Path file) throws IOException {
+		Path indexFile = indexFile(file);
+		if (!Files.isRegularFile(indexFile))
+			return null;
+		ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(indexFile)).order(ORDER);
+		try {
+			if (data.getInt() != MAGIC || data.getInt() != VERSION)
+				return null;
+			long size = data.getLong();
+			long lastModified = data.getLong();
+			if (size != Files.size(file) || lastModified != Files.getLastModifiedTime(file).toMillis())
+				return null;
+			boolean sorted = data.getInt() == 1;
+			int numSamples = data.getInt();
+			int count = data.getInt();
+			if (count < 0 || data.remaining() != (long) count * Long.BYTES * 2)
+				return null;
+			long[] timestamps = new long[count];
+			long[] offsets = new long[count];
+			data.asLongBuffer().get(timestamps);
+			data.position(data.position() + count * Long.BYTES);
+			data.asLongBuffer().get(offsets);
+			return new CSVSampleIndex(size, lastModified, sorted, numSamples, timestamps, offsets);
+		} catch (BufferUnderflowException e) {
+			return null;
+		}
+	}
+
+	public void write(Path indexFile) throws IOException {
+		if (indexFile == null)
+			throw new NullPointerException();
+		ByteBuffer data = ByteBuffer.allocate(Integer.BYTES * 5 + Long.BYTES * (2 + timestamps.length * 2)).order(ORDER);
+		data.putInt(MAGIC)
+		.putInt(VERSION)
+		.putLong(size)
+		.putLong(lastModified)
+		.putInt(sorted ? 1 : 0)
+		.putInt(numSamples)
+		.putInt(timestamps.length);
+		for (long t : timestamps)
+			data.putLong(t);
+		for (long o : offsets)
+			data.putLong(o);
+		SampleUtils.atomicWrite(indexFile, data.array());
+	}
+
+	/* Indexes the file by scanning it for timestamp lines, without parsing anything
+	 * else. The Samples CSV format is ASCII apart from counter names, so lines can be
+	 * found in the raw UTF-8 bytes.
+	 */
+	public static CSVSampleIndex build(Path file) throws IOException, SampleParseException {
+		if (file == null)
+			throw new NullPointerException();
+		long size = Files.size(file);
+		long lastModified = Files.getLastModifiedTime(file).toMillis();
+		long[] timestamps = new long[64];
+		long[] offsets = new long[64];
+		int count = 0;
+		int numSamples = 0;
+		boolean sorted = true;
+		long previous = Long.MIN_VALUE;
+		char[] line = new char[SampleUtils.TIMESTAMP_PATTERN.length()];
+		CharBuffer lineChars = CharBuffer.wrap(line);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+			long bufferOffset = 0;
+			//the start of the current line, and how many characters of it have been copied so far
+			long lineStart = 0;
+			int lineLength = 0;
+			boolean tooLong = false;
+			while (true) {
+				buffer.clear();
+				int n = channel.read(buffer);
+				boolean end = n == -1;
+				buffer.flip();
+				for (int i = 0; i <= buffer.limit(); i++) {
+					//the end of the file ends the last line
+					if (i == buffer.limit() && !end)
+						break;
+					byte b = i < buffer.limit() ? buffer.get(i) : (byte) '\n';
+					if (b == '\n' || b == '\r') {
+						if (!tooLong && lineLength == line.length && SampleUtils.isTimestamp(lineChars, 0, line.length)) {
+							long timestamp = Math.multiplyExact(SampleUtils.parseEpochSecond(lineChars, 0, line.length), SampleUtils.NANOS_PER_SECOND);
+							if (timestamp < previous)
+								sorted = false;
+							previous = timestamp;
+							if (numSamples % INTERVAL == 0) {
+								if (count == timestamps.length) {
+									timestamps = Arrays.copyOf(timestamps, count * 2);
+									offsets = Arrays.copyOf(offsets, count * 2);
+								}
+								timestamps[count] = timestamp;
+								offsets[count] = lineStart;
+								count++;
+							}
+							numSamples++;
+						}
+						lineStart = bufferOffset + i + 1;
+						lineLength = 0;
+						tooLong = false;
+					}
+					//leading whitespace is skipped, the same as the parser strips lines
+					else if (lineLength == 0 && Character.isWhitespace((char) b))
+						lineStart = bufferOffset + i + 1;
+					else if (lineLength < line.length)
+						line[lineLength++] = (char) b;
+					//trailing whitespace doesn't make a line too long
+					else if (!Character.isWhitespace((char) b))
+						tooLong = true;
+				}
+				if (end)
+					break;
+				bufferOffset += buffer.limit();
+			}
+		} catch (ArithmeticException e) {
+			throw new SampleParseException("Sample timestamp is out of range", e);
+		}
+		return new CSVSampleIndex(size, lastModified, sorted, numSamples,
+				Arrays.copyOf(timestamps, count), Arrays.copyOf(offsets, count));
+	}
+
+	public boolean isSorted() {
+		return sorted;
+	}
+
+	public int numSamples() {
+		return numSamples;
+	}
+
+	public long fileSize() {
+		return size;
+	}
+
+	/* The offset to start reading from to get every sample taken at or after the
+	 * timestamp (in epoch nanos). Always 0 if the samples aren't sorted.
+	 */
+	public long startOffset(long from) {
+		if (!sorted)
+			return 0;
+		//the last indexed sample before the timestamp; the samples after it may still be in range
+		int i = Arrays.binarySearch(timestamps, from);
+		if (i < 0)
+			i = -i - 2;
+		else {
+			//several samples may share the timestamp, so step back to the first of them
+			while (i > 0 && timestamps[i - 1] == from)
+				i--;
+			i--;
+		}
+		return i < 0 ? 0 : offsets[i];
+	}
+
+	/* The offset to stop reading at, having read every sample taken before the
+	 * timestamp (in epoch nanos). Always the file's size if the samples aren't sorted.
+	 */
+	public long endOffset(long to) {
+		if (!sorted)
+			return size;
+		//the first indexed sample at or after the timestamp, which can't be in range
+		int i = Arrays.binarySearch(timestamps, to);
+		if (i < 0)
+			i = -i - 1;
+		else {
+			while (i > 0 && timestamps[i - 1] == to)
+				i--;
+		}
+		return i >= timestamps.length ? size : offsets[i];
+	}
+
+}
@@ -0,0 +1,436 @@
+package us.conian;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.*;
+
+/* A hand-written parser for the Samples CSV format (see SampleUtils#toCSVString),
+ * which builds a SampleSet's columns directly instead of going through
+ * SampleUtils#fromCSVStrings. Lines are scanned in place, counter names are
+ * matched against the names already seen without creating Strings, and
+ * values are parsed straight from the characters into a reusable row buffer,
+ * so the only allocations made per sample are for its timestamp.
+ *
+ * Parsing can be narrowed down to a subset of the counters and a range of time
+ * (see read), in which case readings of other counters and samples outside of the
+ * range are skipped without parsing their values.
+ *
+ * A parser keeps its buffers between calls to parse, but is not thread-safe.
+ */
+public class CSVSampleParser {
+	
+	private static final double[] POWERS_OF_TEN = {
+			1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+			1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+	
+	//the largest mantissa that can be represented exactly by a double
+	private static final long MAX_EXACT_MANTISSA = 1L << 53;
+	
+	private char[] chars;
+	private int limit;
+	
+	//the names of every counter found so far, in the order they were found,
+	//as well as a hash table for finding a counter from its characters
+	private String[] names = new String[32];
+	private int[] nameHashes = new int[32];
+	private int numNames = 0;
+	private int[] table = new int[64];
+	
+	//the values of each counter found so far, indexed the same as names
+	private double[][] columns = new double[32][];
+	private long[] timestamps = new long[64];
+	private int numSamples = 0;
+	
+	//the readings of the sample currently being parsed
+	private double[] row = new double[32];
+	private boolean[] present = new boolean[32];
+	private int rowReadings = 0;
+	
+	//the counters to keep (in lower case, or null for all of them) and the range of
+	//timestamps to keep, in epoch nanos; counters that aren't kept are still found so
+	//that their readings are recognised, but get no column
+	private Set<String> projection = null;
+	private long from = Long.MIN_VALUE;
+	private long to = Long.MAX_VALUE;
+	private boolean[] skipped = new boolean[32];
+	private boolean skippingSample = false;
+	
+	public static SampleSet parse(File file) throws IOException, SampleParseException {
+		return parse(file, true, true);
+	}
+	
+	public static SampleSet parse(File file, boolean assertGenuine, boolean assertComplete) throws IOException, SampleParseException {
+		if (file == null)
+			throw new NullPointerException();
+		String counterName = file.getName().replace(CSVUtils.FILE_EXTENSION, "");
+		/* Decoded as UTF-8, the same as CSVSampleWriter encodes them, so that names
+		 * survive a round trip on any platform. Older versions read these files with
+		 * FileReader (the platform's default charset), which decodes the same bytes
+		 * for the ASCII names Get-Counter produces in practice.
+		 */
+		CharBuffer csv = StandardCharsets.UTF_8.decode(ByteBuffer.wrap(Files.readAllBytes(file.toPath())));
+		return new CSVSampleParser().parse(counterName, csv, assertGenuine, assertComplete);
+	}
+	
+	/* Reads only the given counters (or all of them if counters is null) of the samples
+	 * taken in [from, to) (either of which may be null to leave that end open). Large
+	 * files are indexed (see CSVSampleIndex) so that only the part of the file holding
+	 * the range is read. Note that this writes to the data directory: the first time a
+	 * file of at least CSVSampleIndex#INDEX_THRESHOLD bytes (1 MiB) is read with a
+	 * range, its index is saved next to it, as the file's name + ".tidx".
+	 *
+	 * Returns null if fewer than 2 samples were taken in the range. The SampleSet can
+	 * only be genuine if the counters include "id process" (see SampleUtils#META_READINGS).
+	 */
+	public static SampleSet read(File file, Collection<String> counters, LocalDateTime from, LocalDateTime to,
+			boolean assertGenuine, boolean assertComplete) throws IOException, SampleParseException {
+		if (file == null)
+			throw new NullPointerException();
+		String counterName = file.getName().replace(CSVUtils.FILE_EXTENSION, "");
+		long fromNanos = from == null ? Long.MIN_VALUE : SampleUtils.toEpochNanos(from);
+		long toNanos = to == null ? Long.MAX_VALUE : SampleUtils.toEpochNanos(to);
+		long start = 0;
+		long end = Files.size(file.toPath());
+		if (from != null || to != null) {
+			CSVSampleIndex index = CSVSampleIndex.forFile(file.toPath());
+			if (index != null) {
+				start = index.startOffset(fromNanos);
+				end = index.endOffset(toNanos);
+			}
+		}
+		if (end - start > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("The range is too large to read at once: " + file.getAbsolutePath());
+		ByteBuffer bytes = ByteBuffer.allocate((int) Math.max(end - start, 0));
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			while (bytes.hasRemaining()) {
+				if (channel.read(bytes, start + bytes.position()) == -1)
+					break;
+			}
+		}
+		//the index only points at the start of lines, so the range decodes the same as the whole file would
+		CharBuffer csv = StandardCharsets.UTF_8.decode(bytes.flip());
+		return new CSVSampleParser().parse(counterName, csv, counters, from, to, assertGenuine, assertComplete);
+	}
+	
+	public SampleSet parse(String counterName, CharBuffer csv, boolean assertGenuine, boolean assertComplete) throws SampleParseException {
+		if (counterName == null || csv == null)
+			throw new NullPointerException();
+		return parse(counterName, csv, assertGenuine, assertComplete, false);
+	}
+	
+	//The same as read, for CSV already in memory
+	public SampleSet parse(String counterName, CharBuffer csv, Collection<String> counters, LocalDateTime from, LocalDateTime to,
+			boolean assertGenuine, boolean assertComplete) throws SampleParseException {
+		if (counterName == null || csv == null)
+			throw new NullPointerException();
+		if (from != null && to != null && from.isAfter(to))
+			throw new IllegalArgumentException("The range must not end before it starts");
+		if (counters != null) {
+			projection = new HashSet<>();
+			for (String counter : counters)
+				projection.add(counter.toLowerCase(Locale.ROOT));
+		}
+		this.from = from == null ? Long.MIN_VALUE : SampleUtils.toEpochNanos(from);
+		this.to = to == null ? Long.MAX_VALUE : SampleUtils.toEpochNanos(to);
+		return parse(counterName, csv, assertGenuine, assertComplete, true);
+	}
+	
+	private SampleSet parse(String counterName, CharBuffer csv, boolean assertGenuine, boolean assertComplete, boolean allowEmpty) throws SampleParseException {
+		try {
+			if (csv.hasArray()) {
+				chars = csv.array();
+				scan(csv.arrayOffset() + csv.position(), csv.arrayOffset() + csv.limit());
+			}
+			else {
+				char[] copy = new char[csv.remaining()];
+				csv.duplicate().get(copy);
+				chars = copy;
+				scan(0, copy.length);
+			}
+			if (allowEmpty && numSamples < 2)
+				return null;
+			return build(counterName, assertGenuine, assertComplete);
+		} finally {
+			reset();
+		}
+	}
+	
+	private void reset() {
+		chars = null;
+		Arrays.fill(names, 0, numNames, null);
+		Arrays.fill(columns, 0, numNames, null);
+		Arrays.fill(table, 0);
+		numNames = 0;
+		numSamples = 0;
+		rowReadings = 0;
+		projection = null;
+		from = Long.MIN_VALUE;
+		to = Long.MAX_VALUE;
+		skippingSample = false;
+	}
+	
+	private void scan(int start, int end) throws SampleParseException {
+		limit = end;
+		boolean inSample = false;
+		int lineStart = start;
+		while (lineStart < limit) {
+			int lineEnd = lineStart;
+			while (lineEnd < limit && chars[lineEnd] != '\n' && chars[lineEnd] != '\r')
+				lineEnd++;
+			int next = lineEnd;
+			if (next < limit && chars[next] == '\r')
+				next++;
+			if (next < limit && chars[next] == '\n')
+				next++;
+			//strip the line, the same as the regex matching used to
+			int from = lineStart;
+			int to = lineEnd;
+			while (from < to && Character.isWhitespace(chars[from]))
+				from++;
+			while (to > from && Character.isWhitespace(chars[to - 1]))
+				to--;
+			lineStart = next;
+			if (from == to)
+				continue;
+			int separator = lastSeparator(from, to);
+			//only reading lines contain the separator
+			if (separator == -1 || !inSample) {
+				if (inSample)
+					endSample();
+				startSample(from, to);
+				inSample = true;
+			}
+			else readReading(from, separator, separator + CSVUtils.SEPARATOR.length(), to);
+		}
+		if (inSample)
+			endSample();
+	}
+	
+	//The key is everything up to the last separator, the same as ENTRY_CSV_PATTERN
+	private int lastSeparator(int from, int to) {
+		for (int i = to - 2; i > from; i--) {
+			if (chars[i] == ',' && chars[i + 1] == ' ')
+				return i;
+		}
+		return -1;
+	}
+	
+	private void startSample(int from, int to) throws SampleParseException {
+		long epochSecond = SampleUtils.parseEpochSecond(CharBuffer.wrap(chars), from, to);
+		long timestamp;
+		try {
+			timestamp = Math.multiplyExact(epochSecond, SampleUtils.NANOS_PER_SECOND);
+		} catch (ArithmeticException e) {
+			throw new SampleParseException("Sample timestamp is out of range: " + CharBuffer.wrap(chars, from, to - from));
+		}
+		rowReadings = 0;
+		skippingSample = timestamp < this.from || timestamp >= this.to;
+		if (skippingSample)
+			return;
+		if (numSamples == timestamps.length)
+			timestamps = Arrays.copyOf(timestamps, numSamples * 2);
+		timestamps[numSamples] = timestamp;
+		Arrays.fill(present, 0, numNames, false);
+	}
+	
+	private void readReading(int nameFrom, int nameTo, int valueFrom, int valueTo) throws SampleParseException {
+		//readings of skipped samples and counters count towards the sample, but are never parsed
+		rowReadings++;
+		if (skippingSample)
+			return;
+		int counter = counterIndex(nameFrom, nameTo);
+		if (skipped[counter])
+			return;
+		//a repeated reading replaces the earlier one, the same as in SampleUtils#fromCSVStrings
+		row[counter] = parseValue(valueFrom, valueTo);
+		present[counter] = true;
+	}
+	
+	private void endSample() throws SampleParseException {
+		//must have at least 1 reading entry following the timestamp
+		if (rowReadings == 0)
+			throw new SampleParseException("Not enough lines for a full sample");
+		if (skippingSample)
+			return;
+		for (int c = 0; c < numNames; c++) {
+			double[] column = columns[c];
+			if (column == null)
+				continue;
+			if (numSamples >= column.length) {
+				int length = column.length;
+				column = columns[c] = Arrays.copyOf(column, Math.max(numSamples + 1, length * 2));
+				Arrays.fill(column, length, column.length, Double.NaN);
+			}
+			if (present[c])
+				column[numSamples] = row[c];
+		}
+		numSamples++;
+	}
+	
+	private int counterIndex(int from, int to) {
+		int hash = 0;
+		for (int i = from; i < to; i++)
+			hash = 31 * hash + chars[i];
+		int mask = table.length - 1;
+		for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+			int entry = table[slot];
+			if (entry == 0)
+				break;
+			int counter = entry - 1;
+			if (nameHashes[counter] == hash && matches(names[counter], from, to))
+				return counter;
+		}
+		return addCounter(new String(chars, from, to - from), hash);
+	}
+	
+	private boolean matches(String name, int from, int to) {
+		if (name.length() != to - from)
+			return false;
+		for (int i = 0; i < name.length(); i++) {
+			if (name.charAt(i) != chars[from + i])
+				return false;
+		}
+		return true;
+	}
+	
+	private int addCounter(String name, int hash) {
+		if (numNames == names.length) {
+			int length = names.length * 2;
+			names = Arrays.copyOf(names, length);
+			nameHashes = Arrays.copyOf(nameHashes, length);
+			columns = Arrays.copyOf(columns, length);
+			row = Arrays.copyOf(row, length);
+			present = Arrays.copyOf(present, length);
+			skipped = Arrays.copyOf(skipped, length);
+		}
+		int counter = numNames++;
+		names[counter] = name;
+		nameHashes[counter] = hash;
+		present[counter] = false;
+		skipped[counter] = projection != null && !projection.contains(name.toLowerCase(Locale.ROOT));
+		if (numNames * 2 > table.length)
+			rehash(table.length * 2);
+		else insert(counter);
+		if (skipped[counter])
+			return counter;
+		//samples parsed before this counter was found don't have a reading for it
+		double[] column = new double[Math.max(timestamps.length, numSamples + 1)];
+		Arrays.fill(column, Double.NaN);
+		columns[counter] = column;
+		return counter;
+	}
+	
+	private void rehash(int length) {
+		table = new int[length];
+		for (int c = 0; c < numNames; c++)
+			insert(c);
+	}
+	
+	private void insert(int counter) {
+		int mask = table.length - 1;
+		int slot = nameHashes[counter] & mask;
+		while (table[slot] != 0)
+			slot = (slot + 1) & mask;
+		table[slot] = counter + 1;
+	}
+	
+	/* Parses the plain decimal values written by SampleUtils without creating a
+	 * String. Values with at most 15 significant digits (which is nearly all of
+	 * them) are computed exactly with a single correctly rounded division; anything
+	 * else falls back to Double.parseDouble.
+	 */
+	private double parseValue(int from, int to) throws SampleParseException {
+		long mantissa = 0;
+		int digits = 0;
+		int fractionDigits = -1;
+		for (int i = from; i < to; i++) {
+			char ch = chars[i];
+			if (ch >= '0' && ch <= '9') {
+				//leading zeros don't count towards the significant digits
+				if (mantissa != 0 || ch != '0')
+					digits++;
+				mantissa = mantissa * 10 + (ch - '0');
+				if (fractionDigits != -1)
+					fractionDigits++;
+			}
+			else if (ch == '.' && fractionDigits == -1)
+				fractionDigits = 0;
+			else return parseSlow(from, to);
+			if (digits > 15)
+				return parseSlow(from, to);
+		}
+		if (fractionDigits == -1)
+			fractionDigits = 0;
+		//a lone "." is not a number
+		if (to - from == 1 && fractionDigits == 0 && chars[from] == '.')
+			return parseSlow(from, to);
+		if (mantissa < MAX_EXACT_MANTISSA && fractionDigits < POWERS_OF_TEN.length)
+			return fractionDigits == 0 ? mantissa : mantissa / POWERS_OF_TEN[fractionDigits];
+		return parseSlow(from, to);
+	}
+	
+	private double parseSlow(int from, int to) throws SampleParseException {
+		String valueLine = new String(chars, from, to - from);
+		double value;
+		try {
+			value = Double.parseDouble(valueLine);
+		} catch(NumberFormatException unused) {
+			throw new SampleParseException("Unexpected value input: \"" + valueLine + "\"");
+		}
+		if (value < 0)
+			throw new IllegalArgumentException("The value must be positive");
+		if (Double.isNaN(value))
+			throw new IllegalArgumentException("NaN readings are not supported");
+		return value;
+	}
+	
+	private SampleSet build(String counterName, boolean assertGenuine, boolean assertComplete) throws SampleParseException {
+		List<String> kept = new ArrayList<>(numNames);
+		for (int c = 0; c < numNames; c++) {
+			if (!skipped[c])
+				kept.add(names[c]);
+		}
+		CounterSchema schema;
+		try {
+			schema = CounterSchema.of(kept);
+		} catch (IllegalArgumentException e) {
+			throw new SampleParseException("Duplicate readings found", e);
+		}
+		//the samples may not have been written chronologically, in which case they need sorting
+		Integer[] order = null;
+		for (int i = 1; i < numSamples; i++) {
+			if (timestamps[i - 1] > timestamps[i]) {
+				order = new Integer[numSamples];
+				for (int j = 0; j < numSamples; j++)
+					order[j] = j;
+				Arrays.sort(order, (i1, i2) -> Long.compare(timestamps[i1], timestamps[i2]));
+				break;
+			}
+		}
+		long[] sortedTimestamps = new long[numSamples];
+		for (int i = 0; i < numSamples; i++)
+			sortedTimestamps[i] = timestamps[order == null ? i : order[i]];
+		double[][] values = new double[schema.size()][];
+		for (int c = 0; c < numNames; c++) {
+			double[] column = columns[c];
+			if (column == null)
+				continue;
+			double[] sorted = new double[numSamples];
+			for (int i = 0; i < numSamples; i++)
+				sorted[i] = column[order == null ? i : order[i]];
+			values[schema.indexOf(names[c])] = sorted;
+		}
+		if (numSamples < 2)
+			throw new IllegalArgumentException("A valid SampleSet must contain at least 2 Samples");
+		return new SampleSet(counterName, schema, new SampleColumns.Heap(sortedTimestamps, values), assertGenuine, assertComplete);
+	}
+
+}
@@ -0,0 +1,175 @@
+package us.conian;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+
+/* Writes SampleSets in the Samples CSV format, producing exactly the same text as
+ * SampleUtils#toCSVString, but without building the whole file in memory first.
+ * Samples are read straight from the SampleSet's columns (so no Sample or Reading
+ * objects are created), timestamps and values are formatted by hand (see
+ * SampleUtils#appendTimestamp and SampleUtils#appendValue) into a buffer, and the
+ * buffer is handed to the Writer or FileChannel every time it fills up.
+ *
+ * Every thread gets its own buffers, so the static methods can be called from
+ * any number of threads at once. Files are written as UTF-8, the same as
+ * Files#writeString.
+ */
+public class CSVSampleWriter {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final ThreadLocal<CSVSampleWriter> WRITERS = ThreadLocal.withInitial(CSVSampleWriter::new);
+
+	private final StringBuilder text = new StringBuilder(BUFFER_SIZE + 1024);
+	private char[] chars = new char[BUFFER_SIZE + 1024];
+	private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+	private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+
+	//whether this thread's writer is in the middle of a write, in which case another one is used
+	private boolean writing = false;
+
+	private CSVSampleWriter() {
+
+	}
+
+	@FunctionalInterface
+	private interface Sink {
+
+		public void write(char[] chars, int length) throws IOException;
+
+	}
+
+	//Writes the SampleSet to the Writer, which is neither flushed nor closed
+	public static void write(SampleSet samples, Writer out) throws IOException {
+		if (samples == null || out == null)
+			throw new NullPointerException();
+		writer().write(samples, (chars, length) -> out.write(chars, 0, length));
+	}
+
+	//Writes the SampleSet at the channel's current position
+	public static void write(SampleSet samples, FileChannel channel) throws IOException {
+		if (samples == null || channel == null)
+			throw new NullPointerException();
+		CSVSampleWriter writer = writer();
+		writer.write(samples, (chars, length) -> writer.encode(chars, length, channel));
+	}
+
+	//Creates (or replaces) the file
+	public static void write(SampleSet samples, Path file) throws IOException {
+		if (samples == null || file == null)
+			throw new NullPointerException();
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			write(samples, channel);
+		}
+	}
+
+	public static int writeAll(Collection<SampleSet> samples, File directory) throws IOException {
+		return writeAll(samples, directory, Runtime.getRuntime().availableProcessors());
+	}
+
+	/* Writes every SampleSet to its own file in the directory (which is created if
+	 * needed), named after its counterName, writing up to parallelism files at once.
+	 * Files that fail to be written are reported to System.err and skipped. Returns
+	 * the number of files written.
+	 */
+	public static int writeAll(Collection<SampleSet> samples, File directory, int parallelism) throws IOException {
+		if (samples == null || directory == null)
+			throw new NullPointerException();
+		if (parallelism < 1)
+			throw new IllegalArgumentException("The parallelism must be a positive value");
+		Files.createDirectories(directory.toPath());
+		List<Callable<Boolean>> tasks = samples.stream()
+				.<Callable<Boolean>>map((s) -> () -> {
+					File file = new File(directory, s.counterName() + CSVUtils.FILE_EXTENSION);
+					try {
+						write(s, file.toPath());
+						return true;
+					} catch(Exception e) {
+						System.err.println("Failed to write Samples file "
+								+ file.getAbsolutePath() + ": " + e.getLocalizedMessage());
+						return false;
+					}
+				})
+				.toList();
+		int written = 0;
+		for (boolean w : SampleUtils.invokeAllInOrder(tasks, parallelism, "writing Samples files")) {
+			if (w)
+				written++;
+		}
+		return written;
+	}
+
+	private static CSVSampleWriter writer() {
+		CSVSampleWriter writer = WRITERS.get();
+		//a Writer that writes another SampleSet from within its own write gets a fresh writer
+		return writer.writing ? new CSVSampleWriter() : writer;
+	}
+
+	private void write(SampleSet samples, Sink sink) throws IOException {
+		writing = true;
+		try {
+			SampleColumns columns = samples.columns();
+			CounterSchema schema = samples.schema();
+			for (int i = 0; i < columns.numSamples(); i++) {
+				long epochSecond = Math.floorDiv(columns.timestamp(i), SampleUtils.NANOS_PER_SECOND);
+				SampleUtils.appendTimestamp(text, epochSecond).append('\n');
+				//the same readings, in the same order, as the Sample the SampleSet would give
+				for (int c = 0; c < columns.numCounters(); c++) {
+					double value = columns.value(c, i);
+					if (!Double.isNaN(value))
+						SampleUtils.appendValue(text.append(schema.name(c)).append(CSVUtils.SEPARATOR), value).append('\n');
+				}
+				text.append('\n');
+				if (text.length() >= BUFFER_SIZE)
+					flush(sink);
+			}
+			flush(sink);
+		} finally {
+			text.setLength(0);
+			encoder.reset();
+			bytes.clear();
+			writing = false;
+		}
+	}
+
+	private void flush(Sink sink) throws IOException {
+		int length = text.length();
+		if (length == 0)
+			return;
+		if (chars.length < length)
+			chars = new char[length];
+		text.getChars(0, length, chars, 0);
+		text.setLength(0);
+		sink.write(chars, length);
+	}
+
+	private void encode(char[] chars, int length, FileChannel channel) throws IOException {
+		CharBuffer in = CharBuffer.wrap(chars, 0, length);
+		CoderResult result;
+		do {
+			//each chunk is a run of whole lines, so a character is never split between chunks
+			result = encoder.encode(in, bytes, true);
+			if (result.isError())
+				result.throwException();
+			bytes.flip();
+			while (bytes.hasRemaining())
+				channel.write(bytes);
+			bytes.clear();
+		} while (result.isOverflow());
+		encoder.reset();
+	}
+
+}
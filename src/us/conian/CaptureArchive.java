@@ -0,0 +1,380 @@
+package us.conian;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.*;
+
+/* Stores every SampleSet of a capture in a single file, rather than a directory
+ * with a file per process (see CLIUtils#createSampleDirectory), which for big
+ * captures means tens of thousands of tiny files.
+ *
+ * Each SampleSet is stored in the binary format (see BinaryUtils), one after
+ * the other, followed by an index of where each one is and what it holds. A
+ * single SampleSet is read by mapping only its own part of the file, and the
+ * whole capture can be read front to back.
+ *
+ * Layout (all little-endian, strings are the same as in BinaryUtils):
+ *
+ * int     MAGIC
+ * int     VERSION
+ * bytes   each SampleSet, in the binary format (all of which are a multiple of 8 bytes long)
+ * (the index) for each SampleSet:
+ *   string  counterName
+ *   string  processName
+ *   long    the offset of the SampleSet from the start of the file
+ *   long    the length of the SampleSet in bytes
+ *   int     number of samples
+ *   long    the first timestamp, in epoch nanos
+ *   long    the last timestamp, in epoch nanos
+ * long    the offset of the index
+ * int     number of SampleSets
+ * int     MAGIC
+ *
+ * An archive is opened once and then read from as needed. It is safe to read
+ * from many threads at once.
+ */
+public class CaptureArchive implements Closeable {
+
+	public static final String FILE_EXTENSION = ".tarc";
+
+	public static final FileFilter FILE_FILTER = (file) -> file.isFile() && file.getName().endsWith(FILE_EXTENSION);
+
+	private static final int MAGIC = 0x43524154;//"TARC"
+	private static final int VERSION = 1;
+
+	private static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+	private static final int HEADER_SIZE = Integer.BYTES * 2;
+	private static final int TRAILER_SIZE = Long.BYTES + Integer.BYTES * 2;
+
+	/* Where a SampleSet is in the archive, and a summary of it that can be
+	 * checked without reading it. Timestamps are in epoch nanos
+	 * (see SampleUtils#toEpochNanos).
+	 */
+	public static record Entry(String counterName, String processName, long offset, long length,
+			int numSamples, long firstTimestamp, long lastTimestamp) {
+
+		public LocalDateTime start() {
+			return SampleUtils.fromEpochNanos(firstTimestamp);
+		}
+
+		public LocalDateTime end() {
+			return SampleUtils.fromEpochNanos(lastTimestamp);
+		}
+
+	}
+
+	private final Path file;
+	private final FileChannel channel;
+	//in the order they are stored in the file
+	private final List<Entry> entries;
+	private final Map<String, Entry> byCounterName = new HashMap<>();
+
+	private CaptureArchive(Path file, FileChannel channel, List<Entry> entries) {
+		this.file = file;
+		this.channel = channel;
+		this.entries = entries;
+		for (Entry e : entries)
+			byCounterName.put(e.counterName(), e);
+	}
+
+	//Only the index is read when opening
+	public static CaptureArchive open(Path file) throws IOException, SampleParseException {
+		if (file == null)
+			throw new NullPointerException();
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			return new CaptureArchive(file, channel, readIndex(channel));
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	private static List<Entry> readIndex(FileChannel channel) throws IOException, SampleParseException {
+		long size = channel.size();
+		if (size < HEADER_SIZE + TRAILER_SIZE)
+			throw new SampleParseException("Not a capture archive");
+		ByteBuffer header = read(channel, 0, HEADER_SIZE);
+		ByteBuffer trailer = read(channel, size - TRAILER_SIZE, TRAILER_SIZE);
+		if (header.getInt() != MAGIC)
+			throw new SampleParseException("Not a capture archive");
+		int version = header.getInt();
+		if (version != VERSION)
+			throw new SampleParseException("Unsupported capture archive version: " + version);
+		long indexOffset = trailer.getLong();
+		int numEntries = trailer.getInt();
+		if (trailer.getInt() != MAGIC)
+			throw new SampleParseException("Missing capture archive index (was the archive fully written?)");
+		long indexLength = size - TRAILER_SIZE - indexOffset;
+		if (indexOffset < HEADER_SIZE || indexLength < 0 || indexLength > Integer.MAX_VALUE || numEntries < 0)
+			throw new SampleParseException("Corrupt capture archive index");
+		ByteBuffer index = read(channel, indexOffset, (int) indexLength);
+		List<Entry> entries = new ArrayList<>(numEntries);
+		try {
+			for (int i = 0; i < numEntries; i++) {
+				Entry e = new Entry(readString(index), readString(index), index.getLong(), index.getLong(),
+						index.getInt(), index.getLong(), index.getLong());
+				if (e.offset() < HEADER_SIZE || e.length() < 0 || e.offset() + e.length() > indexOffset)
+					throw new SampleParseException("Corrupt capture archive index");
+				entries.add(e);
+			}
+		} catch (BufferUnderflowException | NegativeArraySizeException e) {
+			throw new SampleParseException("Corrupt capture archive index", e);
+		}
+		return List.copyOf(entries);
+	}
+
+	private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length).order(ORDER);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) == -1)
+				throw new SampleParseException("Truncated capture archive");
+		}
+		return buffer.flip();
+	}
+
+	private static String readString(ByteBuffer data) {
+		byte[] bytes = new byte[data.getInt()];
+		data.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	public Path file() {
+		return file;
+	}
+
+	//In the order the SampleSets are stored
+	public List<Entry> entries() {
+		return entries;
+	}
+
+	//null if the archive has no SampleSet for the counterName
+	public Entry entry(String counterName) {
+		if (counterName == null)
+			throw new NullPointerException();
+		return byCounterName.get(counterName);
+	}
+
+	public List<Entry> entries(String processName) {
+		if (processName == null)
+			throw new NullPointerException();
+		return entries.stream()
+				.filter((e) -> e.processName().equals(processName))
+				.toList();
+	}
+
+	//null if the archive has no SampleSet for the counterName
+	public SampleSet read(String counterName, boolean assertGenuine, boolean assertComplete) throws IOException, SampleParseException {
+		Entry e = entry(counterName);
+		return e == null ? null : read(e, assertGenuine, assertComplete);
+	}
+
+	/* Maps just the entry's part of the file, which the returned SampleSet is
+	 * backed by (see BinaryUtils#read(ByteBuffer, boolean, boolean))
+	 */
+	public SampleSet read(Entry entry, boolean assertGenuine, boolean assertComplete) throws IOException, SampleParseException {
+		if (entry == null)
+			throw new NullPointerException();
+		if (byCounterName.get(entry.counterName()) != entry)
+			throw new IllegalArgumentException("The entry is not from this archive: " + entry.counterName());
+		//the mapping remains valid after the channel is closed
+		return BinaryUtils.read(BinaryUtils.map(channel, entry.offset(), entry.length()), assertGenuine, assertComplete);
+	}
+
+	/* Reads every SampleSet in the archive, in the order they are stored, keyed
+	 * by counterName. SampleSets that fail to load (e.g. because they are not
+	 * genuine) are reported to System.err and skipped.
+	 */
+	public Map<String, SampleSet> readAll(boolean assertGenuine, boolean assertComplete) {
+		Map<String, SampleSet> samples = new LinkedHashMap<>();
+		for (Entry e : entries) {
+			try {
+				samples.put(e.counterName(), read(e, assertGenuine, assertComplete));
+			} catch(Exception ex) {
+				System.err.println("Failed to read " + e.counterName() + " from capture archive "
+						+ file.toAbsolutePath() + ": " + ex.getLocalizedMessage());
+			}
+		}
+		return samples;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/* Writes the SampleSets (which must all have different counterNames) into
+	 * a new archive, replacing the file if it exists. The file is only replaced
+	 * once the archive is complete (see SampleUtils#atomicWrite), so a failure
+	 * partway through leaves the previous archive as it was.
+	 */
+	public static void write(Collection<SampleSet> samples, Path file) throws IOException {
+		if (samples == null || file == null)
+			throw new NullPointerException();
+		Set<String> counterNames = new HashSet<>();
+		for (SampleSet s : samples) {
+			if (!counterNames.add(s.counterName()))
+				throw new IllegalArgumentException("Duplicate counterName: " + s.counterName());
+		}
+		SampleUtils.atomicWrite(file, (channel) -> {
+			drain(ByteBuffer.allocate(HEADER_SIZE).order(ORDER).putInt(MAGIC).putInt(VERSION), channel);
+			List<Entry> entries = new ArrayList<>(samples.size());
+			for (SampleSet s : samples) {
+				long offset = channel.position();
+				BinaryUtils.write(s, channel);
+				SampleColumns columns = s.columns();
+				entries.add(new Entry(s.counterName(), s.processName(), offset, channel.position() - offset,
+						s.size(), columns.timestamp(0), columns.timestamp(s.size() - 1)));
+			}
+			long indexOffset = channel.position();
+			ByteBuffer buffer = ByteBuffer.allocate(64 * 1024).order(ORDER);
+			for (Entry e : entries) {
+				byte[] counterName = e.counterName().getBytes(StandardCharsets.UTF_8);
+				byte[] processName = e.processName().getBytes(StandardCharsets.UTF_8);
+				int length = Integer.BYTES * 3 + counterName.length + processName.length + Long.BYTES * 4;
+				if (buffer.remaining() < length) {
+					drain(buffer, channel);
+					if (buffer.capacity() < length)
+						buffer = ByteBuffer.allocate(length).order(ORDER);
+				}
+				buffer.putInt(counterName.length)
+				.put(counterName)
+				.putInt(processName.length)
+				.put(processName)
+				.putLong(e.offset())
+				.putLong(e.length())
+				.putInt(e.numSamples())
+				.putLong(e.firstTimestamp())
+				.putLong(e.lastTimestamp());
+			}
+			drain(buffer, channel);
+			drain(ByteBuffer.allocate(TRAILER_SIZE).order(ORDER).putLong(indexOffset).putInt(entries.size()).putInt(MAGIC), channel);
+		});
+	}
+
+	private static void drain(ByteBuffer buffer, FileChannel channel) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+
+	/* Archives the Samples files directly inside the capture directory (in any
+	 * format SampleUtils#loadSampleSet can read) into a single file, in order of
+	 * their names. Where the directory holds the same SampleSet in more than one
+	 * format, only one of them is archived (see SampleUtils#withoutDuplicateFormats).
+	 * Files that fail to load are reported to System.err and skipped. Returns the
+	 * number of SampleSets archived.
+	 */
+	public static int fromDirectory(File directory, Path file) throws IOException {
+		if (directory == null || file == null)
+			throw new NullPointerException();
+		if (!directory.isDirectory())
+			throw new IllegalArgumentException("Given File is not a directory: " + directory.getAbsolutePath());
+		File[] files = directory.listFiles(SampleUtils.SAMPLE_FILE_FILTER);
+		List<SampleSet> samples = new ArrayList<>();
+		if (files != null) {
+			Arrays.sort(files);
+			for (File f : SampleUtils.withoutDuplicateFormats(files)) {
+				try {
+					//assertions are turned off, so ingenuine or incomplete files are archived as-is
+					samples.add(SampleUtils.loadSampleSet(f, false, false));
+				} catch(Exception e) {
+					System.err.println("Failed to archive Samples file "
+							+ f.getAbsolutePath() + ": " + e.getLocalizedMessage());
+				}
+			}
+		}
+		write(samples, file);
+		return samples.size();
+	}
+
+	/* The inverse of fromDirectory: writes every SampleSet in the archive to
+	 * its own CSV file in the directory (which is created if needed). Returns
+	 * the number of files written.
+	 */
+	public static int toDirectory(Path file, File directory) throws IOException, SampleParseException {
+		if (file == null || directory == null)
+			throw new NullPointerException();
+		try (CaptureArchive archive = open(file)) {
+			return CSVSampleWriter.writeAll(archive.readAll(false, false).values(), directory);
+		}
+	}
+
+	/* Archives every capture directory under the source directory (any directory
+	 * directly containing Samples files), mirroring the directory structure in
+	 * the target directory, so that e.g. source/2022-04-01_15-21-28 becomes
+	 * target/2022-04-01_15-21-28.tarc. The target directory must not be the source
+	 * directory or inside it, since loading the source directory would then find
+	 * every SampleSet twice, once in the capture directory and once in its archive.
+	 * Captures that fail to archive are reported to System.err and skipped.
+	 */
+	public static void convertFromDirectories(File source, File target) throws IOException {
+		if (source == null || target == null)
+			throw new NullPointerException();
+		if (!source.isDirectory())
+			throw new IllegalArgumentException("Given File is not a directory: " + source.getAbsolutePath());
+		if (target.getCanonicalFile().toPath().startsWith(source.getCanonicalFile().toPath()))
+			throw new IllegalArgumentException("The target directory must not be inside the source directory: " + target.getAbsolutePath());
+		archiveDirectories(source, target);
+	}
+
+	private static void archiveDirectories(File source, File target) {
+		File[] subdirectories = source.listFiles(File::isDirectory);
+		if (subdirectories == null)
+			return;
+		Arrays.sort(subdirectories);
+		for (File s : subdirectories) {
+			File[] sampleFiles = s.listFiles(SampleUtils.SAMPLE_FILE_FILTER);
+			if (sampleFiles != null && sampleFiles.length > 0) {
+				try {
+					Files.createDirectories(target.toPath());
+					fromDirectory(s, new File(target, s.getName() + FILE_EXTENSION).toPath());
+				} catch(Exception e) {
+					System.err.println("Failed to archive capture directory "
+							+ s.getAbsolutePath() + ": " + e.getLocalizedMessage());
+				}
+			}
+			archiveDirectories(s, new File(target, s.getName()));
+		}
+	}
+
+	//The inverse of convertFromDirectories
+	public static void convertToDirectories(File source, File target) throws IOException {
+		if (source == null || target == null)
+			throw new NullPointerException();
+		if (!source.isDirectory())
+			throw new IllegalArgumentException("Given File is not a directory: " + source.getAbsolutePath());
+		File[] archives = source.listFiles(FILE_FILTER);
+		if (archives != null) {
+			Arrays.sort(archives);
+			for (File a : archives) {
+				String name = a.getName().substring(0, a.getName().length() - FILE_EXTENSION.length());
+				try {
+					toDirectory(a.toPath(), new File(target, name));
+				} catch(Exception e) {
+					System.err.println("Failed to extract capture archive "
+							+ a.getAbsolutePath() + ": " + e.getLocalizedMessage());
+				}
+			}
+		}
+		File[] subdirectories = source.listFiles(File::isDirectory);
+		if (subdirectories != null) {
+			Arrays.sort(subdirectories);
+			for (File s : subdirectories)
+				convertToDirectories(s, new File(target, s.getName()));
+		}
+	}
+
+}
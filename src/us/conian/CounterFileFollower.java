@@ -0,0 +1,177 @@
+package us.conian;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/* Follows a Get-Counter output file (see CounterUtils#buildCounterProcess) while it
+ * is still being written, so Samples can be used as they are captured instead of
+ * once the whole capture is done.
+ *
+ * Every poll reads only the bytes appended since the last one, starting from the
+ * byte offset it left off at. The bytes are decoded as UTF-8 (the BOM Out-File
+ * writes is skipped by the CounterParser), a multi-byte character split between
+ * two polls is decoded once the rest of it arrives, and a line that hasn't been
+ * finished yet is held back until its line break is written. The lines are fed
+ * to a CounterParser, which emits a Sample for every process as soon as the
+ * block's "End :" line arrives.
+ *
+ * If the file shrinks (i.e. it was overwritten by a new capture), following
+ * starts over from the beginning of the file with a new parser, and any
+ * partially read block from before is discarded. A follower is not thread-safe.
+ */
+public class CounterFileFollower implements Closeable {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final Path file;
+	private final BiConsumer<String, Sample> consumer;
+	private CounterParser parser;
+
+	private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+	private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+	//the part of the current line read so far
+	private final StringBuilder line = new StringBuilder();
+
+	private FileChannel channel;
+	//the offset of the next byte to read
+	private long offset = 0;
+
+	public CounterFileFollower(Path file, BiConsumer<String, Sample> consumer) {
+		if (file == null || consumer == null)
+			throw new NullPointerException();
+		this.file = file;
+		this.consumer = consumer;
+		this.parser = new CounterParser(consumer);
+	}
+
+	/* Reads everything appended to the file since the last poll, and returns the
+	 * number of bytes read. The file not existing yet is not an error, since
+	 * Get-Counter may not have created it yet.
+	 */
+	public long poll() throws IOException, SampleParseException {
+		if (channel == null) {
+			try {
+				channel = FileChannel.open(file, StandardOpenOption.READ);
+			} catch (NoSuchFileException unused) {
+				return 0;
+			}
+		}
+		if (channel.size() < offset)
+			restart();
+		long read = 0;
+		int n;
+		while ((n = channel.read(bytes, offset)) > 0) {
+			offset += n;
+			read += n;
+			bytes.flip();
+			decode(false);
+			//anything left is the start of a character that hasn't been fully written yet
+			bytes.compact();
+		}
+		return read;
+	}
+
+	private void restart() {
+		offset = 0;
+		bytes.clear();
+		decoder.reset();
+		line.setLength(0);
+		parser = new CounterParser(consumer);
+	}
+
+	private void decode(boolean endOfInput) throws SampleParseException {
+		CoderResult result;
+		do {
+			result = decoder.decode(bytes, chars, endOfInput);
+			if (endOfInput && result.isUnderflow())
+				result = decoder.flush(chars);
+			chars.flip();
+			acceptLines();
+			chars.clear();
+		} while (result.isOverflow());
+	}
+
+	private void acceptLines() throws SampleParseException {
+		while (chars.hasRemaining()) {
+			char ch = chars.get();
+			if (ch == '\n') {
+				//Out-File writes Windows line breaks
+				if (line.length() > 0 && line.charAt(line.length() - 1) == '\r')
+					line.setLength(line.length() - 1);
+				parser.accept(line.toString());
+				line.setLength(0);
+			}
+			else line.append(ch);
+		}
+	}
+
+	/* Reads whatever is left in the file, including a last line without a line
+	 * break, and finishes parsing (see CounterParser#finish). ignoreBrokenEnd =
+	 * whether it is okay for the last block to be incomplete, which is the case
+	 * if Get-Counter was stopped early. The follower is closed afterwards.
+	 */
+	public void finish(boolean ignoreBrokenEnd) throws IOException, SampleParseException {
+		try {
+			poll();
+			bytes.flip();
+			decode(true);
+			bytes.clear();
+			if (line.length() > 0) {
+				parser.accept(line.toString());
+				line.setLength(0);
+			}
+			parser.finish(ignoreBrokenEnd);
+		} finally {
+			close();
+		}
+	}
+
+	/* Polls the file every pollInterval for as long as the process (usually the
+	 * one writing the file) is alive, then finishes.
+	 */
+	public void follow(Process process, Duration pollInterval, boolean ignoreBrokenEnd)
+			throws IOException, SampleParseException, InterruptedException {
+		if (process == null || pollInterval == null)
+			throw new NullPointerException();
+		if (pollInterval.isNegative() || pollInterval.isZero())
+			throw new IllegalArgumentException("The poll interval must be a positive value");
+		//in nanos, since intervals under a millisecond would otherwise wait for 0 and spin
+		while (!process.waitFor(pollInterval.toNanos(), TimeUnit.NANOSECONDS))
+			poll();
+		finish(ignoreBrokenEnd);
+	}
+
+	//The offset of the next byte that will be read from the file
+	public long offset() {
+		return offset;
+	}
+
+	public Path file() {
+		return file;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (channel != null) {
+			channel.close();
+			channel = null;
+		}
+	}
+
+}
@@ -0,0 +1,161 @@
+package us.conian;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.regex.Matcher;
+
+/* A streaming parser for raw Get-Counter output (as produced by the script in
+ * CounterUtils). Rather than requiring the entire capture up front, lines are
+ * fed to the parser one at a time, and as soon as a "Timestamp ... End" block
+ * is complete, a Sample is emitted for every process in the block. Only the
+ * block currently being parsed is ever held in memory, so the memory used
+ * does not depend on the size of the capture.
+ *
+ * Errors are reported the same way as CounterUtils#parseRaw, by throwing a
+ * SampleParseException. A parser should not be used again after it has
+ * thrown one.
+ */
+public class CounterParser {
+	
+	private static final char BYTE_ORDER_MARK = '\uFEFF';
+	private static final String TIMESTAMP_PREFIX = "Timestamp";
+	
+	//the counterName of the process, and the Sample gathered for it
+	private final BiConsumer<String, Sample> consumer;
+	
+	private LocalDateTime timestamp;
+	//the counterName and reading name from the last reading line, waiting on its value
+	private String pendingProcess;
+	private String pendingReading;
+	private final Map<String, Map<String, Double>> readings = new LinkedHashMap<>();
+	
+	private long lineNumber = 0;
+	private long startLine = -1;
+	
+	public CounterParser(BiConsumer<String, Sample> consumer) {
+		if (consumer == null)
+			throw new NullPointerException();
+		this.consumer = consumer;
+	}
+	
+	public static void parse(Reader in, BiConsumer<String, Sample> consumer, boolean ignoreBrokenEnd) throws IOException, SampleParseException {
+		if (in == null)
+			throw new NullPointerException();
+		CounterParser parser = new CounterParser(consumer);
+		BufferedReader reader = in instanceof BufferedReader b ? b : new BufferedReader(in);
+		String line;
+		while ((line = reader.readLine()) != null)
+			parser.accept(line);
+		parser.finish(ignoreBrokenEnd);
+	}
+	
+	//Get-Counter output is written by Out-File as UTF-8
+	public static void parse(InputStream in, BiConsumer<String, Sample> consumer, boolean ignoreBrokenEnd) throws IOException, SampleParseException {
+		if (in == null)
+			throw new NullPointerException();
+		parse(new InputStreamReader(in, StandardCharsets.UTF_8), consumer, ignoreBrokenEnd);
+	}
+	
+	public static void parse(Path file, BiConsumer<String, Sample> consumer, boolean ignoreBrokenEnd) throws IOException, SampleParseException {
+		if (file == null)
+			throw new NullPointerException();
+		try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			parse(reader, consumer, ignoreBrokenEnd);
+		}
+	}
+	
+	public void accept(String line) throws SampleParseException {
+		if (line == null)
+			throw new NullPointerException();
+		lineNumber++;
+		if (lineNumber == 1 && !line.isEmpty() && line.charAt(0) == BYTE_ORDER_MARK)
+			line = line.substring(1);
+		if (line.isBlank())
+			return;
+		Matcher timestampMatch;
+		//most lines are readings and values, so the pattern is only tried on lines that could be a timestamp
+		if (line.startsWith(TIMESTAMP_PREFIX) && (timestampMatch = CounterUtils.TIMESTAMP_PARSE_PATTERN.matcher(line)).matches()) {
+			if (inSample())
+				throw new SampleParseException("Two timestamps found within the same sample set (line " + lineNumber + ")");
+			try {
+				timestamp = SampleUtils.parseTimestamp(timestampMatch.group(1));
+			} catch (SampleParseException e) {
+				throw new SampleParseException("Failed to parse timestamp on line " + lineNumber, e);
+			}
+			startLine = lineNumber;
+		}
+		else if (CounterUtils.SAMPLE_END_PARSE_PATTERN.matcher(line).find()) {
+			if (!inSample())
+				throw new SampleParseException("Two sample ends found within the same sample set (line " + lineNumber + ")");
+			if (pendingReading != null)
+				throw new SampleParseException("Missing value for reading \"" + pendingReading + "\" before line " + lineNumber);
+			emit();
+		}
+		//anything outside of a sample (such as the header Format-List prints) is ignored
+		else if (inSample()) {
+			if (pendingReading == null)
+				acceptReading(line);
+			else acceptValue(line);
+		}
+	}
+	
+	private void acceptReading(String line) throws SampleParseException {
+		Matcher readingMatch = CounterUtils.COUNTER_PARSE_PATTERN.matcher(line);
+		if (!readingMatch.find())
+			throw new SampleParseException("Unexpected reading input on line " + lineNumber + ": \"" + line + "\"");
+		pendingProcess = readingMatch.group(1);
+		pendingReading = readingMatch.group(2);
+	}
+	
+	private void acceptValue(String line) throws SampleParseException {
+		String valueLine = line.strip();
+		double value;
+		try {
+			value = Double.parseDouble(valueLine);
+		} catch(NumberFormatException unused) {
+			throw new SampleParseException("Unexpected value input on line " + lineNumber + ": \"" + valueLine + "\"");
+		}
+		Map<String, Double> pData = readings.computeIfAbsent(pendingProcess, (unused) -> new HashMap<>());
+		if (pData.putIfAbsent(pendingReading, value) != null)
+			throw new SampleParseException("Duplicate reading \"" + pendingReading + "\" found for process " + pendingProcess);
+		pendingProcess = null;
+		pendingReading = null;
+	}
+	
+	private void emit() {
+		try {
+			for (Map.Entry<String, Map<String, Double>> entry : readings.entrySet())
+				consumer.accept(entry.getKey(), new Sample(timestamp, SampleUtils.convertReadings(entry.getValue())));
+		} finally {
+			readings.clear();
+			timestamp = null;
+			startLine = -1;
+		}
+	}
+	
+	//Whether the parser is in the middle of a sample, i.e. it has found a timestamp but no end yet
+	public boolean inSample() {
+		return timestamp != null;
+	}
+	
+	//ignoreBrokenEnd = whether it is okay for the last sample set in the data to not be complete
+	//(which may be the case if the counter was stopped early)
+	public void finish(boolean ignoreBrokenEnd) throws SampleParseException {
+		if (inSample() && !ignoreBrokenEnd)
+			throw new SampleParseException("The last sample (starting on line " + startLine + ") is incomplete");
+		readings.clear();
+		timestamp = null;
+		pendingProcess = null;
+		pendingReading = null;
+	}
+
+}
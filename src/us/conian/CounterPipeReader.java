@@ -0,0 +1,169 @@
+package us.conian;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/* Parses Get-Counter output straight from a pipe, usually the stdout of a process
+ * from CounterUtils#buildCounterProcess(int, int), instead of having it written to
+ * a file first. The output is read on a dedicated thread and fed to a
+ * CounterParser, so the consumer is called (on that thread) with every process's
+ * Sample as soon as each "Timestamp ... End" block is complete.
+ *
+ * Optionally, everything read is also copied as-is into a tee file, which ends up
+ * the same as the file Out-File would have written, so captures can still be
+ * archived and re-parsed later.
+ *
+ * Any stream of Get-Counter output can be read, so a recorded capture can be
+ * replayed through a stand-in process, e.g. "cat capture.txt" on Linux. A
+ * process's stderr is not read, so it should be discarded or redirected (as
+ * buildCounterProcess does), or the process may stall once the pipe is full.
+ */
+public class CounterPipeReader {
+
+	private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+	private final InputStream in;
+	//the process being read from, if any, which is destroyed if reading fails
+	private final Process process;
+	private final Path tee;
+	private final boolean ignoreBrokenEnd;
+	private final BiConsumer<String, Sample> consumer;
+	private final Thread thread;
+
+	private volatile Throwable failure;
+
+	/* tee may be null, in which case nothing is copied. ignoreBrokenEnd = whether
+	 * it is okay for the last block to be incomplete when the stream ends, which
+	 * is the case if Get-Counter was stopped early.
+	 */
+	public CounterPipeReader(InputStream in, Path tee, boolean ignoreBrokenEnd, BiConsumer<String, Sample> consumer) {
+		this(in, null, tee, ignoreBrokenEnd, consumer);
+	}
+
+	private CounterPipeReader(InputStream in, Process process, Path tee, boolean ignoreBrokenEnd, BiConsumer<String, Sample> consumer) {
+		if (in == null || consumer == null)
+			throw new NullPointerException();
+		this.in = in;
+		this.process = process;
+		this.tee = tee;
+		this.ignoreBrokenEnd = ignoreBrokenEnd;
+		this.consumer = consumer;
+		this.thread = new Thread(this::run, "CounterPipeReader-" + THREAD_COUNT.incrementAndGet());
+		thread.setDaemon(true);
+	}
+
+	/* Starts reading the process's stdout. If reading, parsing or the consumer
+	 * fails, the process is destroyed rather than left running with nobody reading it.
+	 */
+	public static CounterPipeReader start(Process process, Path tee, boolean ignoreBrokenEnd, BiConsumer<String, Sample> consumer) {
+		if (process == null)
+			throw new NullPointerException();
+		CounterPipeReader reader = new CounterPipeReader(process.getInputStream(), process, tee, ignoreBrokenEnd, consumer);
+		reader.start();
+		return reader;
+	}
+
+	public void start() {
+		thread.start();
+	}
+
+	private void run() {
+		try (InputStream input = in) {
+			if (tee == null)
+				CounterParser.parse(input, consumer, ignoreBrokenEnd);
+			else {
+				try (OutputStream out = Files.newOutputStream(tee)) {
+					CounterParser.parse(new TeeInputStream(input, out), consumer, ignoreBrokenEnd);
+				}
+			}
+		} catch (Throwable e) {
+			//Errors included, so that a capture cut short by one doesn't look like a clean end of stream
+			failure = e;
+			if (process != null)
+				process.destroy();
+		}
+	}
+
+	public boolean isAlive() {
+		return thread.isAlive();
+	}
+
+	/* Waits until the stream has been read to the end, then rethrows whatever
+	 * reading, parsing or the consumer failed with, if anything. Checked
+	 * exceptions other than IOException and SampleParseException are wrapped
+	 * in an IllegalStateException.
+	 */
+	public void await() throws IOException, SampleParseException, InterruptedException {
+		thread.join();
+		Throwable e = failure;
+		if (e == null)
+			return;
+		if (e instanceof IOException io)
+			throw io;
+		if (e instanceof SampleParseException parse)
+			throw parse;
+		if (e instanceof RuntimeException runtime)
+			throw runtime;
+		if (e instanceof Error error)
+			throw error;
+		throw new IllegalStateException(e);
+	}
+
+	//Copies everything read into the output, which is flushed as each chunk arrives
+	private static final class TeeInputStream extends FilterInputStream {
+
+		private final OutputStream out;
+
+		private TeeInputStream(InputStream in, OutputStream out) {
+			super(in);
+			this.out = out;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1) {
+				out.write(b);
+				out.flush();
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0) {
+				out.write(b, off, n);
+				out.flush();
+			}
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			//skipped bytes would be missing from the copy, so they are read instead
+			byte[] buffer = new byte[(int) Math.min(n, 8192)];
+			long skipped = 0;
+			while (skipped < n) {
+				int read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+				if (read == -1)
+					break;
+				skipped += read;
+			}
+			return skipped;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+	}
+
+}
@@ -0,0 +1,203 @@
+package us.conian;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/* The set of counters a Sample has readings for, mapped to dense indices.
+ *
+ * Samples parsed from the same Get-Counter capture almost always have the
+ * exact same counters, so rather than every Sample holding its own copy of
+ * every counter name, CounterSchemas are interned: for any given set of
+ * counter names there is only ever one CounterSchema instance. This means two
+ * Samples have the same counters if and only if they reference the same
+ * CounterSchema, and looking up a reading by name is a single hash lookup.
+ * The intern table only holds weak references, so the schemas made for
+ * projections and views (see SampleSet#select) are dropped once nothing uses
+ * them anymore, rather than piling up for as long as the program runs.
+ *
+ * Counter names are stored in the same order Sample has always ordered its
+ * Readings (alphabetically, ignoring case), and are matched ignoring case.
+ * Like Sample, a CounterSchema is immutable.
+ */
+public final class CounterSchema implements Iterable<String> {
+	
+	private static final Map<List<String>, SchemaReference> SCHEMAS = new ConcurrentHashMap<>();
+	//the references of schemas that have been garbage collected, to be removed from SCHEMAS
+	private static final ReferenceQueue<CounterSchema> COLLECTED = new ReferenceQueue<>();
+	
+	private static final class SchemaReference extends WeakReference<CounterSchema> {
+		
+		private final List<String> key;
+		
+		private SchemaReference(List<String> key, CounterSchema schema) {
+			super(schema, COLLECTED);
+			this.key = key;
+		}
+		
+	}
+	
+	public static final CounterSchema EMPTY = of();
+	
+	private final String[] names;
+	//keyed by the lower case name, so lookups can ignore case
+	private final Map<String, Integer> indices;
+	
+	private final int hashCode;
+	
+	private volatile CounterSchema withoutMeta;
+	
+	private CounterSchema(String[] names) {
+		this.names = names;
+		this.indices = new HashMap<>(names.length * 2);
+		for (int i = 0; i < names.length; i++) {
+			if (indices.putIfAbsent(key(names[i]), i) != null)
+				throw new IllegalArgumentException("Duplicate counters found");
+		}
+		this.hashCode = Arrays.hashCode(names);
+	}
+	
+	public static CounterSchema of(String... names) {
+		if (names == null)
+			throw new NullPointerException();
+		String[] sorted = names.clone();
+		for (String name : sorted) {
+			if (name == null)
+				throw new NullPointerException();
+		}
+		Arrays.sort(sorted, String.CASE_INSENSITIVE_ORDER);
+		return ofSorted(sorted);
+	}
+	
+	public static CounterSchema of(Collection<String> names) {
+		if (names == null)
+			throw new NullPointerException();
+		return of(names.toArray(String[]::new));
+	}
+	
+	//The given names must already be sorted, and are not copied
+	static CounterSchema ofSorted(String[] names) {
+		removeCollected();
+		SchemaReference reference = SCHEMAS.get(Arrays.asList(names));
+		CounterSchema schema = reference == null ? null : reference.get();
+		if (schema != null)
+			return schema;
+		String[] interned = new String[names.length];
+		for (int i = 0; i < names.length; i++)
+			interned[i] = names[i].intern();
+		CounterSchema[] result = new CounterSchema[1];
+		//the reference may have been cleared, in which case it is replaced
+		SCHEMAS.compute(List.of(interned), (key, existing) -> {
+			CounterSchema s = existing == null ? null : existing.get();
+			if (s == null) {
+				s = new CounterSchema(interned);
+				existing = new SchemaReference(key, s);
+			}
+			result[0] = s;
+			return existing;
+		});
+		return result[0];
+	}
+	
+	private static void removeCollected() {
+		SchemaReference reference;
+		while ((reference = (SchemaReference) COLLECTED.poll()) != null)
+			//only if it hasn't been replaced already
+			SCHEMAS.remove(reference.key, reference);
+	}
+	
+	private static String key(String name) {
+		return name.toLowerCase(Locale.ROOT);
+	}
+	
+	public int size() {
+		return names.length;
+	}
+	
+	public String name(int index) {
+		return names[index];
+	}
+	
+	public String[] names() {
+		return names.clone();
+	}
+	
+	//Returns -1 if there is no counter with the given name
+	public int indexOf(String name) {
+		if (name == null)
+			throw new NullPointerException();
+		Integer index = indices.get(key(name));
+		return index == null ? -1 : index;
+	}
+	
+	public boolean contains(String name) {
+		return indexOf(name) != -1;
+	}
+	
+	/* Returns the schema made up of only the counters at the given indices,
+	 * which must be in ascending order
+	 */
+	public CounterSchema subSchema(int[] indices) {
+		if (indices == null)
+			throw new NullPointerException();
+		String[] subset = new String[indices.length];
+		for (int i = 0; i < indices.length; i++) {
+			if (i > 0 && indices[i] <= indices[i - 1])
+				throw new IllegalArgumentException("The indices must be in ascending order");
+			subset[i] = names[indices[i]];
+		}
+		return ofSorted(subset);
+	}
+	
+	//Returns the indices of all counters not in the given collection
+	public int[] indicesWithout(Collection<String> counters) {
+		if (counters == null)
+			throw new NullPointerException();
+		Set<Integer> excluded = new HashSet<>();
+		for (String counter : counters) {
+			int index = indexOf(counter);
+			if (index != -1)
+				excluded.add(index);
+		}
+		int[] kept = new int[names.length - excluded.size()];
+		int k = 0;
+		for (int i = 0; i < names.length; i++) {
+			if (!excluded.contains(i))
+				kept[k++] = i;
+		}
+		return kept;
+	}
+	
+	public CounterSchema minus(Collection<String> counters) {
+		return subSchema(indicesWithout(counters));
+	}
+	
+	//Cached, since every Sample with this schema will ask for the same thing
+	CounterSchema minusMetaReadings() {
+		CounterSchema schema = withoutMeta;
+		if (schema == null)
+			withoutMeta = schema = minus(SampleUtils.META_READINGS);
+		return schema;
+	}
+	
+	@Override
+	public Iterator<String> iterator() {
+		return Arrays.asList(names).iterator();
+	}
+	
+	/* CounterSchemas are interned, so identity is equality (two schemas with the
+	 * same names can't both be reachable) and equals doesn't need to be
+	 * overridden. hashCode is only overridden so that it is stable across runs
+	 */
+	@Override
+	public int hashCode() {
+		return hashCode;
+	}
+	
+	@Override
+	public String toString() {
+		return Arrays.toString(names);
+	}
+
+}
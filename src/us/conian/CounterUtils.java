@@ -4,11 +4,11 @@ import java.io.File;
 import java.io.IOException;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
-import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.StringTokenizer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -20,22 +20,59 @@ public static final int CONTINUOUS = -1;
 	private static final String SAMPLE_INTERVAL = "%sampleInterval%";
 	private static final String NUM_SAMPLES = "%numSamples%";
 	private static final String OUTPUT_FILE = "%outputFile%";
+	private static final String OUTPUT = "%output%";
+	private static final String PREAMBLE = "%preamble%";
 	
-	private static final String SCRIPT = "powershell.exe \"Get-Counter -ListSet Process | Get-Counter -ErrorAction SilentlyContinue " 
+	private static final String SCRIPT = "powershell.exe \"" + PREAMBLE + "Get-Counter -ListSet Process | Get-Counter -ErrorAction SilentlyContinue " 
 			+ SAMPLE_INTERVAL + " " + NUM_SAMPLES
 			+ " | select @{l=\\\"Timestamp\\\";e={([datetime]\\\"$($_.timestamp)\\\").tostring(\\\"" + CounterUtils.TIMESTAMP_PATTERN + "\\\")}},Readings,\"End\" | fl"
-			+ " | Out-File -Encoding utf8 -FilePath \\\"" + OUTPUT_FILE + "\\\"\"";
+			+ OUTPUT + "\"";
+	
+	private static final String FILE_OUTPUT = " | Out-File -Encoding utf8 -FilePath \\\"" + OUTPUT_FILE + "\\\"";
+	//without Out-File the output goes to stdout, which is switched to UTF-8 so it can be read the same way as the file
+	private static final String STDOUT_PREAMBLE = "[Console]::OutputEncoding = [System.Text.Encoding]::UTF8; ";
 	
 	public static Process buildCounterProcess(int sampleInterval, int numSamples, File outputFile) throws IOException {
 		if (outputFile == null)
 			throw new NullPointerException();
 		if (sampleInterval < 1)
 			throw new IllegalArgumentException("The sample interval must be a positive value");
-		String script = SCRIPT
+		String script = buildScript(sampleInterval, numSamples, "",
+				FILE_OUTPUT.replace(OUTPUT_FILE, outputFile.getAbsolutePath()));
+		return start(script);
+	}
+	
+	/* The same as buildCounterProcess(int, int, File), except the output is written
+	 * to the process's stdout instead of a file, so it can be parsed as it arrives
+	 * (see CounterPipeReader) without going through the disk.
+	 */
+	public static Process buildCounterProcess(int sampleInterval, int numSamples) throws IOException {
+		if (sampleInterval < 1)
+			throw new IllegalArgumentException("The sample interval must be a positive value");
+		return start(buildScript(sampleInterval, numSamples, STDOUT_PREAMBLE, ""));
+	}
+	
+	/* Get-Counter keeps writing errors to stderr as processes exit while it samples
+	 * them, and nothing reads them, so stderr is discarded; otherwise the pipe fills
+	 * up and Get-Counter stalls. The script is split into arguments the same way
+	 * Runtime#exec(String) splits it.
+	 */
+	private static Process start(String script) throws IOException {
+		StringTokenizer tokens = new StringTokenizer(script);
+		List<String> command = new ArrayList<>();
+		while (tokens.hasMoreTokens())
+			command.add(tokens.nextToken());
+		return new ProcessBuilder(command)
+				.redirectError(ProcessBuilder.Redirect.DISCARD)
+				.start();
+	}
+	
+	private static String buildScript(int sampleInterval, int numSamples, String preamble, String output) {
+		return SCRIPT
+				.replace(PREAMBLE, preamble)
 				.replace(SAMPLE_INTERVAL, "-SampleInterval " + sampleInterval)
 				.replace(NUM_SAMPLES, (numSamples < 1 ? "-Continuous" : "-MaxSamples " + numSamples))
-				.replace(OUTPUT_FILE, outputFile.getAbsolutePath());
-		return Runtime.getRuntime().exec(script);
+				.replace(OUTPUT, output);
 	}
 	
 	public static final String TIMESTAMP_PATTERN = "yyyy/MM/dd HH:mm:ss";
@@ -58,32 +95,11 @@ public static final int CONTINUOUS = -1;
 	//(which may be the case if the counter was stopped early)
 	public static Map<String, List<Sample>> parseRaw(List<String> sampleData, boolean ignoreBrokenEnd) throws SampleParseException {
 		Map<String, List<Sample>> samples = new HashMap<>();
-		int startLine = -1;
-		int currentLine = 0;
-		for (String line : sampleData) {
-			if (TIMESTAMP_PARSE_PATTERN.matcher(line).matches()) {
-				if (startLine != -1)
-					throw new SampleParseException("Two timestamps found within the same sample set");
-				else startLine = currentLine;
-			}
-			else if (SAMPLE_END_PARSE_PATTERN.matcher(line).find()) {
-				if (startLine == -1)
-					throw new SampleParseException("Two sample ends found within the same sample set");
-				else {
-					Map<String, Sample> set = parseSingleRaw(sampleData.subList(startLine, currentLine + 1));
-					for (Map.Entry<String, Sample> entry : set.entrySet()) {
-						String processName = entry.getKey();
-						if (!samples.containsKey(processName))
-							samples.put(processName, new ArrayList<>());
-						samples.get(processName).add(entry.getValue());
-					}
-					startLine = -1;
-				}
-			}
-			currentLine++;
-		}
-		if (!ignoreBrokenEnd && startLine != -1)
-			throw new SampleParseException("The last sample is incomplete");
+		CounterParser parser = new CounterParser((counterName, sample) -> 
+				samples.computeIfAbsent(counterName, (unused) -> new ArrayList<>()).add(sample));
+		for (String line : sampleData)
+			parser.accept(line);
+		parser.finish(ignoreBrokenEnd);
 		return samples;
 	}
 	
@@ -94,12 +110,7 @@ public static final int CONTINUOUS = -1;
 		Matcher timestampMatch = TIMESTAMP_PARSE_PATTERN.matcher(timestampLine);
 		if (!timestampMatch.matches())
 			throw new SampleParseException("The first line does not contain a timestamp: \"" + timestampLine + "\"");
-		LocalDateTime timestamp;
-		try {
-			timestamp = LocalDateTime.parse(timestampMatch.group(1), TIMESTAMP_FORMAT);
-		} catch (DateTimeParseException e) {
-			throw new SampleParseException("Failed to parse timestamp", e);
-		}
+		LocalDateTime timestamp = SampleUtils.parseTimestamp(timestampMatch.group(1));
 		if (!SAMPLE_END_PARSE_PATTERN.matcher(sampleData.get(sampleData.size() - 1)).find())
 			throw new SampleParseException("Unexpected sample end line (is the sample data incomplete?)");
 		Map<String, Map<String, Double>> readings = new HashMap<>();
@@ -0,0 +1,390 @@
+package us.conian;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/* Computes covariance and correlation matrices over the counters of a SampleSet
+ * (or any column-major data), which is the most CPU intensive statistic we compute.
+ *
+ * The columns are first centered around their means into plain primitive arrays,
+ * after which every entry of the matrix is a dot product between two columns. The
+ * matrix is tiled over pairs of counter blocks, which are computed in parallel
+ * with fork-join. A tile over many samples is split further into ranges of
+ * samples that are also computed in parallel, and within a range the samples are
+ * processed a block at a time, so that the columns being multiplied stay in
+ * cache. The dot products themselves use several independent accumulators,
+ * which lets the JIT pipeline (and where it can, vectorize) the inner loop.
+ *
+ * All matrices are population matrices (divided by the number of samples), the
+ * same as SampleSet.Meta, and are indexed by the counter indices of the schema.
+ */
+public class CovarianceUtils {
+	
+	public static enum Mode {
+		//Every column must have a value for every sample (i.e. the SampleSet must be complete)
+		COMPLETE,
+		/* Missing values (NaN) are allowed. Each entry of the matrix is computed over
+		 * only the samples that have values for both of its counters, and is NaN
+		 * if there are no such samples.
+		 */
+		PAIRWISE
+	}
+	
+	//the number of counters and samples in a tile
+	private static final int COUNTER_BLOCK = 16;
+	private static final int SAMPLE_BLOCK = 1024;
+	//tiles with fewer samples than this are not split into ranges of samples
+	private static final int MIN_TASK_SAMPLES = 8 * SAMPLE_BLOCK;
+	
+	public static double[][] covariance(SampleSet samples) {
+		return covariance(samples, Mode.COMPLETE);
+	}
+	
+	public static double[][] covariance(SampleSet samples, Mode mode) {
+		if (samples == null)
+			throw new NullPointerException();
+		return covariance(toColumns(samples), mode, ForkJoinPool.commonPool());
+	}
+	
+	//columns is indexed as columns[counter][sample], and is not modified
+	public static double[][] covariance(double[][] columns, Mode mode, ForkJoinPool pool) {
+		return compute(columns, mode, pool, false);
+	}
+	
+	public static double[][] correlation(SampleSet samples, Mode mode) {
+		if (samples == null)
+			throw new NullPointerException();
+		return correlation(toColumns(samples), mode, ForkJoinPool.commonPool());
+	}
+	
+	/* Pearson correlation coefficients. Entries for a counter whose values
+	 * never change are NaN, since its variance is 0.
+	 */
+	public static double[][] correlation(double[][] columns, Mode mode, ForkJoinPool pool) {
+		return compute(columns, mode, pool, true);
+	}
+	
+	private static double[][] toColumns(SampleSet samples) {
+		SampleColumns columns = samples.columns();
+		double[][] data = new double[columns.numCounters()][columns.numSamples()];
+		for (int c = 0; c < data.length; c++) {
+			for (int i = 0; i < data[c].length; i++)
+				data[c][i] = columns.value(c, i);
+		}
+		return data;
+	}
+	
+	private static double[][] compute(double[][] columns, Mode mode, ForkJoinPool pool, boolean correlation) {
+		if (columns == null || mode == null || pool == null)
+			throw new NullPointerException();
+		int size = columns.length;
+		int n = size == 0 ? 0 : columns[0].length;
+		for (double[] column : columns) {
+			if (column.length != n)
+				throw new IllegalArgumentException("All columns must have the same number of values");
+		}
+		Centered centered = center(columns, mode);
+		Sums sums = new Sums(size, mode == Mode.PAIRWISE);
+		List<int[]> tiles = new ArrayList<>();
+		for (int bi = 0; bi < size; bi += COUNTER_BLOCK) {
+			for (int bj = bi; bj < size; bj += COUNTER_BLOCK)
+				tiles.add(new int[] { bi, bj });
+		}
+		pool.invoke(new TilesTask(centered, mode, sums, tiles, n));
+		double[][] matrix = new double[size][size];
+		for (int i = 0; i < size; i++) {
+			for (int j = i; j < size; j++) {
+				double value = mode == Mode.COMPLETE
+						? completeEntry(sums, i, j, n, correlation)
+						: pairwiseEntry(sums, i, j, correlation);
+				matrix[i][j] = value;
+				matrix[j][i] = value;
+			}
+		}
+		return matrix;
+	}
+	
+	private static double completeEntry(Sums sums, int i, int j, int n, boolean correlation) {
+		int size = sums.size;
+		if (correlation)
+			return sums.xy[i * size + j] / Math.sqrt(sums.xy[i * size + i] * sums.xy[j * size + j]);
+		return sums.xy[i * size + j] / n;
+	}
+	
+	/* The columns were centered around their overall means rather than the means of
+	 * just the samples the pair has in common, so those are corrected for here
+	 */
+	private static double pairwiseEntry(Sums sums, int i, int j, boolean correlation) {
+		int size = sums.size;
+		double count = sums.counts[i * size + j];
+		if (count == 0)
+			return Double.NaN;
+		double sx = sums.xm[i * size + j];
+		double sy = sums.xm[j * size + i];
+		double covariance = (sums.xy[i * size + j] - sx * sy / count) / count;
+		if (!correlation)
+			return covariance;
+		double varX = (sums.xxm[i * size + j] - sx * sx / count) / count;
+		double varY = (sums.xxm[j * size + i] - sy * sy / count) / count;
+		return covariance / Math.sqrt(varX * varY);
+	}
+	
+	/* The centered columns, with missing values set to 0 so they drop out of every
+	 * product. For PAIRWISE, masks holds 1 where a column has a value and 0 where not.
+	 */
+	private static record Centered(double[][] values, double[][] masks) {}
+	
+	private static Centered center(double[][] columns, Mode mode) {
+		int size = columns.length;
+		double[][] values = new double[size][];
+		double[][] masks = mode == Mode.PAIRWISE ? new double[size][] : null;
+		for (int c = 0; c < size; c++) {
+			double[] column = columns[c];
+			double total = 0;
+			int count = 0;
+			for (double v : column) {
+				if (Double.isNaN(v)) {
+					if (mode == Mode.COMPLETE)
+						throw new IllegalStateException("The columns are not complete");
+					continue;
+				}
+				total += v;
+				count++;
+			}
+			double mean = count == 0 ? 0 : total / count;
+			double[] centered = new double[column.length];
+			double[] mask = masks == null ? null : new double[column.length];
+			for (int i = 0; i < column.length; i++) {
+				if (Double.isNaN(column[i]))
+					continue;
+				centered[i] = column[i] - mean;
+				if (mask != null)
+					mask[i] = 1;
+			}
+			values[c] = centered;
+			if (masks != null)
+				masks[c] = mask;
+		}
+		return new Centered(values, masks);
+	}
+	
+	/* The sums of products over all of the samples, stored as size x size matrices:
+	 * xy[i][j]  = sum of x_i * x_j
+	 * and for PAIRWISE only (where m is the mask):
+	 * xm[i][j]  = sum of x_i * m_j
+	 * xxm[i][j] = sum of x_i * x_i * m_j
+	 * counts[i][j] = sum of m_i * m_j
+	 * Only the upper triangle of xy and counts is filled in.
+	 */
+	private static final class Sums {
+		
+		private final int size;
+		private final double[] xy;
+		private final double[] xm;
+		private final double[] xxm;
+		private final double[] counts;
+		
+		private Sums(int size, boolean pairwise) {
+			this.size = size;
+			this.xy = new double[size * size];
+			this.xm = pairwise ? new double[size * size] : null;
+			this.xxm = pairwise ? new double[size * size] : null;
+			this.counts = pairwise ? new double[size * size] : null;
+		}
+	
+	}
+	
+	/* The sums of products for the counters i in [bi, bi + COUNTER_BLOCK) and
+	 * j in [bj, bj + COUNTER_BLOCK), indexed as [(i - bi) * COUNTER_BLOCK + (j - bj)].
+	 * xm and xxm are as in Sums, and mx and mxx hold the same sums with i and j
+	 * swapped (i.e. Sums' xm[j][i] and xxm[j][i]).
+	 */
+	private static final class Tile {
+		
+		private final double[] xy = new double[COUNTER_BLOCK * COUNTER_BLOCK];
+		private final double[] xm;
+		private final double[] mx;
+		private final double[] xxm;
+		private final double[] mxx;
+		private final double[] counts;
+		
+		private Tile(boolean pairwise) {
+			this.xm = pairwise ? new double[xy.length] : null;
+			this.mx = pairwise ? new double[xy.length] : null;
+			this.xxm = pairwise ? new double[xy.length] : null;
+			this.mxx = pairwise ? new double[xy.length] : null;
+			this.counts = pairwise ? new double[xy.length] : null;
+		}
+		
+		private void add(Tile other) {
+			addTo(xy, other.xy);
+			if (xm != null) {
+				addTo(xm, other.xm);
+				addTo(mx, other.mx);
+				addTo(xxm, other.xxm);
+				addTo(mxx, other.mxx);
+				addTo(counts, other.counts);
+			}
+		}
+		
+		private static void addTo(double[] a, double[] b) {
+			for (int i = 0; i < a.length; i++)
+				a[i] += b[i];
+		}
+		
+		/* Every tile writes to different entries of the Sums (the upper triangle
+		 * entries of its own pair of blocks, and for xm and xxm their mirrors),
+		 * so tiles can be stored without synchronizing
+		 */
+		private void storeInto(Sums sums, int bi, int bj) {
+			int size = sums.size;
+			int iEnd = Math.min(bi + COUNTER_BLOCK, size);
+			int jEnd = Math.min(bj + COUNTER_BLOCK, size);
+			for (int i = bi; i < iEnd; i++) {
+				for (int j = Math.max(i, bj); j < jEnd; j++) {
+					int t = (i - bi) * COUNTER_BLOCK + (j - bj);
+					sums.xy[i * size + j] = xy[t];
+					if (xm != null) {
+						sums.counts[i * size + j] = counts[t];
+						sums.xm[i * size + j] = xm[t];
+						sums.xxm[i * size + j] = xxm[t];
+						if (i != j) {
+							sums.xm[j * size + i] = mx[t];
+							sums.xxm[j * size + i] = mxx[t];
+						}
+					}
+				}
+			}
+		}
+	
+	}
+	
+	//Computes the tiles (each as {bi, bj}), splitting them in half until there is one per task
+	private static final class TilesTask extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final Centered centered;
+		private final Mode mode;
+		private final Sums sums;
+		private final List<int[]> tiles;
+		private final int n;
+		
+		private TilesTask(Centered centered, Mode mode, Sums sums, List<int[]> tiles, int n) {
+			this.centered = centered;
+			this.mode = mode;
+			this.sums = sums;
+			this.tiles = tiles;
+			this.n = n;
+		}
+		
+		@Override
+		protected void compute() {
+			if (tiles.size() > 1) {
+				int middle = tiles.size() >>> 1;
+				invokeAll(new TilesTask(centered, mode, sums, tiles.subList(0, middle), n),
+						new TilesTask(centered, mode, sums, tiles.subList(middle, tiles.size()), n));
+				return;
+			}
+			for (int[] tile : tiles)
+				new TileTask(centered, mode, tile[0], tile[1], 0, n).compute().storeInto(sums, tile[0], tile[1]);
+		}
+	
+	}
+	
+	//Computes a single tile over a range of samples, splitting it in half while it is long enough
+	private static final class TileTask extends RecursiveTask<Tile> {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final Centered centered;
+		private final Mode mode;
+		private final int bi;
+		private final int bj;
+		private final int from;
+		private final int to;
+		
+		private TileTask(Centered centered, Mode mode, int bi, int bj, int from, int to) {
+			this.centered = centered;
+			this.mode = mode;
+			this.bi = bi;
+			this.bj = bj;
+			this.from = from;
+			this.to = to;
+		}
+		
+		@Override
+		protected Tile compute() {
+			if (to - from > MIN_TASK_SAMPLES) {
+				int middle = (from + to) >>> 1;
+				TileTask right = new TileTask(centered, mode, bi, bj, middle, to);
+				right.fork();
+				Tile tile = new TileTask(centered, mode, bi, bj, from, middle).compute();
+				tile.add(right.join());
+				return tile;
+			}
+			return computeDirectly();
+		}
+		
+		private Tile computeDirectly() {
+			double[][] x = centered.values();
+			double[][] m = centered.masks();
+			int size = x.length;
+			int iEnd = Math.min(bi + COUNTER_BLOCK, size);
+			int jEnd = Math.min(bj + COUNTER_BLOCK, size);
+			Tile tile = new Tile(mode == Mode.PAIRWISE);
+			for (int s0 = from; s0 < to; s0 += SAMPLE_BLOCK) {
+				int s1 = Math.min(s0 + SAMPLE_BLOCK, to);
+				for (int i = bi; i < iEnd; i++) {
+					for (int j = Math.max(i, bj); j < jEnd; j++) {
+						int t = (i - bi) * COUNTER_BLOCK + (j - bj);
+						tile.xy[t] += dot(x[i], x[j], s0, s1);
+						if (m != null) {
+							tile.counts[t] += dot(m[i], m[j], s0, s1);
+							tile.xm[t] += dot(x[i], m[j], s0, s1);
+							tile.xxm[t] += dot3(x[i], x[i], m[j], s0, s1);
+							if (i != j) {
+								tile.mx[t] += dot(x[j], m[i], s0, s1);
+								tile.mxx[t] += dot3(x[j], x[j], m[i], s0, s1);
+							}
+						}
+					}
+				}
+			}
+			return tile;
+		}
+	
+	}
+	
+	private static double dot(double[] a, double[] b, int from, int to) {
+		double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+		int i = from;
+		for (; i + 3 < to; i += 4) {
+			s0 += a[i] * b[i];
+			s1 += a[i + 1] * b[i + 1];
+			s2 += a[i + 2] * b[i + 2];
+			s3 += a[i + 3] * b[i + 3];
+		}
+		for (; i < to; i++)
+			s0 += a[i] * b[i];
+		return (s0 + s1) + (s2 + s3);
+	}
+	
+	private static double dot3(double[] a, double[] b, double[] c, int from, int to) {
+		double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+		int i = from;
+		for (; i + 3 < to; i += 4) {
+			s0 += a[i] * b[i] * c[i];
+			s1 += a[i + 1] * b[i + 1] * c[i + 1];
+			s2 += a[i + 2] * b[i + 2] * c[i + 2];
+			s3 += a[i + 3] * b[i + 3] * c[i + 3];
+		}
+		for (; i < to; i++)
+			s0 += a[i] * b[i] * c[i];
+		return (s0 + s1) + (s2 + s3);
+	}
+
+}
@@ -0,0 +1,499 @@
+package us.conian;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/* A compressed format for archiving SampleSets, based on the encoding from
+ * Facebook's Gorilla time series database. Captures are very redundant: samples
+ * are taken at a near-constant interval, and many counters (handle count, private
+ * bytes, priority base, ...) stay the same, or barely change, from one sample to
+ * the next. So instead of storing every value in full, each column only stores
+ * how it differs from the previous sample, which usually takes a few bits.
+ *
+ * Timestamps are scaled down to the coarsest unit (a power of 10 nanoseconds,
+ * up to a second) that all of them are a multiple of, after which the first is
+ * stored in full, the second as the difference from the first (the delta), and
+ * the rest as the difference from the previous delta (the delta of deltas),
+ * which is 0 for every sample taken exactly on schedule. These differences are
+ * written with a variable number of bits: a single 0 bit for 0, and otherwise a
+ * prefix saying how many bits follow.
+ *
+ * Each counter is written as a column. Most counters only ever have whole values
+ * (see SampleUtils#isWhole), so if every value of a column is a whole number
+ * that a double can hold exactly, the column is written as integers: the first
+ * in full, and the rest as deltas (divided by their greatest common divisor),
+ * written the same way as the timestamp deltas. Any other column is written as doubles, each XORed
+ * with the previous value: a single 0 bit if the value is unchanged, and
+ * otherwise only the bits between the leading and trailing zeros of the XOR,
+ * reusing the previous value's leading and trailing zero counts if they fit.
+ * Missing readings (NaN) are written the same as any other double, and every
+ * value is stored exactly.
+ *
+ * Layout (numbers are big-endian, strings are modified UTF-8 as written by
+ * DataOutputStream#writeUTF):
+ *
+ * int     MAGIC
+ * int     VERSION
+ * string  counterName
+ * int     number of counters
+ * string  each counter name, in CounterSchema order
+ * int     number of samples
+ * byte    the timestamp unit, as a power of 10 nanoseconds
+ * bits    the timestamps, then each column (starting with a bit that is 1 for integer columns)
+ * (zero padding up to the next byte)
+ *
+ * Files can be decoded from a stream, directly into the arrays a SampleSet is built from.
+ */
+public class GorillaUtils {
+
+	public static final String FILE_EXTENSION = ".tgor";
+
+	public static final FileFilter FILE_FILTER = (file) -> file.isFile() && file.getName().endsWith(FILE_EXTENSION);
+
+	private static final int MAGIC = 0x54474F52;//"TGOR"
+	private static final int VERSION = 1;
+
+	private static final int MAX_TIMESTAMP_UNIT = 9;
+	private static final long[] POWERS_OF_TEN = {
+			1L, 10L, 100L, 1_000L, 10_000L, 100_000L, 1_000_000L, 10_000_000L, 100_000_000L, 1_000_000_000L
+	};
+	//the largest magnitude at which every whole number is exactly representable as a double
+	private static final double MAX_EXACT_INTEGER = 1L << 53;
+
+	public static byte[] encode(SampleSet samples) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			write(samples, out);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return out.toByteArray();
+	}
+
+	public static void write(SampleSet samples, Path file) throws IOException {
+		if (samples == null || file == null)
+			throw new NullPointerException();
+		try (OutputStream out = Files.newOutputStream(file)) {
+			write(samples, out);
+		}
+	}
+
+	//Writes the SampleSet to the stream, which is flushed but not closed
+	public static void write(SampleSet samples, OutputStream out) throws IOException {
+		if (samples == null || out == null)
+			throw new NullPointerException();
+		SampleColumns columns = samples.columns();
+		CounterSchema schema = samples.schema();
+		int n = columns.numSamples();
+		BufferedOutputStream buffered = new BufferedOutputStream(out);
+		DataOutputStream header = new DataOutputStream(buffered);
+		header.writeInt(MAGIC);
+		header.writeInt(VERSION);
+		header.writeUTF(samples.counterName());
+		header.writeInt(schema.size());
+		for (String counter : schema)
+			header.writeUTF(counter);
+		header.writeInt(n);
+		long[] timestamps = new long[n];
+		for (int i = 0; i < n; i++)
+			timestamps[i] = columns.timestamp(i);
+		int unit = timestampUnit(timestamps);
+		header.writeByte(unit);
+		BitOutput bits = new BitOutput(buffered);
+		writeTimestamps(bits, timestamps, unit);
+		double[] column = new double[n];
+		for (int c = 0; c < columns.numCounters(); c++) {
+			for (int i = 0; i < n; i++)
+				column[i] = columns.value(c, i);
+			if (isIntegral(column)) {
+				bits.writeBit(true);
+				writeIntegers(bits, column);
+			}
+			else {
+				bits.writeBit(false);
+				writeDoubles(bits, column);
+			}
+		}
+		bits.flush();
+		buffered.flush();
+	}
+
+	//The largest power of 10 nanoseconds (up to a second) that every timestamp is a multiple of
+	private static int timestampUnit(long[] timestamps) {
+		int unit = MAX_TIMESTAMP_UNIT;
+		for (long t : timestamps) {
+			while (unit > 0 && t % POWERS_OF_TEN[unit] != 0)
+				unit--;
+			if (unit == 0)
+				break;
+		}
+		return unit;
+	}
+
+	/* Deltas are computed with wrapping arithmetic, which the decoder undoes with
+	 * wrapping arithmetic as well, so even timestamps further apart than a long
+	 * can hold round trip exactly
+	 */
+	private static void writeTimestamps(BitOutput bits, long[] timestamps, int unit) throws IOException {
+		long scale = POWERS_OF_TEN[unit];
+		long previous = 0;
+		long previousDelta = 0;
+		for (int i = 0; i < timestamps.length; i++) {
+			long t = timestamps[i] / scale;
+			if (i == 0)
+				bits.writeBits(t, 64);
+			else {
+				long delta = t - previous;
+				writeVariable(bits, delta - previousDelta);
+				previousDelta = delta;
+			}
+			previous = t;
+		}
+	}
+
+	private static boolean isIntegral(double[] column) {
+		for (double v : column) {
+			if (!(Math.abs(v) <= MAX_EXACT_INTEGER) || !SampleUtils.isWhole(v))
+				return false;
+			//-0.0 would come back as 0.0
+			if (Double.doubleToRawLongBits((double) (long) v) != Double.doubleToRawLongBits(v))
+				return false;
+		}
+		return true;
+	}
+
+	/* Memory counters change in whole pages, so the deltas are divided by their
+	 * greatest common divisor, which is written before them
+	 */
+	private static void writeIntegers(BitOutput bits, double[] column) throws IOException {
+		long divisor = 0;
+		for (int i = 1; i < column.length; i++)
+			divisor = gcd(divisor, Math.abs((long) column[i] - (long) column[i - 1]));
+		writeVariable(bits, divisor);
+		//a column that never changes has only deltas of 0
+		if (divisor == 0)
+			divisor = 1;
+		long previous = 0;
+		for (int i = 0; i < column.length; i++) {
+			long v = (long) column[i];
+			if (i == 0)
+				bits.writeBits(v, 64);
+			else writeVariable(bits, (v - previous) / divisor);
+			previous = v;
+		}
+	}
+
+	private static long gcd(long a, long b) {
+		while (b != 0) {
+			long t = a % b;
+			a = b;
+			b = t;
+		}
+		return a;
+	}
+
+	private static void writeDoubles(BitOutput bits, double[] column) throws IOException {
+		long previous = 0;
+		int previousLeading = -1;
+		int previousTrailing = 0;
+		for (int i = 0; i < column.length; i++) {
+			long v = Double.doubleToRawLongBits(column[i]);
+			if (i == 0) {
+				bits.writeBits(v, 64);
+				previous = v;
+				continue;
+			}
+			long xor = v ^ previous;
+			previous = v;
+			if (xor == 0) {
+				bits.writeBit(false);
+				continue;
+			}
+			bits.writeBit(true);
+			int leading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+			int trailing = Long.numberOfTrailingZeros(xor);
+			if (previousLeading != -1 && leading >= previousLeading && trailing >= previousTrailing) {
+				//the meaningful bits fit within the previous value's
+				bits.writeBit(false);
+				bits.writeBits(xor >>> previousTrailing, 64 - previousLeading - previousTrailing);
+			}
+			else {
+				int significant = 64 - leading - trailing;
+				bits.writeBit(true);
+				bits.writeBits(leading, 5);
+				//64 significant bits is written as 0, since it can't be 0 otherwise
+				bits.writeBits(significant & 63, 6);
+				bits.writeBits(xor >>> trailing, significant);
+				previousLeading = leading;
+				previousTrailing = trailing;
+			}
+		}
+	}
+
+	/* Writes 0 as a single 0 bit, and anything else as a prefix of 1s (ended by a 0,
+	 * except for the largest size) followed by the value in as many bits as it needs
+	 */
+	private static void writeVariable(BitOutput bits, long value) throws IOException {
+		if (value == 0)
+			bits.writeBit(false);
+		else if (fits(value, 7)) {
+			bits.writeBits(0b10, 2);
+			bits.writeBits(value, 7);
+		}
+		else if (fits(value, 9)) {
+			bits.writeBits(0b110, 3);
+			bits.writeBits(value, 9);
+		}
+		else if (fits(value, 12)) {
+			bits.writeBits(0b1110, 4);
+			bits.writeBits(value, 12);
+		}
+		else if (fits(value, 32)) {
+			bits.writeBits(0b11110, 5);
+			bits.writeBits(value, 32);
+		}
+		else {
+			bits.writeBits(0b11111, 5);
+			bits.writeBits(value, 64);
+		}
+	}
+
+	//Whether the value fits in the given number of bits, as a two's complement signed number
+	private static boolean fits(long value, int numBits) {
+		return value >= -(1L << (numBits - 1)) && value < (1L << (numBits - 1));
+	}
+
+	private static long readVariable(BitInput bits) throws IOException {
+		if (!bits.readBit())
+			return 0;
+		if (!bits.readBit())
+			return signed(bits.readBits(7), 7);
+		if (!bits.readBit())
+			return signed(bits.readBits(9), 9);
+		if (!bits.readBit())
+			return signed(bits.readBits(12), 12);
+		if (!bits.readBit())
+			return signed(bits.readBits(32), 32);
+		return bits.readBits(64);
+	}
+
+	private static long signed(long value, int numBits) {
+		int shift = 64 - numBits;
+		return (value << shift) >> shift;
+	}
+
+	public static SampleSet decode(byte[] data, boolean assertGenuine, boolean assertComplete) throws SampleParseException {
+		if (data == null)
+			throw new NullPointerException();
+		try {
+			return read(new ByteArrayInputStream(data), assertGenuine, assertComplete);
+		} catch (IOException e) {
+			throw new SampleParseException("Corrupt SampleSet compressed data", e);
+		}
+	}
+
+	public static SampleSet read(Path file) throws IOException, SampleParseException {
+		return read(file, true, true);
+	}
+
+	public static SampleSet read(Path file, boolean assertGenuine, boolean assertComplete) throws IOException, SampleParseException {
+		if (file == null)
+			throw new NullPointerException();
+		try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+			return read(in, assertGenuine, assertComplete);
+		}
+	}
+
+	/* Decodes a SampleSet from the stream, reading only as far as the end of the
+	 * SampleSet. The stream is read a byte at a time, so it should be buffered,
+	 * and it is not closed.
+	 */
+	public static SampleSet read(InputStream in, boolean assertGenuine, boolean assertComplete) throws IOException, SampleParseException {
+		if (in == null)
+			throw new NullPointerException();
+		DataInputStream header = new DataInputStream(in);
+		String counterName;
+		CounterSchema schema;
+		long[] timestamps;
+		double[][] values;
+		try {
+			if (header.readInt() != MAGIC)
+				throw new SampleParseException("Not a SampleSet compressed file");
+			int version = header.readInt();
+			if (version != VERSION)
+				throw new SampleParseException("Unsupported SampleSet compressed version: " + version);
+			counterName = header.readUTF();
+			int numCounters = header.readInt();
+			if (numCounters < 0)
+				throw new SampleParseException("Corrupt SampleSet compressed header");
+			String[] counters = new String[numCounters];
+			for (int c = 0; c < numCounters; c++)
+				counters[c] = header.readUTF();
+			int numSamples = header.readInt();
+			int unit = header.readByte();
+			if (numSamples < 0 || unit < 0 || unit > MAX_TIMESTAMP_UNIT)
+				throw new SampleParseException("Corrupt SampleSet compressed header");
+			try {
+				schema = CounterSchema.of(counters);
+			} catch (IllegalArgumentException e) {
+				throw new SampleParseException("Corrupt SampleSet compressed header", e);
+			}
+			for (int c = 0; c < numCounters; c++) {
+				if (!schema.name(c).equals(counters[c]))
+					throw new SampleParseException("The counters are not in CounterSchema order");
+			}
+			//the stream isn't buffered, since reading past the end of the SampleSet would lose data
+			BitInput bits = new BitInput(in);
+			timestamps = readTimestamps(bits, numSamples, unit);
+			//the decoded columns are used as-is, so the chronological order everything else relies on is checked here
+			for (int i = 1; i < numSamples; i++) {
+				if (timestamps[i - 1] > timestamps[i])
+					throw new SampleParseException("The timestamps are not in chronological order");
+			}
+			values = new double[numCounters][];
+			for (int c = 0; c < numCounters; c++)
+				values[c] = bits.readBit() ? readIntegers(bits, numSamples) : readDoubles(bits, numSamples);
+		} catch (EOFException e) {
+			throw new SampleParseException("Truncated SampleSet compressed data", e);
+		}
+		//the arrays were only just decoded, so they don't need copying
+		return new SampleSet(counterName, schema, new SampleColumns.Heap(timestamps, values), assertGenuine, assertComplete);
+	}
+
+	private static long[] readTimestamps(BitInput bits, int numSamples, int unit) throws IOException {
+		long scale = POWERS_OF_TEN[unit];
+		long[] timestamps = new long[numSamples];
+		long previous = 0;
+		long delta = 0;
+		for (int i = 0; i < numSamples; i++) {
+			long t;
+			if (i == 0)
+				t = bits.readBits(64);
+			else {
+				delta += readVariable(bits);
+				t = previous + delta;
+			}
+			timestamps[i] = t * scale;
+			previous = t;
+		}
+		return timestamps;
+	}
+
+	private static double[] readIntegers(BitInput bits, int numSamples) throws IOException {
+		long divisor = readVariable(bits);
+		double[] column = new double[numSamples];
+		long previous = 0;
+		for (int i = 0; i < numSamples; i++) {
+			long v = i == 0 ? bits.readBits(64) : previous + readVariable(bits) * divisor;
+			column[i] = v;
+			previous = v;
+		}
+		return column;
+	}
+
+	private static double[] readDoubles(BitInput bits, int numSamples) throws IOException {
+		double[] column = new double[numSamples];
+		long previous = 0;
+		int previousLeading = 0;
+		int previousTrailing = 0;
+		for (int i = 0; i < numSamples; i++) {
+			if (i == 0)
+				previous = bits.readBits(64);
+			else if (bits.readBit()) {
+				long xor;
+				if (!bits.readBit())
+					xor = bits.readBits(64 - previousLeading - previousTrailing) << previousTrailing;
+				else {
+					int leading = (int) bits.readBits(5);
+					int significant = (int) bits.readBits(6);
+					if (significant == 0)
+						significant = 64;
+					int trailing = 64 - leading - significant;
+					if (trailing < 0)
+						throw new SampleParseException("Corrupt SampleSet compressed data");
+					xor = bits.readBits(significant) << trailing;
+					previousLeading = leading;
+					previousTrailing = trailing;
+				}
+				previous ^= xor;
+			}
+			column[i] = Double.longBitsToDouble(previous);
+		}
+		return column;
+	}
+
+	//Writes bits most significant first, packed into bytes
+	private static final class BitOutput {
+
+		private final OutputStream out;
+		private int current = 0;
+		private int numBits = 0;
+
+		private BitOutput(OutputStream out) {
+			this.out = out;
+		}
+
+		private void writeBit(boolean bit) throws IOException {
+			writeBits(bit ? 1 : 0, 1);
+		}
+
+		//Writes the lowest numBits bits of the value
+		private void writeBits(long value, int count) throws IOException {
+			while (count > 0) {
+				int take = Math.min(count, 8 - numBits);
+				int chunk = (int) (value >>> (count - take)) & ((1 << take) - 1);
+				current = (current << take) | chunk;
+				numBits += take;
+				count -= take;
+				if (numBits == 8) {
+					out.write(current);
+					current = 0;
+					numBits = 0;
+				}
+			}
+		}
+
+		//Pads the last byte with 0s
+		private void flush() throws IOException {
+			if (numBits > 0)
+				writeBits(0, 8 - numBits);
+		}
+
+	}
+
+	private static final class BitInput {
+
+		private final InputStream in;
+		private int current = 0;
+		private int numBits = 0;
+
+		private BitInput(InputStream in) {
+			this.in = in;
+		}
+
+		private boolean readBit() throws IOException {
+			return readBits(1) == 1;
+		}
+
+		private long readBits(int count) throws IOException {
+			long value = 0;
+			while (count > 0) {
+				if (numBits == 0) {
+					current = in.read();
+					if (current == -1)
+						throw new EOFException();
+					numBits = 8;
+				}
+				int take = Math.min(count, numBits);
+				int chunk = (current >>> (numBits - take)) & ((1 << take) - 1);
+				value = (value << take) | chunk;
+				numBits -= take;
+				count -= take;
+			}
+			return value;
+		}
+
+	}
+
+}
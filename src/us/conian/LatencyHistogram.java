@@ -0,0 +1,122 @@
+package us.conian;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/* A histogram of latencies, in nanoseconds, with a fixed amount of memory no
+ * matter how many values are recorded or how large they are.
+ *
+ * Values are counted in buckets that are exact below 16ns, and above that
+ * split every power of 2 into 16 equal buckets, so any value reported (e.g. a
+ * percentile) is within about 6% of the true value. Recording is lock-free,
+ * and the histogram can be read while values are being recorded, though the
+ * results might then not include the most recent values.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	//enough buckets for every non-negative long
+	private static final int NUM_BUCKETS = SUB_BUCKETS + (Long.SIZE - 1 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder total = new LongAdder();
+	private final LongAccumulator min = new LongAccumulator(Math::min, Long.MAX_VALUE);
+	private final LongAccumulator max = new LongAccumulator(Math::max, Long.MIN_VALUE);
+
+	//Negative values are recorded as 0
+	public void record(long nanos) {
+		long value = Math.max(0, nanos);
+		buckets.incrementAndGet(bucket(value));
+		count.increment();
+		total.add(value);
+		min.accumulate(value);
+		max.accumulate(value);
+	}
+
+	public void record(Duration latency) {
+		if (latency == null)
+			throw new NullPointerException();
+		record(latency.toNanos());
+	}
+
+	private static int bucket(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+		int shift = Long.SIZE - 1 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+		return SUB_BUCKETS + shift * SUB_BUCKETS + subBucket;
+	}
+
+	//The largest value that is counted in the given bucket
+	private static long highestValue(int bucket) {
+		if (bucket < SUB_BUCKETS)
+			return bucket;
+		int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+		long lowest = (long) (SUB_BUCKETS + (bucket - SUB_BUCKETS) % SUB_BUCKETS) << shift;
+		return lowest + ((1L << shift) - 1);
+	}
+
+	public long count() {
+		return count.sum();
+	}
+
+	//All of the following return 0 if no values have been recorded
+
+	public long min() {
+		return count() == 0 ? 0 : min.get();
+	}
+
+	public long max() {
+		return count() == 0 ? 0 : max.get();
+	}
+
+	public double mean() {
+		long n = count();
+		return n == 0 ? 0 : (double) total.sum() / n;
+	}
+
+	/* The value that the given percentage (between 0 and 100) of the recorded
+	 * values are at or below
+	 */
+	public long percentile(double percentile) {
+		if (!(percentile >= 0 && percentile <= 100))
+			throw new IllegalArgumentException("The percentile must be between 0 and 100");
+		long[] counts = new long[NUM_BUCKETS];
+		long n = 0;
+		for (int b = 0; b < NUM_BUCKETS; b++) {
+			counts[b] = buckets.get(b);
+			n += counts[b];
+		}
+		if (n == 0)
+			return 0;
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+		long seen = 0;
+		for (int b = 0; b < NUM_BUCKETS; b++) {
+			seen += counts[b];
+			if (seen >= rank)
+				return Math.min(highestValue(b), max());
+		}
+		return max();
+	}
+
+	public void reset() {
+		for (int b = 0; b < NUM_BUCKETS; b++)
+			buckets.set(b, 0);
+		count.reset();
+		total.reset();
+		min.reset();
+		max.reset();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("count=%d min=%.3fms p50=%.3fms p99=%.3fms p99.9=%.3fms max=%.3fms mean=%.3fms",
+				count(), min() / 1e6, percentile(50) / 1e6, percentile(99) / 1e6,
+				percentile(99.9) / 1e6, max() / 1e6, mean() / 1e6);
+	}
+
+}
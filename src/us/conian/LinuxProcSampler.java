@@ -0,0 +1,460 @@
+package us.conian;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Clock;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/* A Sampler for Linux, which reads the per-process counters straight out of procfs
+ * (/proc/[pid]/stat, status, io and fd, as well as /proc/stat) instead of spawning
+ * a process and parsing its output. Where Linux has an equivalent of a counter
+ * Get-Counter reports, the Sample uses the same name for it, so the Samples can be
+ * used the same way as ones captured on Windows:
+ *
+ * % processor time, % user time,     utime + stime, utime and stime over the time since
+ * % privileged time                  the last sample, as a percentage of one CPU
+ * page faults/sec                    minflt + majflt per second
+ * virtual bytes, virtual bytes peak  VmSize and VmPeak
+ * working set, working set peak      VmRSS and VmHWM
+ * working set - private              RssAnon
+ * private bytes                      RssAnon + VmSwap
+ * thread count                       num_threads
+ * handle count                       the number of open file descriptors
+ * elapsed time                       seconds since the process started
+ * id process, creating process id    pid and ppid
+ * io read/write/data bytes/sec       rchar, wchar and both, per second
+ * io read/write/data operations/sec  syscr, syscw and both, per second
+ *
+ * Processes are named after their comm, in lower case and with the characters
+ * Get-Counter doesn't allow in instance names replaced the same way it does
+ * ("/" and "#" become "_", parentheses become brackets), so that every
+ * counterName is also a valid file name. The second and later instances of the
+ * same name get "#1", "#2", etc. in pid order. Rates are computed from the difference to the last
+ * sample of the same process, so the first sample of a process has rates of 0.
+ * Kernel threads have no address space, so their memory counters are 0. The io
+ * and fd entries of processes owned by other users can only be read with enough
+ * privileges; when they can't be read, those readings are left out of the Sample.
+ *
+ * File contents are read into a reused buffer and parsed in place. When given an
+ * Executor, the processes are split into batches that are read concurrently,
+ * each with its own buffer. Either way, a LinuxProcSampler must not be used
+ * by more than one thread at a time.
+ */
+public class LinuxProcSampler implements Sampler {
+
+	public static final Path PROC = Paths.get("/proc");
+
+	//The units procfs reports CPU times in (USER_HZ), which is 100 on practically every Linux system
+	public static final int DEFAULT_CLOCK_TICKS = 100;
+
+	private static final CounterSchema SCHEMA = CounterSchema.of(
+			"% processor time", "% user time", "% privileged time", "page faults/sec",
+			"virtual bytes", "virtual bytes peak", "working set", "working set peak",
+			"working set - private", "private bytes", "thread count", "handle count",
+			"elapsed time", "id process", "creating process id",
+			"io read bytes/sec", "io write bytes/sec", "io data bytes/sec",
+			"io read operations/sec", "io write operations/sec", "io data operations/sec"
+			);
+
+	private static final int PROCESSOR_TIME = SCHEMA.indexOf("% processor time");
+	private static final int USER_TIME = SCHEMA.indexOf("% user time");
+	private static final int PRIVILEGED_TIME = SCHEMA.indexOf("% privileged time");
+	private static final int PAGE_FAULTS = SCHEMA.indexOf("page faults/sec");
+	private static final int VIRTUAL_BYTES = SCHEMA.indexOf("virtual bytes");
+	private static final int VIRTUAL_BYTES_PEAK = SCHEMA.indexOf("virtual bytes peak");
+	private static final int WORKING_SET = SCHEMA.indexOf("working set");
+	private static final int WORKING_SET_PEAK = SCHEMA.indexOf("working set peak");
+	private static final int WORKING_SET_PRIVATE = SCHEMA.indexOf("working set - private");
+	private static final int PRIVATE_BYTES = SCHEMA.indexOf("private bytes");
+	private static final int THREAD_COUNT = SCHEMA.indexOf("thread count");
+	private static final int HANDLE_COUNT = SCHEMA.indexOf("handle count");
+	private static final int ELAPSED_TIME = SCHEMA.indexOf("elapsed time");
+	private static final int ID_PROCESS = SCHEMA.indexOf("id process");
+	private static final int CREATING_PROCESS_ID = SCHEMA.indexOf("creating process id");
+	private static final int IO_READ_BYTES = SCHEMA.indexOf("io read bytes/sec");
+	private static final int IO_WRITE_BYTES = SCHEMA.indexOf("io write bytes/sec");
+	private static final int IO_DATA_BYTES = SCHEMA.indexOf("io data bytes/sec");
+	private static final int IO_READ_OPERATIONS = SCHEMA.indexOf("io read operations/sec");
+	private static final int IO_WRITE_OPERATIONS = SCHEMA.indexOf("io write operations/sec");
+	private static final int IO_DATA_OPERATIONS = SCHEMA.indexOf("io data operations/sec");
+
+	private static final byte[] VM_PEAK = ascii("VmPeak:");
+	private static final byte[] VM_SIZE = ascii("VmSize:");
+	private static final byte[] VM_HWM = ascii("VmHWM:");
+	private static final byte[] VM_RSS = ascii("VmRSS:");
+	private static final byte[] RSS_ANON = ascii("RssAnon:");
+	private static final byte[] VM_SWAP = ascii("VmSwap:");
+	private static final byte[] RCHAR = ascii("rchar:");
+	private static final byte[] WCHAR = ascii("wchar:");
+	private static final byte[] SYSCR = ascii("syscr:");
+	private static final byte[] SYSCW = ascii("syscw:");
+	private static final byte[] BTIME = ascii("btime ");
+
+	//the number of processes read by each task when sampling with an Executor
+	private static final int PROCESSES_PER_TASK = 32;
+
+	private final Path proc;
+	private final int clockTicks;
+	private final Clock clock;
+	//the boot time in epoch seconds, which process start times are relative to
+	private final long bootTime;
+
+	//the cumulative values from the last sample of each process, by pid
+	private final Map<Integer, Cumulative> previous = new ConcurrentHashMap<>();
+
+	private final ProcReader reader = new ProcReader();
+
+	public LinuxProcSampler() throws IOException {
+		this(PROC, DEFAULT_CLOCK_TICKS, Clock.systemDefaultZone());
+	}
+
+	public LinuxProcSampler(Path proc, int clockTicks, Clock clock) throws IOException {
+		if (proc == null || clock == null)
+			throw new NullPointerException();
+		if (clockTicks < 1)
+			throw new IllegalArgumentException("The clock ticks must be a positive value");
+		this.proc = proc;
+		this.clockTicks = clockTicks;
+		this.clock = clock;
+		reader.read(proc.resolve("stat").toString());
+		long bootTime = reader.field(BTIME);
+		if (bootTime == -1)
+			throw new IOException("No boot time found in " + proc.resolve("stat"));
+		this.bootTime = bootTime;
+	}
+
+	//Whether this system has a procfs this Sampler can read
+	public static boolean isSupported() {
+		return Files.isReadable(PROC.resolve("stat")) && Files.isReadable(PROC.resolve("self").resolve("stat"));
+	}
+
+	private static byte[] ascii(String s) {
+		return s.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	@Override
+	public Map<String, Sample> sample() throws IOException {
+		LocalDateTime timestamp = LocalDateTime.now(clock);
+		return toSamples(timestamp, snapshots(reader, pids()));
+	}
+
+	@Override
+	public Map<String, Sample> sample(Executor executor) throws IOException {
+		if (executor == null)
+			throw new NullPointerException();
+		LocalDateTime timestamp = LocalDateTime.now(clock);
+		List<Integer> pids = pids();
+		List<CompletableFuture<List<Snapshot>>> tasks = new ArrayList<>();
+		for (int from = 0; from < pids.size(); from += PROCESSES_PER_TASK) {
+			List<Integer> batch = pids.subList(from, Math.min(from + PROCESSES_PER_TASK, pids.size()));
+			tasks.add(CompletableFuture.supplyAsync(() -> snapshots(new ProcReader(), batch), executor));
+		}
+		List<Snapshot> snapshots = new ArrayList<>(pids.size());
+		for (CompletableFuture<List<Snapshot>> task : tasks)
+			snapshots.addAll(task.join());
+		return toSamples(timestamp, snapshots);
+	}
+
+	private List<Snapshot> snapshots(ProcReader reader, List<Integer> pids) {
+		List<Snapshot> snapshots = new ArrayList<>(pids.size());
+		for (int pid : pids) {
+			Snapshot snapshot = snapshot(reader, pid);
+			if (snapshot != null)
+				snapshots.add(snapshot);
+		}
+		return snapshots;
+	}
+
+	//The snapshots must be in pid order
+	private Map<String, Sample> toSamples(LocalDateTime timestamp, List<Snapshot> snapshots) {
+		Set<Integer> alive = new HashSet<>();
+		Map<String, Integer> counters = new HashMap<>();
+		Map<String, Sample> samples = new HashMap<>();
+		for (Snapshot snapshot : snapshots) {
+			alive.add(snapshot.pid);
+			int count = counters.merge(snapshot.name, 1, Integer::sum) - 1;
+			String counterName = snapshot.name + (count == 0 ? "" : "#" + count);
+			samples.put(counterName, toSample(timestamp, snapshot));
+		}
+		//forget the processes that have exited
+		previous.keySet().retainAll(alive);
+		return samples;
+	}
+
+	//In ascending order, so instance numbers are handed out in pid order
+	private List<Integer> pids() throws IOException {
+		List<Integer> pids = new ArrayList<>();
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(proc)) {
+			for (Path entry : entries) {
+				String name = entry.getFileName().toString();
+				if (!name.isEmpty() && name.chars().allMatch((ch) -> ch >= '0' && ch <= '9'))
+					pids.add(Integer.parseInt(name));
+			}
+		}
+		Collections.sort(pids);
+		return pids;
+	}
+
+	/* The readings of a single process. Returns null if the process exited
+	 * while it was being read.
+	 */
+	private Snapshot snapshot(ProcReader reader, int pid) {
+		String directory = proc.toString() + "/" + pid + "/";
+		Snapshot snapshot = new Snapshot(pid);
+		snapshot.nanos = System.nanoTime();
+		try {
+			reader.read(directory + "stat");
+			if (!reader.parseStat(snapshot))
+				return null;
+			//the memory fields are all in kB
+			reader.read(directory + "status");
+			snapshot.vmPeak = reader.field(VM_PEAK);
+			snapshot.vmSize = reader.field(VM_SIZE);
+			snapshot.vmHwm = reader.field(VM_HWM);
+			snapshot.vmRss = reader.field(VM_RSS);
+			snapshot.rssAnon = reader.field(RSS_ANON);
+			snapshot.vmSwap = reader.field(VM_SWAP);
+		} catch (IOException unused) {
+			return null;
+		}
+		try {
+			reader.read(directory + "io");
+			snapshot.rchar = reader.field(RCHAR);
+			snapshot.wchar = reader.field(WCHAR);
+			snapshot.syscr = reader.field(SYSCR);
+			snapshot.syscw = reader.field(SYSCW);
+		} catch (IOException unused) {
+			//not permitted, the io readings are left out
+		}
+		snapshot.handles = countHandles(Paths.get(directory, "fd"));
+		return snapshot;
+	}
+
+	private static long countHandles(Path fd) {
+		long count = 0;
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(fd)) {
+			for (Iterator<Path> it = entries.iterator(); it.hasNext(); it.next())
+				count++;
+		} catch (IOException | RuntimeException unused) {
+			return -1;
+		}
+		return count;
+	}
+
+	private Sample toSample(LocalDateTime timestamp, Snapshot snapshot) {
+		double[] values = new double[SCHEMA.size()];
+		Arrays.fill(values, Double.NaN);
+		values[ID_PROCESS] = snapshot.pid;
+		values[CREATING_PROCESS_ID] = snapshot.ppid;
+		values[THREAD_COUNT] = snapshot.numThreads;
+		//the boot time only has a resolution of seconds, so this can come out slightly negative
+		double elapsed = clock.millis() / 1000.0 - bootTime - (double) snapshot.startTime / clockTicks;
+		values[ELAPSED_TIME] = Math.max(0, elapsed);
+		values[VIRTUAL_BYTES] = bytes(snapshot.vmSize);
+		values[VIRTUAL_BYTES_PEAK] = bytes(snapshot.vmPeak);
+		values[WORKING_SET] = bytes(snapshot.vmRss);
+		values[WORKING_SET_PEAK] = bytes(snapshot.vmHwm);
+		values[WORKING_SET_PRIVATE] = bytes(snapshot.rssAnon);
+		values[PRIVATE_BYTES] = bytes(snapshot.rssAnon) + bytes(snapshot.vmSwap);
+		if (snapshot.handles != -1)
+			values[HANDLE_COUNT] = snapshot.handles;
+		Cumulative current = snapshot.cumulative();
+		Cumulative last = previous.put(snapshot.pid, current);
+		//a different start time means the pid has been reused by a new process
+		if (last == null || last.startTime != current.startTime || current.nanos <= last.nanos)
+			last = current;
+		double seconds = last == current ? 1 : (current.nanos - last.nanos) / 1e9;
+		double userTime = (current.userTicks - last.userTicks) * 100.0 / clockTicks / seconds;
+		double privilegedTime = (current.systemTicks - last.systemTicks) * 100.0 / clockTicks / seconds;
+		values[USER_TIME] = userTime;
+		values[PRIVILEGED_TIME] = privilegedTime;
+		values[PROCESSOR_TIME] = userTime + privilegedTime;
+		values[PAGE_FAULTS] = (current.faults - last.faults) / seconds;
+		if (current.rchar != -1 && last.rchar != -1) {
+			values[IO_READ_BYTES] = (current.rchar - last.rchar) / seconds;
+			values[IO_WRITE_BYTES] = (current.wchar - last.wchar) / seconds;
+			values[IO_DATA_BYTES] = values[IO_READ_BYTES] + values[IO_WRITE_BYTES];
+			values[IO_READ_OPERATIONS] = (current.syscr - last.syscr) / seconds;
+			values[IO_WRITE_OPERATIONS] = (current.syscw - last.syscw) / seconds;
+			values[IO_DATA_OPERATIONS] = values[IO_READ_OPERATIONS] + values[IO_WRITE_OPERATIONS];
+		}
+		int present = 0;
+		for (double v : values) {
+			if (!Double.isNaN(v))
+				present++;
+		}
+		if (present == values.length)
+			return new Sample(timestamp, SCHEMA, values, true);
+		int[] indices = new int[present];
+		double[] presentValues = new double[present];
+		for (int i = 0, j = 0; i < values.length; i++) {
+			if (!Double.isNaN(values[i])) {
+				indices[j] = i;
+				presentValues[j++] = values[i];
+			}
+		}
+		return new Sample(timestamp, SCHEMA.subSchema(indices), presentValues, true);
+	}
+
+	//Missing memory fields mean the process has no address space (e.g. kernel threads)
+	private static double bytes(long kilobytes) {
+		return kilobytes == -1 ? 0 : kilobytes * 1024.0;
+	}
+
+	//Reads procfs files into a reused buffer, and parses the fields out of them
+	private static final class ProcReader {
+
+		private byte[] buffer = new byte[8192];
+		private int length;
+
+		private void read(String file) throws IOException {
+			length = 0;
+			try (InputStream in = new FileInputStream(file)) {
+				int n;
+				while ((n = in.read(buffer, length, buffer.length - length)) != -1) {
+					length += n;
+					if (length == buffer.length)
+						buffer = Arrays.copyOf(buffer, buffer.length * 2);
+				}
+			}
+		}
+
+		/* The fields of /proc/[pid]/stat follow the comm, which is in parentheses
+		 * and may itself contain spaces and parentheses, so the fields are counted
+		 * from the last ')'. Returns false if the contents are not as expected.
+		 */
+		private boolean parseStat(Snapshot snapshot) {
+			int open = -1;
+			int close = -1;
+			for (int i = 0; i < length; i++) {
+				if (buffer[i] == '(' && open == -1)
+					open = i;
+				else if (buffer[i] == ')')
+					close = i;
+			}
+			if (open == -1 || close < open || close + 2 >= length)
+				return false;
+			snapshot.name = new String(buffer, open + 1, close - open - 1, StandardCharsets.UTF_8)
+					.toLowerCase(Locale.ROOT)
+					.replace('/', '_')
+					.replace('#', '_')
+					.replace('(', '[')
+					.replace(')', ']');
+			//field 3 (the state) starts after ") "
+			long[] fields = new long[23];
+			int field = 3;
+			int i = close + 2;
+			while (i < length && field < fields.length) {
+				int start = i;
+				while (i < length && buffer[i] != ' ' && buffer[i] != '\n')
+					i++;
+				fields[field++] = parseLong(start, i);
+				i++;
+			}
+			if (field < fields.length)
+				return false;
+			snapshot.ppid = fields[4];
+			snapshot.faults = fields[10] + fields[12];
+			snapshot.userTicks = fields[14];
+			snapshot.systemTicks = fields[15];
+			snapshot.numThreads = fields[20];
+			snapshot.startTime = fields[22];
+			return true;
+		}
+
+		//Returns -1 for anything that isn't a non-negative integer
+		private long parseLong(int from, int to) {
+			if (from >= to)
+				return -1;
+			long value = 0;
+			for (int i = from; i < to; i++) {
+				byte b = buffer[i];
+				if (b < '0' || b > '9')
+					return -1;
+				value = value * 10 + (b - '0');
+			}
+			return value;
+		}
+
+		/* Finds the line starting with the given key, and parses the number following
+		 * it (and any whitespace). Returns -1 if there is no such line.
+		 */
+		private long field(byte[] key) {
+			int lineStart = 0;
+			while (lineStart < length) {
+				if (startsWith(lineStart, key)) {
+					int from = lineStart + key.length;
+					while (from < length && (buffer[from] == ' ' || buffer[from] == '\t'))
+						from++;
+					int to = from;
+					while (to < length && buffer[to] >= '0' && buffer[to] <= '9')
+						to++;
+					return parseLong(from, to);
+				}
+				while (lineStart < length && buffer[lineStart] != '\n')
+					lineStart++;
+				lineStart++;
+			}
+			return -1;
+		}
+
+		private boolean startsWith(int from, byte[] key) {
+			if (from + key.length > length)
+				return false;
+			for (int i = 0; i < key.length; i++) {
+				if (buffer[from + i] != key[i])
+					return false;
+			}
+			return true;
+		}
+
+	}
+
+	private static final class Snapshot {
+
+		private final int pid;
+		private String name;
+		private long nanos;
+		private long ppid;
+		private long faults;
+		private long userTicks;
+		private long systemTicks;
+		private long numThreads;
+		private long startTime;
+		private long vmPeak;
+		private long vmSize;
+		private long vmHwm;
+		private long vmRss;
+		private long rssAnon;
+		private long vmSwap;
+		private long rchar = -1;
+		private long wchar = -1;
+		private long syscr = -1;
+		private long syscw = -1;
+		private long handles = -1;
+
+		private Snapshot(int pid) {
+			this.pid = pid;
+		}
+
+		private Cumulative cumulative() {
+			return new Cumulative(startTime, nanos, userTicks, systemTicks, faults, rchar, wchar, syscr, syscw);
+		}
+
+	}
+
+	//The counters rates are computed from, as of a sample
+	private static record Cumulative(long startTime, long nanos, long userTicks, long systemTicks, long faults,
+			long rchar, long wchar, long syscr, long syscw) {}
+
+}
@@ -0,0 +1,187 @@
+package us.conian;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiConsumer;
+
+/* Holds the most recent Samples of every process while sampling continuously,
+ * so memory stays constant no matter how long a collector runs. Each
+ * counterName gets a fixed-capacity ring buffer, and once it is full every new
+ * Sample overwrites the oldest one.
+ *
+ * The store is meant to be the consumer of a SamplingScheduler (or anything
+ * else that delivers each process's Samples from a single thread, in
+ * chronological order): only one thread may write to a given counterName at a
+ * time. Any number of threads may read concurrently. Neither writing nor
+ * reading takes a lock, and readers never wait on the writer; a reader that is
+ * overtaken by the writer while copying just drops the Samples that were
+ * overwritten under it.
+ *
+ * Processes that exit stop receiving Samples, and drop out of snapshots once
+ * their Samples fall outside the window. Their buffers can be freed with
+ * removeIdle.
+ */
+public class LiveSampleStore implements BiConsumer<String, Sample> {
+
+	private final int capacity;
+	private final Map<String, Ring> rings = new ConcurrentHashMap<>();
+	//the timestamp of the newest Sample accepted for any process, in epoch nanos
+	private final AtomicLong latest = new AtomicLong(Long.MIN_VALUE);
+
+	//capacity is the number of Samples kept for each process
+	public LiveSampleStore(int capacity) {
+		if (capacity < 2)
+			throw new IllegalArgumentException("The capacity must be at least 2");
+		this.capacity = capacity;
+	}
+
+	@Override
+	public void accept(String counterName, Sample sample) {
+		if (counterName == null || sample == null)
+			throw new NullPointerException();
+		long timestamp = sample.epochNanos();
+		rings.computeIfAbsent(counterName, (unused) -> new Ring(capacity)).add(sample);
+		latest.accumulateAndGet(timestamp, Math::max);
+	}
+
+	public int capacity() {
+		return capacity;
+	}
+
+	public Set<String> counterNames() {
+		return Collections.unmodifiableSet(rings.keySet());
+	}
+
+	//null if nothing has been accepted yet
+	public LocalDateTime latestTimestamp() {
+		long timestamp = latest.get();
+		return timestamp == Long.MIN_VALUE ? null : SampleUtils.fromEpochNanos(timestamp);
+	}
+
+	/* The Samples of the given process taken within the window before the latest
+	 * timestamp of the store (i.e. after latestTimestamp() - window), oldest first.
+	 * Returns null if there are fewer than 2 such Samples, since a SampleSet needs at
+	 * least 2. The SampleSet is not asserted to be genuine or complete.
+	 */
+	public SampleSet snapshot(String counterName, Duration window) {
+		if (counterName == null || window == null)
+			throw new NullPointerException();
+		if (window.isNegative())
+			throw new IllegalArgumentException("The window must not be negative");
+		Ring ring = rings.get(counterName);
+		if (ring == null)
+			return null;
+		List<Sample> samples = ring.within(window);
+		return samples.size() < 2 ? null : new SampleSet(counterName, samples, false, false);
+	}
+
+	//The snapshots of every process that has at least 2 Samples within the window
+	public Map<String, SampleSet> snapshot(Duration window) {
+		if (window == null)
+			throw new NullPointerException();
+		if (window.isNegative())
+			throw new IllegalArgumentException("The window must not be negative");
+		Map<String, SampleSet> snapshots = new HashMap<>();
+		for (Map.Entry<String, Ring> entry : rings.entrySet()) {
+			List<Sample> samples = entry.getValue().within(window);
+			if (samples.size() >= 2)
+				snapshots.put(entry.getKey(), new SampleSet(entry.getKey(), samples, false, false));
+		}
+		return snapshots;
+	}
+
+	private static long cutoff(long timestamp, Duration window) {
+		try {
+			return Math.subtractExact(timestamp, window.toNanos());
+		} catch (ArithmeticException unused) {
+			//the window reaches back further than any timestamp can
+			return Long.MIN_VALUE;
+		}
+	}
+
+	/* Removes the buffers of processes whose newest Sample is older than
+	 * latestTimestamp() - idle, and returns their counterNames. This must not
+	 * race with Samples being accepted for those processes.
+	 */
+	public Set<String> removeIdle(Duration idle) {
+		if (idle == null)
+			throw new NullPointerException();
+		long timestamp = latest.get();
+		if (timestamp == Long.MIN_VALUE)
+			return Set.of();
+		long cutoff = cutoff(timestamp, idle);
+		Set<String> removed = new HashSet<>();
+		rings.entrySet().removeIf((entry) -> {
+			if (entry.getValue().newestTimestamp() < cutoff) {
+				removed.add(entry.getKey());
+				return true;
+			}
+			return false;
+		});
+		return removed;
+	}
+
+	/* A single-writer ring buffer. The writer stores a Sample in its slot and only
+	 * then publishes the new count, so readers never see a slot before it is filled
+	 * in. A reader reads the count, copies the slots, then reads the count again: any
+	 * slot the writer could have reached in between (including the one it may be
+	 * writing right now) may hold a newer Sample than expected, so those are discarded.
+	 * There is one more slot than the capacity, so that the slot being written is
+	 * never one of the capacity Samples a reader can see.
+	 */
+	private final class Ring {
+
+		private final int slots;
+		private final AtomicReferenceArray<Sample> samples;
+		//the number of Samples ever written
+		private final AtomicLong count = new AtomicLong();
+
+		private Ring(int capacity) {
+			this.slots = capacity + 1;
+			this.samples = new AtomicReferenceArray<>(slots);
+		}
+
+		private void add(Sample sample) {
+			long n = count.get();
+			samples.lazySet((int) (n % slots), sample);
+			//an ordered write, so any reader that sees the new count also sees the slot
+			count.lazySet(n + 1);
+		}
+
+		private long newestTimestamp() {
+			long n = count.get();
+			return n == 0 ? Long.MIN_VALUE : samples.get((int) ((n - 1) % slots)).epochNanos();
+		}
+
+		/* The Samples within the window before the store's latest timestamp, oldest
+		 * first. The latest timestamp is read after copying, so the window is never
+		 * behind the Samples that were copied.
+		 */
+		private List<Sample> within(Duration window) {
+			long end = count.get();
+			long start = Math.max(0, end - capacity);
+			Sample[] copy = new Sample[(int) (end - start)];
+			for (long i = start; i < end; i++)
+				copy[(int) (i - start)] = samples.get((int) (i % slots));
+			//anything the writer might have overwritten while copying is dropped
+			long valid = Math.max(start, count.get() - slots + 1);
+			if (valid >= end)
+				return List.of();
+			long newest = copy[copy.length - 1].epochNanos();
+			long cutoff = cutoff(Math.max(newest, latest.get()), window);
+			List<Sample> result = new ArrayList<>(copy.length);
+			for (long i = valid; i < end; i++) {
+				Sample sample = copy[(int) (i - start)];
+				if (sample.epochNanos() > cutoff)
+					result.add(sample);
+			}
+			return result;
+		}
+
+	}
+
+}
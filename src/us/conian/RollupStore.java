@@ -0,0 +1,112 @@
+package us.conian;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/* Maintains a SampleRollup for every process while sampling continuously, and
+ * stores them in the capture directory next to the raw Samples files (as
+ * counterName + SampleRollup.FILE_EXTENSION). Rollups already in the directory
+ * are picked up again, so a collector that is restarted keeps adding to them.
+ *
+ * Like LiveSampleStore, the store is meant to be the consumer of a
+ * SamplingScheduler: each process's Samples must be delivered in chronological
+ * order. The store is thread-safe, and can be saved and queried while Samples
+ * are being accepted.
+ */
+public class RollupStore implements BiConsumer<String, Sample> {
+
+	private final File directory;
+	private final List<Duration> resolutions;
+	private final Map<String, SampleRollup> rollups = new ConcurrentHashMap<>();
+	//the rollups that have accepted Samples since they were last saved
+	private final Set<String> dirty = ConcurrentHashMap.newKeySet();
+
+	public RollupStore(File directory, Collection<Duration> resolutions) {
+		if (directory == null || resolutions == null)
+			throw new NullPointerException();
+		//validates the resolutions up front, rather than on the first Sample
+		this.resolutions = new SampleRollup("", resolutions).resolutions();
+		this.directory = directory;
+		if (directory.isDirectory()) {
+			File[] files = directory.listFiles((f) -> f.isFile() && f.getName().endsWith(SampleRollup.FILE_EXTENSION));
+			if (files != null) {
+				for (File f : files) {
+					try {
+						SampleRollup rollup = SampleRollup.read(f.toPath());
+						if (rollup.resolutions().equals(this.resolutions))
+							rollups.put(rollup.counterName(), rollup);
+						else System.err.println("Ignoring Samples rollup with different resolutions: " + f.getAbsolutePath());
+					} catch(Exception e) {
+						System.err.println("Failed to read Samples rollup "
+								+ f.getAbsolutePath() + ": " + e.getLocalizedMessage());
+					}
+				}
+			}
+		}
+	}
+
+	public RollupStore(File directory) {
+		this(directory, SampleRollup.DEFAULT_RESOLUTIONS);
+	}
+
+	@Override
+	public void accept(String counterName, Sample sample) {
+		if (counterName == null || sample == null)
+			throw new NullPointerException();
+		rollups.computeIfAbsent(counterName, (unused) -> new SampleRollup(counterName, resolutions)).accept(sample);
+		dirty.add(counterName);
+	}
+
+	public File directory() {
+		return directory;
+	}
+
+	public List<Duration> resolutions() {
+		return resolutions;
+	}
+
+	public Set<String> counterNames() {
+		return Collections.unmodifiableSet(rollups.keySet());
+	}
+
+	//null if the process has no rollup
+	public SampleRollup rollup(String counterName) {
+		if (counterName == null)
+			throw new NullPointerException();
+		return rollups.get(counterName);
+	}
+
+	/* See SampleRollup#query. Returns null if the process has no rollup. */
+	public SampleRollup.Buckets query(String counterName, Collection<String> counters, LocalDateTime from, LocalDateTime to, Duration resolution) {
+		SampleRollup rollup = rollup(counterName);
+		return rollup == null ? null : rollup.query(counters, from, to, resolution);
+	}
+
+	/* Writes every rollup that has changed since it was last saved into the
+	 * directory (which is created if needed), and returns how many were written.
+	 * Rollups that fail to save are reported to System.err and tried again next time.
+	 */
+	public int save() throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Failed to create directory: " + directory.getAbsolutePath());
+		int saved = 0;
+		for (String counterName : new ArrayList<>(dirty)) {
+			//removed before writing, so Samples accepted while writing mark it dirty again
+			dirty.remove(counterName);
+			try {
+				rollups.get(counterName).write(new File(directory, counterName + SampleRollup.FILE_EXTENSION).toPath());
+				saved++;
+			} catch(IOException e) {
+				dirty.add(counterName);
+				System.err.println("Failed to save Samples rollup for " + counterName + ": " + e.getLocalizedMessage());
+			}
+		}
+		return saved;
+	}
+
+}
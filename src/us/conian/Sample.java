@@ -1,6 +1,7 @@
 package us.conian;
 
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.util.*;
 
 public class Sample implements Iterable<Sample.Reading> {
@@ -40,15 +41,20 @@ public class Sample implements Iterable<Sample.Reading> {
 		
 		@Override
 		public String toString() {
-			return name + ", " + (SampleUtils.isWhole(value) 
-					? SampleUtils.LONG_FORMAT.format(value) 
-					: SampleUtils.DOUBLE_FORMAT.format(value));
+			return SampleUtils.appendValue(new StringBuilder(name.length() + 24).append(name).append(", "), value).toString();
 		}
 		
 	}
 	
-	private final LocalDateTime timestamp;
-	private final Reading[] readings;
+	/* The timestamp is kept as epoch seconds and nanos (treating it as UTC, the
+	 * same as SampleUtils#toEpochNanos) rather than as a LocalDateTime, since
+	 * comparing and converting timestamps is most of what is done with them.
+	 * Seconds and nanos are kept apart so that any LocalDateTime still fits.
+	 */
+	private final long epochSecond;
+	private final int nano;
+	private final CounterSchema schema;
+	private final double[] values;
 	private final boolean dead;
 	
 	private final int hashCode;
@@ -56,62 +62,125 @@ public class Sample implements Iterable<Sample.Reading> {
 	public Sample(LocalDateTime timestamp, Reading[] readings) {
 		if (timestamp == null || readings == null)
 			throw new NullPointerException();
-		this.timestamp = timestamp;
-		this.readings = readings.clone();
-		Arrays.sort(this.readings, Reading::compareNames);
-		if (this.readings.length > 1) {
-			for (int i = 1; i < this.readings.length; i++) {
-				if (this.readings[i - 1].compareNames(this.readings[i]) == 0)
-					throw new IllegalArgumentException("Duplicate readings found");
-			}
+		Reading[] sorted = readings.clone();
+		Arrays.sort(sorted, Reading::compareNames);
+		String[] names = new String[sorted.length];
+		double[] values = new double[sorted.length];
+		for (int i = 0; i < sorted.length; i++) {
+			if (i > 0 && sorted[i - 1].compareNames(sorted[i]) == 0)
+				throw new IllegalArgumentException("Duplicate readings found");
+			names[i] = sorted[i].name();
+			values[i] = sorted[i].value();
 		}
+		this.epochSecond = timestamp.toEpochSecond(ZoneOffset.UTC);
+		this.nano = timestamp.getNano();
+		this.schema = CounterSchema.ofSorted(names);
+		this.values = values;
+		this.dead = calcDead();
+		this.hashCode = computeHashCode();
+	}
+	
+	/* values[i] is the value of the reading for schema.name(i). The
+	 * values are copied.
+	 */
+	public Sample(LocalDateTime timestamp, CounterSchema schema, double[] values) {
+		this(timestamp, schema, validate(schema, values).clone(), false);
+	}
+	
+	//Used internally when the values are already known to be valid, in which case they are not copied
+	Sample(LocalDateTime timestamp, CounterSchema schema, double[] values, boolean unused) {
+		this(timestamp.toEpochSecond(ZoneOffset.UTC), timestamp.getNano(), schema, values);
+	}
+	
+	//Used internally by SampleSets, which store timestamps as epoch nanos. The values are not copied
+	Sample(long epochNanos, CounterSchema schema, double[] values, boolean unused) {
+		this(Math.floorDiv(epochNanos, SampleUtils.NANOS_PER_SECOND), (int) Math.floorMod(epochNanos, SampleUtils.NANOS_PER_SECOND), schema, values);
+	}
+	
+	private Sample(long epochSecond, int nano, CounterSchema schema, double[] values) {
+		if (schema == null || values == null)
+			throw new NullPointerException();
+		this.epochSecond = epochSecond;
+		this.nano = nano;
+		this.schema = schema;
+		this.values = values;
 		this.dead = calcDead();
 		this.hashCode = computeHashCode();
 	}
 	
+	private static double[] validate(CounterSchema schema, double[] values) {
+		if (schema == null || values == null)
+			throw new NullPointerException();
+		if (values.length != schema.size())
+			throw new IllegalArgumentException("Expected " + schema.size() + " values, received " + values.length);
+		for (double v : values) {
+			if (v < 0)
+				throw new IllegalArgumentException("The value must be positive");
+		}
+		return values;
+	}
+	
 	public LocalDateTime timestamp() {
-		return timestamp;
+		return LocalDateTime.ofEpochSecond(epochSecond, nano, ZoneOffset.UTC);
+	}
+	
+	public long epochSecond() {
+		return epochSecond;
+	}
+	
+	/* The timestamp in epoch nanos (see SampleUtils#toEpochNanos). Throws an
+	 * ArithmeticException if the timestamp can't be represented that way
+	 */
+	public long epochNanos() {
+		return Math.addExact(Math.multiplyExact(epochSecond, SampleUtils.NANOS_PER_SECOND), nano);
+	}
+	
+	public int compareTimestamps(Sample other) {
+		if (other == null)
+			throw new NullPointerException();
+		int secondComp = Long.compare(epochSecond, other.epochSecond);
+		return secondComp != 0 ? secondComp : Integer.compare(nano, other.nano);
+	}
+	
+	public CounterSchema schema() {
+		return schema;
 	}
 	
 	public int numReadings() {
-		return readings.length;
+		return values.length;
 	}
 	
 	public Reading[] readings() {
-		return readings.clone();
+		Reading[] readings = new Reading[values.length];
+		for (int i = 0; i < readings.length; i++)
+			readings[i] = get(i);
+		return readings;
 	}
 	
 	public double[] asVector() {
-		double[] vector = new double[readings.length];
-		int index = 0;
-		for (Reading r : readings) {
-			vector[index++] = r.value();
-		}
-		return vector;
+		return values.clone();
 	}
 	
 	public Reading get(int i) {
-		return readings[i];
+		return new Reading(schema.name(i), values[i]);
+	}
+	
+	public double value(int i) {
+		return values[i];
 	}
 	
 	public Reading getReading(String name) {
-		if (name == null)
-			throw new NullPointerException();
-		for (Reading r : readings)
-			if (r.name.equalsIgnoreCase(name))
-				return r;
-		return null;
+		int index = schema.indexOf(name);
+		return index == -1 ? null : get(index);
 	}
 	
 	public boolean hasReading(String name) {
-		if (name == null)
-			throw new NullPointerException();
-		return getReading(name) != null;
+		return schema.indexOf(name) != -1;
 	}
 	
 	private boolean calcDead() {
-		for (Reading r : readings) {
-			if (!SampleUtils.isWhole(r.value) || Double.doubleToLongBits(r.value) != 0)
+		for (double v : values) {
+			if (!SampleUtils.isWhole(v) || Double.doubleToLongBits(v) != 0)
 				return false;
 		}
 		return true;
@@ -132,12 +201,13 @@ public class Sample implements Iterable<Sample.Reading> {
 	 */
 	
 	public Sample minusMetaReadings() {
-		return new Sample(
-				timestamp,
-				Arrays.stream(readings)
-				.filter((r) -> !SampleUtils.META_READINGS.contains(r.name()))
-				.toArray(Reading[]::new)
-				);
+		CounterSchema minusMeta = schema.minusMetaReadings();
+		if (minusMeta == schema)
+			return this;
+		double[] kept = new double[minusMeta.size()];
+		for (int i = 0; i < kept.length; i++)
+			kept[i] = values[schema.indexOf(minusMeta.name(i))];
+		return new Sample(epochSecond, nano, minusMeta, kept);
 	}
 	
 	@Override
@@ -151,18 +221,18 @@ public class Sample implements Iterable<Sample.Reading> {
 	}
 	
 	private int computeHashCode() {
-		int hashCode = timestamp.hashCode();
-		for (Reading r : readings) {
-			hashCode ^= r.hashCode();
-		}
-		return hashCode;
+		return Long.hashCode(epochSecond) ^ nano ^ schema.hashCode() ^ Arrays.hashCode(values);
 	}
 	
+	//CounterSchemas are interned, so they can be compared by identity
 	@Override
 	public boolean equals(Object obj) {
 		return obj instanceof Sample s
-				&& s.timestamp().equals(timestamp)
-				&& Arrays.equals(s.readings, readings);
+				&& s.hashCode == hashCode
+				&& s.schema == schema
+				&& s.epochSecond == epochSecond
+				&& s.nano == nano
+				&& Arrays.equals(s.values, values);
 	}
 	
 	private class ReadingIterator implements Iterator<Reading> {
@@ -171,14 +241,14 @@ public class Sample implements Iterable<Sample.Reading> {
 		
 		@Override
 		public boolean hasNext() {
-			return index < readings.length; 
+			return index < values.length; 
 		}
 		
 		@Override
 		public Reading next() throws NoSuchElementException {
 			if (!hasNext())
 				throw new NoSuchElementException();
-			return readings[index++];
+			return get(index++);
 		}
 		
 	}
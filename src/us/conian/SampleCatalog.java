@@ -0,0 +1,344 @@
+package us.conian;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.file.*;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.*;
+
+/* A persistent index of every Samples file (and every SampleSet in every capture
+ * archive) under a directory, usually CLIUtils.DATA_FOLDER, so that only the files
+ * a query actually needs get parsed, instead of everything loadSampleSets finds.
+ *
+ * For every SampleSet the catalog records its counterName, processName, time range,
+ * number of samples, counters, and whether it is genuine and complete. The catalog
+ * is saved in the directory itself (as CATALOG_FILE_NAME). refresh() only re-reads
+ * the files that were added, or whose size or last modified time changed since
+ * the catalog was last saved, so keeping it up to date is cheap.
+ *
+ * Queries can be made from any number of threads, including while refreshing
+ * (they see the catalog as it was before the refresh).
+ *
+ * Layout of the catalog file (big-endian, strings as written by DataOutputStream#writeUTF):
+ *
+ * int     MAGIC
+ * int     VERSION
+ * int     number of distinct counter sets
+ * (each counter set) int number of counters, then each counter name
+ * int     number of files
+ * (each file) string path relative to the directory (with '/' separators),
+ *             long size, long last modified time in millis, int number of SampleSets
+ * (each SampleSet) string counterName, string processName, int number of samples,
+ *                  long first timestamp, long last timestamp (in epoch nanos),
+ *                  int index of its counter set, boolean genuine, boolean complete
+ */
+public class SampleCatalog {
+
+	public static final String CATALOG_FILE_NAME = "catalog.tcat";
+
+	private static final int MAGIC = 0x54434154;//"TCAT"
+	private static final int VERSION = 1;
+
+	/* A SampleSet known to the catalog. Timestamps are in epoch nanos
+	 * (see SampleUtils#toEpochNanos).
+	 */
+	public static record Entry(Path file, String counterName, String processName, int numSamples,
+			long firstTimestamp, long lastTimestamp, CounterSchema counters, boolean genuine, boolean complete) {
+
+		public LocalDateTime start() {
+			return SampleUtils.fromEpochNanos(firstTimestamp);
+		}
+
+		public LocalDateTime end() {
+			return SampleUtils.fromEpochNanos(lastTimestamp);
+		}
+
+		public boolean isArchived() {
+			return CaptureArchive.FILE_FILTER.accept(file.toFile());
+		}
+
+		/* Whether any of the entry's samples were taken in [from, to). Either
+		 * bound may be null, meaning unbounded.
+		 */
+		public boolean overlaps(LocalDateTime from, LocalDateTime to) {
+			return (from == null || lastTimestamp >= SampleUtils.toEpochNanos(from))
+					&& (to == null || firstTimestamp < SampleUtils.toEpochNanos(to));
+		}
+
+	}
+
+	//What is known about a single file, and what it looked like when it was read
+	private static record FileEntry(Path file, long size, long lastModified, List<Entry> entries) { }
+
+	private final File directory;
+	private final Path catalogFile;
+	private final int parallelism;
+
+	//replaced as a whole on every refresh, so readers never see a partial update
+	private volatile Map<Path, FileEntry> files = Map.of();
+	private volatile Map<String, List<Entry>> byProcessName = Map.of();
+	private volatile List<Entry> entries = List.of();
+
+	private SampleCatalog(File directory, int parallelism) {
+		this.directory = directory;
+		this.catalogFile = new File(directory, CATALOG_FILE_NAME).toPath();
+		this.parallelism = parallelism;
+	}
+
+	public static SampleCatalog open(File directory) throws IOException {
+		return open(directory, Runtime.getRuntime().availableProcessors());
+	}
+
+	/* Loads the directory's saved catalog (if there is one), then refreshes it,
+	 * reading up to parallelism changed files at once
+	 */
+	public static SampleCatalog open(File directory, int parallelism) throws IOException {
+		if (directory == null)
+			throw new NullPointerException();
+		if (!directory.isDirectory())
+			throw new IllegalArgumentException("Given File is not a directory: " + directory.getAbsolutePath());
+		if (parallelism < 1)
+			throw new IllegalArgumentException("The parallelism must be a positive value");
+		SampleCatalog catalog = new SampleCatalog(directory, parallelism);
+		catalog.load();
+		catalog.refresh();
+		return catalog;
+	}
+
+	public File directory() {
+		return directory;
+	}
+
+	private void load() {
+		if (!Files.isRegularFile(catalogFile))
+			return;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(catalogFile)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				throw new IOException("Not a catalog file, or an unsupported version");
+			CounterSchema[] schemas = new CounterSchema[in.readInt()];
+			for (int i = 0; i < schemas.length; i++) {
+				String[] names = new String[in.readInt()];
+				for (int c = 0; c < names.length; c++)
+					names[c] = in.readUTF();
+				schemas[i] = CounterSchema.of(names);
+			}
+			int numFiles = in.readInt();
+			Map<Path, FileEntry> loaded = new LinkedHashMap<>();
+			for (int f = 0; f < numFiles; f++) {
+				Path file = directory.toPath().resolve(in.readUTF());
+				long size = in.readLong();
+				long lastModified = in.readLong();
+				Entry[] entries = new Entry[in.readInt()];
+				for (int e = 0; e < entries.length; e++) {
+					entries[e] = new Entry(file, in.readUTF(), in.readUTF(), in.readInt(), in.readLong(), in.readLong(),
+							schemas[in.readInt()], in.readBoolean(), in.readBoolean());
+				}
+				loaded.put(file, new FileEntry(file, size, lastModified, List.of(entries)));
+			}
+			publish(loaded);
+		} catch (IOException | RuntimeException e) {
+			//the catalog is only a cache, so a broken one is just rebuilt from scratch
+			System.err.println("Ignoring unreadable catalog " + catalogFile.toAbsolutePath() + ": " + e.getLocalizedMessage());
+		}
+	}
+
+	/* Brings the catalog up to date with the directory, reading only the files that
+	 * are new or changed, and forgetting files that no longer exist. The catalog is
+	 * saved if anything changed. Files that fail to load are reported to System.err
+	 * and left out (they are tried again on the next refresh). Returns the number of
+	 * files that were read.
+	 */
+	public synchronized int refresh() throws IOException {
+		List<File> found = new ArrayList<>();
+		SampleUtils.findSampleFiles(directory, found);
+		Map<Path, FileEntry> previous = files;
+		//null for the files that need to be read
+		FileEntry[] known = new FileEntry[found.size()];
+		List<Callable<FileEntry>> tasks = new ArrayList<>();
+		for (int i = 0; i < known.length; i++) {
+			Path path = found.get(i).toPath();
+			long size = found.get(i).length();
+			long lastModified = found.get(i).lastModified();
+			FileEntry entry = previous.get(path);
+			if (entry != null && entry.size() == size && entry.lastModified() == lastModified)
+				known[i] = entry;
+			else tasks.add(() -> read(path, size, lastModified));
+		}
+		//kept in the order the files were found, which is the order loadSampleSets uses
+		Map<Path, FileEntry> updated = new LinkedHashMap<>();
+		Iterator<FileEntry> results = SampleUtils.invokeAllInOrder(tasks, parallelism, "cataloging Samples files").iterator();
+		for (FileEntry entry : known) {
+			if (entry == null)
+				entry = results.next();
+			if (entry != null)
+				updated.put(entry.file(), entry);
+		}
+		//files that keep failing to load are re-read every time, but only actual changes are saved
+		boolean changed = !updated.equals(previous);
+		publish(updated);
+		if (changed)
+			save();
+		return tasks.size();
+	}
+
+	private static FileEntry read(Path file, long size, long lastModified) {
+		try {
+			List<Entry> entries = new ArrayList<>();
+			if (CaptureArchive.FILE_FILTER.accept(file.toFile())) {
+				try (CaptureArchive archive = CaptureArchive.open(file)) {
+					for (CaptureArchive.Entry e : archive.entries())
+						entries.add(summarize(file, archive.read(e, false, false)));
+				}
+			}
+			else entries.add(summarize(file, SampleUtils.loadSampleSet(file.toFile(), false, false)));
+			return new FileEntry(file, size, lastModified, List.copyOf(entries));
+		} catch(Exception e) {
+			System.err.println("Failed to catalog Samples file "
+					+ file.toAbsolutePath() + ": " + e.getLocalizedMessage());
+			return null;
+		}
+	}
+
+	private static Entry summarize(Path file, SampleSet samples) {
+		SampleColumns columns = samples.columns();
+		return new Entry(file, samples.counterName(), samples.processName(), samples.size(),
+				columns.timestamp(0), columns.timestamp(columns.numSamples() - 1), samples.schema(),
+				samples.meta().isGenuine(), samples.meta().isComplete());
+	}
+
+	private void publish(Map<Path, FileEntry> updated) {
+		List<Entry> all = new ArrayList<>();
+		Map<String, List<Entry>> processes = new HashMap<>();
+		for (FileEntry f : updated.values()) {
+			for (Entry e : f.entries()) {
+				all.add(e);
+				processes.computeIfAbsent(e.processName(), (unused) -> new ArrayList<>()).add(e);
+			}
+		}
+		processes.replaceAll((unused, list) -> List.copyOf(list));
+		files = Collections.unmodifiableMap(updated);
+		byProcessName = Map.copyOf(processes);
+		entries = List.copyOf(all);
+	}
+
+	//Never leaves a half-written catalog behind (see SampleUtils#atomicWrite)
+	private void save() throws IOException {
+		Map<Path, FileEntry> current = files;
+		Map<CounterSchema, Integer> schemas = new LinkedHashMap<>();
+		for (FileEntry f : current.values()) {
+			for (Entry e : f.entries())
+				schemas.putIfAbsent(e.counters(), schemas.size());
+		}
+		SampleUtils.atomicWrite(catalogFile, (channel) -> {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(schemas.size());
+			for (CounterSchema schema : schemas.keySet()) {
+				out.writeInt(schema.size());
+				for (String counter : schema)
+					out.writeUTF(counter);
+			}
+			out.writeInt(current.size());
+			for (FileEntry f : current.values()) {
+				Path relative = directory.toPath().relativize(f.file());
+				out.writeUTF(relative.toString().replace(File.separatorChar, '/'));
+				out.writeLong(f.size());
+				out.writeLong(f.lastModified());
+				out.writeInt(f.entries().size());
+				for (Entry e : f.entries()) {
+					out.writeUTF(e.counterName());
+					out.writeUTF(e.processName());
+					out.writeInt(e.numSamples());
+					out.writeLong(e.firstTimestamp());
+					out.writeLong(e.lastTimestamp());
+					out.writeInt(schemas.get(e.counters()));
+					out.writeBoolean(e.genuine());
+					out.writeBoolean(e.complete());
+				}
+			}
+			out.flush();
+		});
+	}
+
+	public Set<String> processNames() {
+		return byProcessName.keySet();
+	}
+
+	//Every SampleSet in the catalog, in the same order loadSampleSets loads them
+	public List<Entry> entries() {
+		return entries;
+	}
+
+	public List<Entry> entries(String processName) {
+		if (processName == null)
+			throw new NullPointerException();
+		return byProcessName.getOrDefault(processName, List.of());
+	}
+
+	/* The SampleSets of the process that have samples within [from, to), either of
+	 * which may be null, meaning unbounded
+	 */
+	public List<Entry> entries(String processName, LocalDateTime from, LocalDateTime to) {
+		return entries(processName).stream()
+				.filter((e) -> e.overlaps(from, to))
+				.toList();
+	}
+
+	public List<SampleSet> load(String processName) {
+		return load(processName, null, null);
+	}
+
+	/* Loads the genuine and complete SampleSets of the process that have samples
+	 * within [from, to) (the same ones loadSampleSets would load), opening only
+	 * those files. The whole SampleSet is loaded, not just the part within the range.
+	 */
+	public List<SampleSet> load(String processName, LocalDateTime from, LocalDateTime to) {
+		return load(entries(processName, from, to).stream()
+				.filter((e) -> e.genuine() && e.complete())
+				.toList());
+	}
+
+	/* Loads the SampleSets of the entries, in order, up to parallelism files at once.
+	 * Assertions are turned off, so an entry can be loaded regardless of whether it
+	 * is genuine or complete. SampleSets that fail to load (e.g. because the file
+	 * changed since the catalog was refreshed) are reported to System.err and left out.
+	 */
+	public List<SampleSet> load(List<Entry> entries) {
+		if (entries == null)
+			throw new NullPointerException();
+		List<Callable<SampleSet>> tasks = entries.stream()
+				.<Callable<SampleSet>>map((e) -> () -> {
+					try {
+						return load(e);
+					} catch(Exception ex) {
+						System.err.println("Failed to load " + e.counterName() + " from Samples file "
+								+ e.file().toAbsolutePath() + ": " + ex.getLocalizedMessage());
+						return null;
+					}
+				})
+				.toList();
+		List<SampleSet> samples = new ArrayList<>(tasks.size());
+		for (SampleSet s : SampleUtils.invokeAllInOrder(tasks, parallelism, "loading Samples files")) {
+			if (s != null)
+				samples.add(s);
+		}
+		return samples;
+	}
+
+	public static SampleSet load(Entry entry) throws IOException, SampleParseException {
+		if (entry == null)
+			throw new NullPointerException();
+		if (entry.isArchived()) {
+			try (CaptureArchive archive = CaptureArchive.open(entry.file())) {
+				SampleSet samples = archive.read(entry.counterName(), false, false);
+				if (samples == null)
+					throw new SampleParseException("The archive no longer holds " + entry.counterName());
+				return samples;
+			}
+		}
+		return SampleUtils.loadSampleSet(entry.file().toFile(), false, false);
+	}
+
+}
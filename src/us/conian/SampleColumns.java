@@ -0,0 +1,217 @@
+package us.conian;
+
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+
+/* The underlying storage of a SampleSet. Rather than holding a Sample object
+ * (and a Reading object per counter) for every sample, a SampleSet keeps its
+ * data column-major: a single timestamp column, and one column of values per
+ * counter. Samples and Readings are only materialized when they are asked for.
+ *
+ * Timestamps are stored as nanoseconds since the epoch (treating the
+ * LocalDateTime as UTC), and a value of Double.NaN marks a counter that
+ * the sample at that index does not have a reading for.
+ */
+interface SampleColumns {
+	
+	public int numCounters();
+	
+	public int numSamples();
+	
+	public long timestamp(int sample);
+	
+	public double value(int counter, int sample);
+	
+	/* Roughly how many bytes of heap the columns hold, for budgeting caches.
+	 * Data that is mapped rather than on the heap isn't counted: the OS pages it
+	 * in and out on its own, and evicting it from a cache frees no heap.
+	 */
+	public long sizeInBytes();
+	
+	/* The default storage, in which everything lives in plain arrays on the heap.
+	 * The arrays are never exposed or modified after construction.
+	 */
+	static final class Heap implements SampleColumns {
+		
+		private final long[] timestamps;
+		private final double[][] values;
+		
+		Heap(long[] timestamps, double[][] values) {
+			this.timestamps = timestamps;
+			this.values = values;
+		}
+		
+		@Override
+		public int numCounters() {
+			return values.length;
+		}
+		
+		@Override
+		public int numSamples() {
+			return timestamps.length;
+		}
+		
+		@Override
+		public long timestamp(int sample) {
+			return timestamps[sample];
+		}
+		
+		@Override
+		public double value(int counter, int sample) {
+			return values[counter][sample];
+		}
+		
+		//each array has a 16 byte header
+		@Override
+		public long sizeInBytes() {
+			return 16 + 16 + (long) timestamps.length * Long.BYTES
+					+ (16 + (long) timestamps.length * Double.BYTES) * values.length;
+		}
+	
+	}
+
+	
+	/* Storage backed by buffers, typically views over a memory mapped file (see
+	 * BinaryUtils), so that the data never has to be copied onto the heap. The
+	 * values buffer holds each counter's column one after another. Only absolute
+	 * gets are used, so the buffers can safely be shared between threads.
+	 */
+	static final class Buffered implements SampleColumns {
+		
+		private final int numCounters;
+		private final int numSamples;
+		private final LongBuffer timestamps;
+		private final DoubleBuffer values;
+		
+		Buffered(int numCounters, int numSamples, LongBuffer timestamps, DoubleBuffer values) {
+			if (timestamps.remaining() != numSamples || values.remaining() != (long) numCounters * numSamples)
+				throw new IllegalArgumentException("The buffers do not match the given dimensions");
+			this.numCounters = numCounters;
+			this.numSamples = numSamples;
+			this.timestamps = timestamps.slice();
+			this.values = values.slice();
+		}
+		
+		@Override
+		public int numCounters() {
+			return numCounters;
+		}
+		
+		@Override
+		public int numSamples() {
+			return numSamples;
+		}
+		
+		@Override
+		public long timestamp(int sample) {
+			return timestamps.get(sample);
+		}
+		
+		@Override
+		public double value(int counter, int sample) {
+			return values.get(counter * numSamples + sample);
+		}
+		
+		//the contents of mapped (or otherwise direct) buffers aren't on the heap, only the buffer objects are
+		@Override
+		public long sizeInBytes() {
+			long size = 32 + 2 * 64;
+			if (!timestamps.isDirect())
+				size += (long) numSamples * Long.BYTES;
+			if (!values.isDirect())
+				size += (long) numCounters * numSamples * Double.BYTES;
+			return size;
+		}
+		
+	}
+	
+	/* A window onto other columns: a contiguous range of their samples, and
+	 * optionally a subset of their counters, without copying anything. A view
+	 * of a view points straight at the underlying columns, so views never
+	 * stack up.
+	 */
+	static final class View implements SampleColumns {
+		
+		private final SampleColumns columns;
+		private final int offset;
+		private final int numSamples;
+		//the counters of columns that are viewed, or null for all of them
+		private final int[] counters;
+		
+		private View(SampleColumns columns, int offset, int numSamples, int[] counters) {
+			this.columns = columns;
+			this.offset = offset;
+			this.numSamples = numSamples;
+			this.counters = counters;
+		}
+		
+		/* Views the samples in [from, to) of the given counters (in the order given,
+		 * or all of them if counters is null). Returns the columns themselves if the
+		 * view would cover all of them.
+		 */
+		static SampleColumns of(SampleColumns columns, int from, int to, int[] counters) {
+			if (from < 0 || to > columns.numSamples() || from > to)
+				throw new IndexOutOfBoundsException("Range [" + from + ", " + to + ") out of bounds for " + columns.numSamples() + " samples");
+			if (counters != null) {
+				for (int c : counters) {
+					if (c < 0 || c >= columns.numCounters())
+						throw new IndexOutOfBoundsException("Counter " + c + " out of bounds for " + columns.numCounters() + " counters");
+				}
+			}
+			if (from == 0 && to == columns.numSamples() && (counters == null || isIdentity(counters, columns.numCounters())))
+				return columns;
+			int[] mapped = counters == null ? null : counters.clone();
+			if (columns instanceof View v) {
+				if (v.counters != null) {
+					//the counter arrays are never modified, so they can be shared
+					if (mapped == null)
+						mapped = v.counters;
+					else {
+						for (int i = 0; i < mapped.length; i++)
+							mapped[i] = v.counters[mapped[i]];
+					}
+				}
+				return new View(v.columns, v.offset + from, to - from, mapped);
+			}
+			return new View(columns, from, to - from, mapped);
+		}
+		
+		private static boolean isIdentity(int[] counters, int numCounters) {
+			if (counters.length != numCounters)
+				return false;
+			for (int i = 0; i < counters.length; i++) {
+				if (counters[i] != i)
+					return false;
+			}
+			return true;
+		}
+		
+		@Override
+		public int numCounters() {
+			return counters == null ? columns.numCounters() : counters.length;
+		}
+		
+		@Override
+		public int numSamples() {
+			return numSamples;
+		}
+		
+		@Override
+		public long timestamp(int sample) {
+			return columns.timestamp(offset + sample);
+		}
+		
+		@Override
+		public double value(int counter, int sample) {
+			return columns.value(counters == null ? counter : counters[counter], offset + sample);
+		}
+		
+		//the viewed columns are kept in memory for as long as the view is, however little of them it covers
+		@Override
+		public long sizeInBytes() {
+			return 32 + (counters == null ? 0 : 16 + (long) counters.length * Integer.BYTES) + columns.sizeInBytes();
+		}
+		
+	}
+	
+}
\ No newline at end of file
@@ -0,0 +1,680 @@
+package us.conian;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.*;
+
+/* Summaries of one process's Samples at several resolutions (tiers), such as
+ * every 10 seconds, every minute and every hour. Each tier splits time into
+ * buckets of its resolution (aligned to the epoch, so buckets of different
+ * processes line up), and keeps the count, min, max, sum and last value of
+ * every counter's readings within each bucket. Queries over long captures can
+ * then read a few buckets of a coarse tier instead of every raw Sample.
+ *
+ * Rollups are maintained incrementally: Samples are accepted one at a time (or
+ * a SampleSet at once), in chronological order, and only ever touch the newest
+ * bucket of each tier. The newest bucket of a tier is still open, so it only
+ * summarizes the Samples accepted so far.
+ *
+ * Rollups are stored next to the raw data, as the Samples file's name with
+ * FILE_EXTENSION in place of its own (see forFile and RollupStore). Layout (all
+ * little-endian, strings are the same as in BinaryUtils):
+ *
+ * int     MAGIC
+ * int     VERSION
+ * string  counterName
+ * long    the timestamp of the latest Sample accepted, in epoch nanos
+ * int     number of counters
+ * string  each counter
+ * int     number of tiers
+ * for each tier:
+ *   long    the resolution, in nanos
+ *   int     number of buckets
+ *   long    the start of each bucket, in epoch nanos
+ *   for each counter: the count (as ints), then the min, max, sum and last
+ *   (as doubles) of every bucket
+ *
+ * A SampleRollup is thread-safe; queries can be made while Samples are being
+ * accepted.
+ */
+public class SampleRollup {
+
+	public static final String FILE_EXTENSION = ".trol";
+
+	public static final List<Duration> DEFAULT_RESOLUTIONS = List.of(Duration.ofSeconds(10), Duration.ofMinutes(1), Duration.ofHours(1));
+
+	private static final int MAGIC = 0x4C4F5254;//"TROL"
+	private static final int VERSION = 1;
+
+	private static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+
+	private final String counterName;
+
+	//the counters found so far, in the order they were found
+	private final List<String> counters = new ArrayList<>();
+	private final Map<String, Integer> counterIndices = new HashMap<>();
+	//finest first
+	private final Tier[] tiers;
+	private long latest = Long.MIN_VALUE;
+
+	//the rollup counter of each counter of the last schema seen, since consecutive Samples almost always share it
+	private CounterSchema lastSchema = null;
+	private int[] lastIndices = null;
+
+	/* The resolutions must be positive and are sorted, finest first. Each one should be
+	 * a multiple of the one before it, so that coarser buckets don't straddle finer ones.
+	 */
+	public SampleRollup(String counterName, Collection<Duration> resolutions) {
+		if (counterName == null || resolutions == null)
+			throw new NullPointerException();
+		if (resolutions.isEmpty())
+			throw new IllegalArgumentException("There must be at least 1 resolution");
+		long[] sorted = new long[resolutions.size()];
+		int i = 0;
+		for (Duration resolution : resolutions) {
+			if (resolution.isNegative() || resolution.isZero())
+				throw new IllegalArgumentException("The resolutions must be positive");
+			sorted[i++] = resolution.toNanos();
+		}
+		Arrays.sort(sorted);
+		this.counterName = counterName;
+		this.tiers = new Tier[sorted.length];
+		for (i = 0; i < sorted.length; i++) {
+			if (i > 0 && sorted[i] == sorted[i - 1])
+				throw new IllegalArgumentException("Duplicate resolution: " + Duration.ofNanos(sorted[i]));
+			tiers[i] = new Tier(sorted[i]);
+		}
+	}
+
+	public SampleRollup(String counterName) {
+		this(counterName, DEFAULT_RESOLUTIONS);
+	}
+
+	public static SampleRollup of(SampleSet samples, Collection<Duration> resolutions) {
+		if (samples == null)
+			throw new NullPointerException();
+		SampleRollup rollup = new SampleRollup(samples.counterName(), resolutions);
+		rollup.accept(samples);
+		return rollup;
+	}
+
+	/* The bucket summaries of one tier over a range of time, copied out of the
+	 * rollup. Buckets are indexed in chronological order, and counters by the
+	 * indices of counters(). The min, max and last of a counter without readings
+	 * in a bucket are NaN, and its sum is 0.
+	 */
+	public static final class Buckets {
+
+		private final long resolution;
+		private final CounterSchema counters;
+		private final long[] starts;
+		private final int[][] counts;
+		private final double[][] mins;
+		private final double[][] maxs;
+		private final double[][] sums;
+		private final double[][] lasts;
+
+		private Buckets(long resolution, CounterSchema counters, long[] starts, int[][] counts,
+				double[][] mins, double[][] maxs, double[][] sums, double[][] lasts) {
+			this.resolution = resolution;
+			this.counters = counters;
+			this.starts = starts;
+			this.counts = counts;
+			this.mins = mins;
+			this.maxs = maxs;
+			this.sums = sums;
+			this.lasts = lasts;
+		}
+
+		public Duration resolution() {
+			return Duration.ofNanos(resolution);
+		}
+
+		public CounterSchema counters() {
+			return counters;
+		}
+
+		public int size() {
+			return starts.length;
+		}
+
+		public LocalDateTime start(int bucket) {
+			return SampleUtils.fromEpochNanos(starts[bucket]);
+		}
+
+		//The same as start(), in epoch nanos
+		public long startNanos(int bucket) {
+			return starts[bucket];
+		}
+
+		public int count(int bucket, int counter) {
+			return counts[counter][bucket];
+		}
+
+		public double min(int bucket, int counter) {
+			return mins[counter][bucket];
+		}
+
+		public double max(int bucket, int counter) {
+			return maxs[counter][bucket];
+		}
+
+		public double sum(int bucket, int counter) {
+			return sums[counter][bucket];
+		}
+
+		public double last(int bucket, int counter) {
+			return lasts[counter][bucket];
+		}
+
+		//NaN if the counter has no readings in the bucket
+		public double mean(int bucket, int counter) {
+			int count = counts[counter][bucket];
+			return count == 0 ? Double.NaN : sums[counter][bucket] / count;
+		}
+
+	}
+
+	/* The buckets of a single resolution. Each counter's statistics are kept in
+	 * columns indexed by bucket, grown as buckets are added.
+	 */
+	private static final class Tier {
+
+		private final long resolution;
+		private int numBuckets = 0;
+		private long[] starts = new long[16];
+		//indexed as [counter][bucket]
+		private int[][] counts = new int[0][];
+		private double[][] mins = new double[0][];
+		private double[][] maxs = new double[0][];
+		private double[][] sums = new double[0][];
+		private double[][] lasts = new double[0][];
+
+		private Tier(long resolution) {
+			this.resolution = resolution;
+		}
+
+		private void addCounter() {
+			int c = counts.length;
+			counts = Arrays.copyOf(counts, c + 1);
+			mins = Arrays.copyOf(mins, c + 1);
+			maxs = Arrays.copyOf(maxs, c + 1);
+			sums = Arrays.copyOf(sums, c + 1);
+			lasts = Arrays.copyOf(lasts, c + 1);
+			counts[c] = new int[starts.length];
+			mins[c] = nans(starts.length);
+			maxs[c] = nans(starts.length);
+			sums[c] = new double[starts.length];
+			lasts[c] = nans(starts.length);
+		}
+
+		private static double[] nans(int length) {
+			double[] array = new double[length];
+			Arrays.fill(array, Double.NaN);
+			return array;
+		}
+
+		//The index of the bucket holding the timestamp, which is never before the newest bucket
+		private int bucket(long timestamp) {
+			long start = Math.floorDiv(timestamp, resolution) * resolution;
+			if (numBuckets > 0 && starts[numBuckets - 1] == start)
+				return numBuckets - 1;
+			if (numBuckets == starts.length)
+				grow(Math.max(16, numBuckets * 2));
+			starts[numBuckets] = start;
+			return numBuckets++;
+		}
+
+		private void grow(int length) {
+			starts = Arrays.copyOf(starts, length);
+			for (int c = 0; c < counts.length; c++) {
+				int old = counts[c].length;
+				counts[c] = Arrays.copyOf(counts[c], length);
+				mins[c] = Arrays.copyOf(mins[c], length);
+				maxs[c] = Arrays.copyOf(maxs[c], length);
+				sums[c] = Arrays.copyOf(sums[c], length);
+				lasts[c] = Arrays.copyOf(lasts[c], length);
+				Arrays.fill(mins[c], old, length, Double.NaN);
+				Arrays.fill(maxs[c], old, length, Double.NaN);
+				Arrays.fill(lasts[c], old, length, Double.NaN);
+			}
+		}
+
+		private void add(int bucket, int counter, double value) {
+			int count = counts[counter][bucket]++;
+			mins[counter][bucket] = count == 0 ? value : Math.min(mins[counter][bucket], value);
+			maxs[counter][bucket] = count == 0 ? value : Math.max(maxs[counter][bucket], value);
+			sums[counter][bucket] += value;
+			lasts[counter][bucket] = value;
+		}
+
+	}
+
+	//Throws an IllegalArgumentException if the Sample was taken before the latest Sample accepted
+	public synchronized void accept(Sample sample) {
+		if (sample == null)
+			throw new NullPointerException();
+		long timestamp = sample.epochNanos();
+		checkOrder(timestamp);
+		CounterSchema schema = sample.schema();
+		int[] indices = indices(schema);
+		for (Tier tier : tiers) {
+			int bucket = tier.bucket(timestamp);
+			for (int k = 0; k < indices.length; k++) {
+				//missing readings are skipped, the same as in accept(SampleSet)
+				double value = sample.value(k);
+				if (!Double.isNaN(value))
+					tier.add(bucket, indices[k], value);
+			}
+		}
+		latest = timestamp;
+	}
+
+	/* Accepts every Sample of the set, which must not have been taken before the
+	 * latest Sample accepted, reading the set's columns directly
+	 */
+	public synchronized void accept(SampleSet samples) {
+		if (samples == null)
+			throw new NullPointerException();
+		SampleColumns columns = samples.columns();
+		checkOrder(columns.timestamp(0));
+		int[] indices = indices(samples.schema());
+		for (Tier tier : tiers) {
+			for (int i = 0; i < columns.numSamples(); i++) {
+				int bucket = tier.bucket(columns.timestamp(i));
+				for (int k = 0; k < indices.length; k++) {
+					double value = columns.value(k, i);
+					if (!Double.isNaN(value))
+						tier.add(bucket, indices[k], value);
+				}
+			}
+		}
+		latest = columns.timestamp(columns.numSamples() - 1);
+	}
+
+	private void checkOrder(long timestamp) {
+		if (timestamp < latest)
+			throw new IllegalArgumentException("Samples must be accepted in chronological order: "
+					+ SampleUtils.fromEpochNanos(timestamp) + " is before " + SampleUtils.fromEpochNanos(latest));
+	}
+
+	private int[] indices(CounterSchema schema) {
+		//CounterSchemas are interned, so they can be compared by identity
+		if (schema == lastSchema)
+			return lastIndices;
+		int[] indices = new int[schema.size()];
+		for (int k = 0; k < indices.length; k++)
+			indices[k] = counterIndex(schema.name(k));
+		lastSchema = schema;
+		lastIndices = indices;
+		return indices;
+	}
+
+	private int counterIndex(String name) {
+		String key = name.toLowerCase(Locale.ROOT);
+		Integer index = counterIndices.get(key);
+		if (index != null)
+			return index;
+		counters.add(name);
+		counterIndices.put(key, counters.size() - 1);
+		for (Tier tier : tiers)
+			tier.addCounter();
+		return counters.size() - 1;
+	}
+
+	public String counterName() {
+		return counterName;
+	}
+
+	//Finest first
+	public List<Duration> resolutions() {
+		List<Duration> resolutions = new ArrayList<>(tiers.length);
+		for (Tier tier : tiers)
+			resolutions.add(Duration.ofNanos(tier.resolution));
+		return resolutions;
+	}
+
+	//The counters found so far
+	public synchronized CounterSchema counters() {
+		return CounterSchema.of(counters);
+	}
+
+	//null if nothing has been accepted yet
+	public synchronized LocalDateTime latestTimestamp() {
+		return latest == Long.MIN_VALUE ? null : SampleUtils.fromEpochNanos(latest);
+	}
+
+	/* The buckets of the coarsest tier whose resolution is at most the given one,
+	 * covering [from, to) (either of which may be null to leave that end open), for
+	 * the given counters (or all of them if counters is null; counters that were never
+	 * found are left out). Throws an IllegalArgumentException if the resolution is
+	 * finer than every tier, in which case the raw Samples need to be read instead.
+	 */
+	public synchronized Buckets query(Collection<String> counters, LocalDateTime from, LocalDateTime to, Duration resolution) {
+		long[] resolutions = new long[tiers.length];
+		for (int t = 0; t < tiers.length; t++)
+			resolutions[t] = tiers[t].resolution;
+		Tier tier = tiers[coarsestTier(resolutions, from, to, resolution)];
+		int start = from == null ? 0 : firstEndingAfter(tier.starts, tier.numBuckets, tier.resolution, SampleUtils.toEpochNanos(from));
+		int end = Math.max(start, to == null ? tier.numBuckets : firstStartingAt(tier.starts, tier.numBuckets, SampleUtils.toEpochNanos(to)));
+		CounterSchema schema = select(this.counters, counters);
+		int[][] counts = new int[schema.size()][];
+		double[][] mins = new double[schema.size()][];
+		double[][] maxs = new double[schema.size()][];
+		double[][] sums = new double[schema.size()][];
+		double[][] lasts = new double[schema.size()][];
+		for (int k = 0; k < schema.size(); k++) {
+			int c = counterIndices.get(schema.name(k).toLowerCase(Locale.ROOT));
+			counts[k] = Arrays.copyOfRange(tier.counts[c], start, end);
+			mins[k] = Arrays.copyOfRange(tier.mins[c], start, end);
+			maxs[k] = Arrays.copyOfRange(tier.maxs[c], start, end);
+			sums[k] = Arrays.copyOfRange(tier.sums[c], start, end);
+			lasts[k] = Arrays.copyOfRange(tier.lasts[c], start, end);
+		}
+		return new Buckets(tier.resolution, schema, Arrays.copyOfRange(tier.starts, start, end), counts, mins, maxs, sums, lasts);
+	}
+
+	/* The same as query, straight from a rollup file. Only the header, the start of
+	 * each bucket of the chosen tier and the queried buckets are read, so a query of a
+	 * coarse tier reads a few kilobytes however much the finer tiers hold.
+	 */
+	public static Buckets query(Path file, Collection<String> counters, LocalDateTime from, LocalDateTime to, Duration resolution) throws IOException, SampleParseException {
+		if (file == null)
+			throw new NullPointerException();
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long size = channel.size();
+			//the header is read in growing chunks until all of it is in
+			ByteBuffer header;
+			List<String> names;
+			int numTiers;
+			int length = 4096;
+			while (true) {
+				header = read(channel, 0, (int) Math.min(length, size));
+				try {
+					checkHeader(header);
+					readString(header);
+					header.getLong();
+					names = new ArrayList<>();
+					int numCounters = header.getInt();
+					for (int c = 0; c < numCounters; c++)
+						names.add(readString(header));
+					numTiers = header.getInt();
+					break;
+				} catch (BufferUnderflowException | NegativeArraySizeException e) {
+					if (length >= size || length >= Integer.MAX_VALUE / 2)
+						throw new SampleParseException("Truncated Samples rollup file", e);
+					length *= 2;
+				}
+			}
+			if (numTiers < 1)
+				throw new SampleParseException("Corrupt Samples rollup file");
+			//where each tier's buckets start, and how many it has
+			long[] resolutions = new long[numTiers];
+			long[] positions = new long[numTiers];
+			int[] numBuckets = new int[numTiers];
+			long position = header.position();
+			for (int t = 0; t < numTiers; t++) {
+				ByteBuffer tier = read(channel, position, Long.BYTES + Integer.BYTES);
+				resolutions[t] = tier.getLong();
+				numBuckets[t] = tier.getInt();
+				if (resolutions[t] <= 0 || numBuckets[t] < 0 || (t > 0 && resolutions[t] <= resolutions[t - 1]))
+					throw new SampleParseException("Corrupt Samples rollup file");
+				positions[t] = position + Long.BYTES + Integer.BYTES;
+				position = positions[t] + numBuckets[t] * (Long.BYTES + names.size() * (Integer.BYTES + Double.BYTES * 4L));
+			}
+			int t = coarsestTier(resolutions, from, to, resolution);
+			int n = numBuckets[t];
+			long[] starts = new long[n];
+			read(channel, positions[t], n * Long.BYTES).asLongBuffer().get(starts);
+			int start = from == null ? 0 : firstEndingAfter(starts, n, resolutions[t], SampleUtils.toEpochNanos(from));
+			int end = Math.max(start, to == null ? n : firstStartingAt(starts, n, SampleUtils.toEpochNanos(to)));
+			int range = end - start;
+			CounterSchema schema = select(names, counters);
+			int[][] counts = new int[schema.size()][range];
+			double[][] mins = new double[schema.size()][range];
+			double[][] maxs = new double[schema.size()][range];
+			double[][] sums = new double[schema.size()][range];
+			double[][] lasts = new double[schema.size()][range];
+			for (int k = 0; k < schema.size(); k++) {
+				int c = indexOfIgnoreCase(names, schema.name(k));
+				//each counter's columns: counts, then mins, maxs, sums and lasts
+				long base = positions[t] + (long) n * Long.BYTES + c * (long) n * (Integer.BYTES + Double.BYTES * 4L);
+				read(channel, base + (long) start * Integer.BYTES, range * Integer.BYTES).asIntBuffer().get(counts[k]);
+				base += (long) n * Integer.BYTES;
+				for (double[][] column : List.of(mins, maxs, sums, lasts)) {
+					read(channel, base + (long) start * Double.BYTES, range * Double.BYTES).asDoubleBuffer().get(column[k]);
+					base += (long) n * Double.BYTES;
+				}
+			}
+			return new Buckets(resolutions[t], schema, Arrays.copyOfRange(starts, start, end), counts, mins, maxs, sums, lasts);
+		}
+	}
+
+	/* The index of the coarsest of the resolutions (which are sorted, finest first)
+	 * that is at most the requested one
+	 */
+	private static int coarsestTier(long[] resolutions, LocalDateTime from, LocalDateTime to, Duration resolution) {
+		if (resolution == null)
+			throw new NullPointerException();
+		if (from != null && to != null && from.isAfter(to))
+			throw new IllegalArgumentException("The range must not end before it starts");
+		long requested = resolution.toNanos();
+		int tier = -1;
+		for (int t = 0; t < resolutions.length; t++) {
+			if (resolutions[t] <= requested)
+				tier = t;
+		}
+		if (tier == -1)
+			throw new IllegalArgumentException("No tier is as fine as " + resolution + " (the finest is "
+					+ Duration.ofNanos(resolutions[0]) + ")");
+		return tier;
+	}
+
+	//The given counters (or all of them if counters is null) that are among the names, as spelled in the names
+	private static CounterSchema select(List<String> names, Collection<String> counters) {
+		if (counters == null)
+			return CounterSchema.of(names);
+		Set<String> selected = new LinkedHashSet<>();
+		for (String counter : counters) {
+			int index = indexOfIgnoreCase(names, counter);
+			if (index != -1)
+				selected.add(names.get(index));
+		}
+		return CounterSchema.of(selected);
+	}
+
+	private static int indexOfIgnoreCase(List<String> names, String name) {
+		for (int i = 0; i < names.size(); i++) {
+			if (names.get(i).equalsIgnoreCase(name))
+				return i;
+		}
+		return -1;
+	}
+
+	//The index of the first of the buckets ending after the timestamp
+	private static int firstEndingAfter(long[] starts, int numBuckets, long resolution, long timestamp) {
+		int low = 0;
+		int high = numBuckets;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (starts[mid] + resolution <= timestamp)
+				low = mid + 1;
+			else high = mid;
+		}
+		return low;
+	}
+
+	//The index of the first of the buckets starting at or after the timestamp
+	private static int firstStartingAt(long[] starts, int numBuckets, long timestamp) {
+		int low = 0;
+		int high = numBuckets;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (starts[mid] < timestamp)
+				low = mid + 1;
+			else high = mid;
+		}
+		return low;
+	}
+
+	private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length).order(ORDER);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) == -1)
+				throw new SampleParseException("Truncated Samples rollup file");
+		}
+		return buffer.flip();
+	}
+
+	private static void checkHeader(ByteBuffer data) throws SampleParseException {
+		if (data.getInt() != MAGIC)
+			throw new SampleParseException("Not a Samples rollup file");
+		int version = data.getInt();
+		if (version != VERSION)
+			throw new SampleParseException("Unsupported Samples rollup version: " + version);
+	}
+
+	//Where the rollup of a Samples file is stored
+	public static Path rollupFile(File samplesFile) {
+		if (samplesFile == null)
+			throw new NullPointerException();
+		String name = samplesFile.getName();
+		int extension = name.lastIndexOf('.');
+		return samplesFile.toPath().resolveSibling((extension == -1 ? name : name.substring(0, extension)) + FILE_EXTENSION);
+	}
+
+	/* Returns the rollup of a Samples file (in any format SampleUtils#loadSampleSet
+	 * can read), reading it from rollupFile if it is at least as new as the Samples
+	 * file and has the same resolutions, and otherwise building it from the Samples
+	 * and saving it there. The rollup file is only a cache, so one that can't be read
+	 * (e.g. because it is corrupt, or from another version) is rebuilt too.
+	 */
+	public static SampleRollup forFile(File samplesFile, Collection<Duration> resolutions) throws IOException, SampleParseException {
+		if (samplesFile == null || resolutions == null)
+			throw new NullPointerException();
+		Path rollupFile = rollupFile(samplesFile);
+		if (Files.isRegularFile(rollupFile) && Files.getLastModifiedTime(rollupFile).toMillis() >= samplesFile.lastModified()) {
+			try {
+				SampleRollup rollup = read(rollupFile);
+				if (new HashSet<>(rollup.resolutions()).equals(new HashSet<>(resolutions)))
+					return rollup;
+			} catch (IOException | SampleParseException e) {
+				System.err.println("Rebuilding unreadable Samples rollup " + rollupFile.toAbsolutePath() + ": " + e.getLocalizedMessage());
+			}
+		}
+		SampleRollup rollup = of(SampleUtils.loadSampleSet(samplesFile, false, false), resolutions);
+		rollup.write(rollupFile);
+		return rollup;
+	}
+
+	//Replaces the file if it exists, without ever leaving a half-written rollup behind
+	public synchronized void write(Path file) throws IOException {
+		if (file == null)
+			throw new NullPointerException();
+		byte[] name = counterName.getBytes(StandardCharsets.UTF_8);
+		byte[][] names = new byte[counters.size()][];
+		long length = Integer.BYTES * 5 + name.length + Long.BYTES;
+		for (int c = 0; c < names.length; c++) {
+			names[c] = counters.get(c).getBytes(StandardCharsets.UTF_8);
+			length += Integer.BYTES + names[c].length;
+		}
+		for (Tier tier : tiers)
+			length += Long.BYTES + Integer.BYTES + (long) tier.numBuckets * (Long.BYTES + names.length * (Integer.BYTES + Double.BYTES * 4L));
+		if (length > Integer.MAX_VALUE)
+			throw new IllegalStateException("The rollup is too large to write: " + counterName);
+		ByteBuffer data = ByteBuffer.allocate((int) length).order(ORDER);
+		data.putInt(MAGIC)
+		.putInt(VERSION)
+		.putInt(name.length)
+		.put(name)
+		.putLong(latest)
+		.putInt(names.length);
+		for (byte[] counter : names)
+			data.putInt(counter.length).put(counter);
+		data.putInt(tiers.length);
+		for (Tier tier : tiers) {
+			int n = tier.numBuckets;
+			data.putLong(tier.resolution).putInt(n);
+			data.asLongBuffer().put(tier.starts, 0, n);
+			data.position(data.position() + n * Long.BYTES);
+			for (int c = 0; c < names.length; c++) {
+				data.asIntBuffer().put(tier.counts[c], 0, n);
+				data.position(data.position() + n * Integer.BYTES);
+				for (double[][] column : List.of(tier.mins, tier.maxs, tier.sums, tier.lasts)) {
+					data.asDoubleBuffer().put(column[c], 0, n);
+					data.position(data.position() + n * Double.BYTES);
+				}
+			}
+		}
+		SampleUtils.atomicWrite(file, data.array());
+	}
+
+	public static SampleRollup read(Path file) throws IOException, SampleParseException {
+		if (file == null)
+			throw new NullPointerException();
+		ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file)).order(ORDER);
+		try {
+			checkHeader(data);
+			String counterName = readString(data);
+			long latest = data.getLong();
+			String[] names = new String[data.getInt()];
+			for (int c = 0; c < names.length; c++)
+				names[c] = readString(data);
+			Tier[] tiers = new Tier[data.getInt()];
+			List<Duration> resolutions = new ArrayList<>(tiers.length);
+			for (int t = 0; t < tiers.length; t++) {
+				Tier tier = tiers[t] = new Tier(data.getLong());
+				int n = data.getInt();
+				//the tiers are installed as they are, and coarsestTier relies on them being finest first
+				if (tier.resolution <= 0 || n < 0 || (t > 0 && tier.resolution <= tiers[t - 1].resolution))
+					throw new SampleParseException("Corrupt Samples rollup file");
+				resolutions.add(Duration.ofNanos(tier.resolution));
+				tier.numBuckets = n;
+				tier.starts = new long[n];
+				data.asLongBuffer().get(tier.starts);
+				data.position(data.position() + n * Long.BYTES);
+				tier.counts = new int[names.length][n];
+				tier.mins = new double[names.length][n];
+				tier.maxs = new double[names.length][n];
+				tier.sums = new double[names.length][n];
+				tier.lasts = new double[names.length][n];
+				for (int c = 0; c < names.length; c++) {
+					data.asIntBuffer().get(tier.counts[c]);
+					data.position(data.position() + n * Integer.BYTES);
+					for (double[][] column : List.of(tier.mins, tier.maxs, tier.sums, tier.lasts)) {
+						data.asDoubleBuffer().get(column[c]);
+						data.position(data.position() + n * Double.BYTES);
+					}
+				}
+			}
+			SampleRollup rollup = new SampleRollup(counterName, resolutions);
+			for (String counter : names)
+				rollup.counterIndex(counter);
+			//the constructor sorts the resolutions, which were written sorted
+			System.arraycopy(tiers, 0, rollup.tiers, 0, tiers.length);
+			rollup.latest = latest;
+			return rollup;
+		} catch (BufferUnderflowException | IndexOutOfBoundsException | NegativeArraySizeException e) {
+			throw new SampleParseException("Truncated Samples rollup file", e);
+		} catch (IllegalArgumentException e) {
+			throw new SampleParseException("Corrupt Samples rollup file", e);
+		}
+	}
+
+	private static String readString(ByteBuffer data) {
+		byte[] bytes = new byte[data.getInt()];
+		data.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+}
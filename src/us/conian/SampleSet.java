@@ -2,20 +2,30 @@ package us.conian;
 
 import java.time.*;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.function.Supplier;
 
 public class SampleSet implements Iterable<Sample> {
 	
 	private final String counterName;
 	private final String processName;
 	
-	private final Sample[] samples;
+	/* The schema of the set is the union of every Sample's counters. In a
+	 * complete set, every Sample shares this exact schema.
+	 */
+	private final CounterSchema schema;
+	private final SampleColumns columns;
 	
 	private final Meta meta;
 	
-	//precomputed because the set is immutable
-	private final int hashCode;
+	//computed the first time it is asked for (so that views don't pay for it
+	//unless they are hashed) and then cached, since the set is immutable
+	private int hashCode = 0;
 	
+	/* The samples are sorted into chronological order. SampleSets store timestamps
+	 * as epoch nanos (see SampleUtils#toEpochNanos), so every sample must have been
+	 * taken between 1677-09-21 and 2262-04-11; an IllegalArgumentException is
+	 * thrown for a sample outside of that range.
+	 */
 	public SampleSet(String counterName, List<Sample> samples, boolean assertGenuine, boolean assertComplete) {
 		if (counterName == null || samples == null)
 			throw new NullPointerException();
@@ -23,18 +33,258 @@ public class SampleSet implements Iterable<Sample> {
 			throw new IllegalArgumentException("A valid SampleSet must contain at least 2 Samples");
 		this.counterName = counterName;
 		this.processName = counterName.split("#")[0];//TODO: Test
-		this.samples = samples.toArray(Sample[]::new);
-		Arrays.sort(this.samples, (s1, s2) -> s1.timestamp().compareTo(s2.timestamp()));
+		Sample[] sorted = samples.toArray(Sample[]::new);
+		Arrays.sort(sorted, Sample::compareTimestamps);
+		this.schema = unionSchema(sorted);
+		this.columns = toColumns(schema, sorted);
 		this.meta = new Meta(assertGenuine, assertComplete);
-		this.hashCode = calcHashCode();
 	}
 	
+	//The same as above, asserting that the set is genuine and complete
 	public SampleSet(String counterName, List<Sample> samples) {
 		this(counterName, samples, true, true);
 	}
 	
+	/* Builds a SampleSet directly from columnar data, without going through
+	 * Sample objects. timestamps are nanoseconds since the epoch (with the
+	 * sample's LocalDateTime treated as UTC) and must be in chronological
+	 * order. values is indexed as values[counter][sample], where values[c]
+	 * holds the values of schema.name(c); a value of Double.NaN indicates that
+	 * the sample does not have a reading for that counter. The given arrays
+	 * are copied.
+	 */
+	public SampleSet(String counterName, CounterSchema schema, long[] timestamps, double[][] values, boolean assertGenuine, boolean assertComplete) {
+		this(counterName, schema, copyColumns(schema, timestamps, values), assertGenuine, assertComplete);
+	}
+	
+	//Used internally when the columns are already known to be valid
+	SampleSet(String counterName, CounterSchema schema, SampleColumns columns, boolean assertGenuine, boolean assertComplete) {
+		if (counterName == null || schema == null || columns == null)
+			throw new NullPointerException();
+		if (columns.numSamples() < 2)
+			throw new IllegalArgumentException("A valid SampleSet must contain at least 2 Samples");
+		this.counterName = counterName;
+		this.processName = counterName.split("#")[0];
+		this.schema = schema;
+		this.columns = columns;
+		this.meta = new Meta(assertGenuine, assertComplete);
+	}
+	
+	private static SampleColumns copyColumns(CounterSchema schema, long[] timestamps, double[][] values) {
+		if (schema == null || timestamps == null || values == null)
+			throw new NullPointerException();
+		if (values.length != schema.size())
+			throw new IllegalArgumentException("Expected " + schema.size() + " columns of values, received " + values.length);
+		for (int i = 1; i < timestamps.length; i++) {
+			if (timestamps[i - 1] > timestamps[i])
+				throw new IllegalArgumentException("The timestamps are not in chronological order");
+		}
+		double[][] copy = new double[values.length][];
+		for (int c = 0; c < values.length; c++) {
+			if (values[c] == null)
+				throw new NullPointerException();
+			if (values[c].length != timestamps.length)
+				throw new IllegalArgumentException("Expected " + timestamps.length + " values for counter \"" 
+						+ schema.name(c) + "\", received " + values[c].length);
+			for (double v : values[c]) {
+				if (v < 0)
+					throw new IllegalArgumentException("The value must be positive");
+			}
+			copy[c] = values[c].clone();
+		}
+		return new SampleColumns.Heap(timestamps.clone(), copy);
+	}
+	
+	private static CounterSchema unionSchema(Sample[] samples) {
+		CounterSchema first = samples[0].schema();
+		boolean shared = true;
+		for (Sample s : samples) {
+			if (s.schema() != first) {
+				shared = false;
+				break;
+			}
+		}
+		if (shared)
+			return first;
+		//counters are matched ignoring case, so the first spelling encountered wins
+		Map<String, String> names = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+		for (Sample s : samples) {
+			for (String name : s.schema())
+				names.putIfAbsent(name, name);
+		}
+		return CounterSchema.ofSorted(names.values().toArray(String[]::new));
+	}
+	
+	private static SampleColumns toColumns(CounterSchema schema, Sample[] samples) {
+		long[] timestamps = new long[samples.length];
+		double[][] values = new double[schema.size()][samples.length];
+		for (int i = 0; i < samples.length; i++) {
+			Sample s = samples[i];
+			try {
+				timestamps[i] = s.epochNanos();
+			} catch (ArithmeticException e) {
+				throw new IllegalArgumentException("Sample timestamp is out of range: " + s.timestamp(), e);
+			}
+			CounterSchema sampleSchema = s.schema();
+			if (sampleSchema != schema) {
+				for (double[] column : values)
+					column[i] = Double.NaN;
+			}
+			for (int k = 0; k < sampleSchema.size(); k++) {
+				double value = s.value(k);
+				if (Double.isNaN(value))
+					throw new IllegalArgumentException("NaN readings are not supported: \"" + sampleSchema.name(k) + "\"");
+				values[sampleSchema == schema ? k : schema.indexOf(sampleSchema.name(k))][i] = value;
+			}
+		}
+		return new SampleColumns.Heap(timestamps, values);
+	}
+	
+	/* Removes every dead sample (see Sample#isDeadSample). The result is asserted to
+	 * be genuine and complete if this set is, so both are computed for this set first;
+	 * use withoutDeadSamples to skip that.
+	 */
 	public SampleSet minusDeadSamples() {
-		return new SampleSet(counterName, Arrays.stream(samples).filter((s) -> !s.isDeadSample()).toList(), meta.isGenuine(), meta.isComplete());
+		return withoutDeadSamples(meta.isGenuine(), meta.isComplete());
+	}
+	
+	/* Removes every dead sample without copying. A process can only die once, so in a
+	 * genuine set the dead samples are all at the end and the result is a view of the
+	 * rest (otherwise, the samples that are alive are copied). Throws an
+	 * IllegalArgumentException if fewer than 2 samples are alive.
+	 */
+	public SampleSet withoutDeadSamples() {
+		return withoutDeadSamples(false, false);
+	}
+	
+	private SampleSet withoutDeadSamples(boolean assertGenuine, boolean assertComplete) {
+		int end = size();
+		while (end > 0 && isDead(end - 1))
+			end--;
+		for (int i = 0; i < end; i++) {
+			if (isDead(i))
+				return copyAliveSamples(assertGenuine, assertComplete);
+		}
+		if (end == size())
+			return this;
+		return view(0, end, null, assertGenuine, assertComplete);
+	}
+	
+	private SampleSet copyAliveSamples(boolean assertGenuine, boolean assertComplete) {
+		int alive = 0;
+		for (int i = 0; i < size(); i++) {
+			if (!isDead(i))
+				alive++;
+		}
+		long[] timestamps = new long[alive];
+		double[][] values = new double[schema.size()][alive];
+		int index = 0;
+		for (int i = 0; i < size(); i++) {
+			if (isDead(i))
+				continue;
+			timestamps[index] = columns.timestamp(i);
+			for (int c = 0; c < values.length; c++)
+				values[c][index] = columns.value(c, i);
+			index++;
+		}
+		return new SampleSet(counterName, schema, new SampleColumns.Heap(timestamps, values), assertGenuine, assertComplete);
+	}
+	
+	/* Removes all readings that aren't actual counters (see Sample#minusMetaReadings)
+	 * without copying, by viewing only the other counters of this set
+	 */
+	public SampleSet withoutMetaReadings() {
+		if (schema.minusMetaReadings() == schema)
+			return this;
+		return view(0, size(), schema.indicesWithout(SampleUtils.META_READINGS), false, false);
+	}
+	
+	/* A view of the samples at indices [fromIndex, toIndex), sharing this set's
+	 * columns. Throws an IllegalArgumentException if the range holds fewer than
+	 * 2 samples.
+	 */
+	public SampleSet subSet(int fromIndex, int toIndex) throws IndexOutOfBoundsException {
+		if (fromIndex < 0 || toIndex > size() || fromIndex > toIndex)
+			throw new IndexOutOfBoundsException("Range [" + fromIndex + ", " + toIndex + ") out of bounds for " + size() + " samples");
+		return view(fromIndex, toIndex, null, false, false);
+	}
+	
+	/* A view of the samples taken in [from, to) (either of which may be null to
+	 * leave that end open), sharing this set's columns. Returns null if fewer than
+	 * 2 samples were taken in the range.
+	 */
+	public SampleSet subSet(LocalDateTime from, LocalDateTime to) {
+		if (from != null && to != null && from.isAfter(to))
+			throw new IllegalArgumentException("The range must not end before it starts");
+		return select(null, from == null ? Long.MIN_VALUE : SampleUtils.toEpochNanos(from),
+				to == null ? Long.MAX_VALUE : SampleUtils.toEpochNanos(to), false, false);
+	}
+	
+	/* A view of only the given counters (or all of them if counters is null) of the
+	 * samples taken in [from, to), in epoch nanos. Returns null if fewer than 2
+	 * samples were taken in the range.
+	 */
+	SampleSet select(Collection<String> counters, long from, long to, boolean assertGenuine, boolean assertComplete) {
+		int[] indices = null;
+		if (counters != null) {
+			boolean[] kept = new boolean[schema.size()];
+			int numKept = 0;
+			for (String counter : counters) {
+				int c = schema.indexOf(counter);
+				if (c != -1 && !kept[c]) {
+					kept[c] = true;
+					numKept++;
+				}
+			}
+			indices = new int[numKept];
+			for (int c = 0, k = 0; c < kept.length; c++) {
+				if (kept[c])
+					indices[k++] = c;
+			}
+		}
+		int start = firstAtOrAfter(from);
+		int end = Math.max(start, firstAtOrAfter(to));
+		if (end - start < 2)
+			return null;
+		return view(start, end, indices, assertGenuine, assertComplete);
+	}
+	
+	//The index of the first sample taken at or after the timestamp (in epoch nanos), relying on the samples being in order
+	int firstAtOrAfter(long timestamp) {
+		int low = 0;
+		int high = size();
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (columns.timestamp(mid) < timestamp)
+				low = mid + 1;
+			else high = mid;
+		}
+		return low;
+	}
+	
+	/* Views the samples in [from, to) of the given counters (which must be in
+	 * ascending order, or null for all of them). Counters none of the viewed samples
+	 * have a reading for are left out, so that the schema stays the union of the
+	 * samples' counters. Its Meta only ever looks at the viewed samples.
+	 */
+	private SampleSet view(int from, int to, int[] counters, boolean assertGenuine, boolean assertComplete) {
+		int numCounters = counters == null ? schema.size() : counters.length;
+		int[] present = new int[numCounters];
+		int numPresent = 0;
+		for (int k = 0; k < numCounters; k++) {
+			int c = counters == null ? k : counters[k];
+			//in complete sets this stops at the first sample, so it's effectively free
+			for (int i = from; i < to; i++) {
+				if (!Double.isNaN(columns.value(c, i))) {
+					present[numPresent++] = c;
+					break;
+				}
+			}
+		}
+		if (counters == null && numPresent == numCounters)
+			return new SampleSet(counterName, schema, SampleColumns.View.of(columns, from, to, null), assertGenuine, assertComplete);
+		present = Arrays.copyOf(present, numPresent);
+		return new SampleSet(counterName, schema.subSchema(present), SampleColumns.View.of(columns, from, to, present), assertGenuine, assertComplete);
 	}
 	
 	/* The difference between counterName and processName is
@@ -65,46 +315,121 @@ public class SampleSet implements Iterable<Sample> {
 	}
 	
 	public int size() {
-		return samples.length;
+		return columns.numSamples();
+	}
+	
+	/* Roughly how many bytes of memory the set holds (see SampleColumns#sizeInBytes),
+	 * not counting statistics its Meta has computed, or the CounterSchema, which is shared
+	 */
+	public long sizeInBytes() {
+		return 64 + 2L * counterName.length() + columns.sizeInBytes();
 	}
 	
 	public Sample get(int index) throws IndexOutOfBoundsException {
-		if (index < 0 || index >= samples.length)
+		if (index < 0 || index >= size())
 			throw new IndexOutOfBoundsException(index);
-		return samples[index];
+		return sampleAt(index);
 	}
 	
 	public Sample[] samples() {
-		return samples.clone();
+		Sample[] samples = new Sample[size()];
+		for (int i = 0; i < samples.length; i++)
+			samples[i] = sampleAt(i);
+		return samples;
+	}
+	
+	/* The schema containing every counter that at least one Sample in the set
+	 * has a Reading for
+	 */
+	public CounterSchema schema() {
+		return schema;
 	}
 	
 	public Meta meta() {
 		return meta;
 	}
+	
+	SampleColumns columns() {
+		return columns;
+	}
+	
+	private Sample sampleAt(int index) {
+		double[] values = new double[schema.size()];
+		int present = 0;
+		for (int c = 0; c < values.length; c++) {
+			double value = columns.value(c, index);
+			if (!Double.isNaN(value))
+				values[present++] = value;
+		}
+		long timestamp = columns.timestamp(index);
+		if (present == values.length)
+			return new Sample(timestamp, schema, values, false);
+		int[] indices = new int[present];
+		int k = 0;
+		for (int c = 0; c < values.length; c++) {
+			if (!Double.isNaN(columns.value(c, index)))
+				indices[k++] = c;
+		}
+		return new Sample(timestamp, schema.subSchema(indices), Arrays.copyOf(values, present), false);
+	}
+	
+	//Mirrors Sample#isDeadSample without having to materialize the Sample
+	private boolean isDead(int index) {
+		for (int c = 0; c < schema.size(); c++) {
+			double value = columns.value(c, index);
+			if (!Double.isNaN(value) && Double.doubleToLongBits(value) != 0)
+				return false;
+		}
+		return true;
+	}
 
 	@Override
 	public Iterator<Sample> iterator() {
 		return new SampleIterator();
 	}
 	
-	/* NOTE: Only the counterName and samples array are used for hashCode and
+	/* NOTE: Only the counterName, schema and columns are used for hashCode and
 	 * equals. All other fields are derived from these, so we can safely assume
 	 * that if they are equal, then the other fields are equal as well.
 	 */
 	private int calcHashCode() {
-		return counterName.hashCode() ^ Arrays.hashCode(samples); 
+		int hashCode = counterName.hashCode() ^ schema.hashCode();
+		for (int i = 0; i < size(); i++) {
+			hashCode = 31 * hashCode + Long.hashCode(columns.timestamp(i));
+			for (int c = 0; c < schema.size(); c++)
+				hashCode = 31 * hashCode + Double.hashCode(columns.value(c, i));
+		}
+		return hashCode;
 	}
 	
 	@Override
 	public int hashCode() {
-		return hashCode;
+		int h = hashCode;
+		//0 is also a valid hash, which is just recomputed every time
+		if (h == 0)
+			hashCode = h = calcHashCode();
+		return h;
 	}
 	
 	@Override
 	public boolean equals(Object obj) {
-		return obj instanceof SampleSet s
-				&& s.counterName.equals(counterName)
-				&& Arrays.equals(s.samples, samples);
+		if (obj == this)
+			return true;
+		if (!(obj instanceof SampleSet s)
+				|| s.hashCode() != hashCode()
+				|| !s.counterName.equals(counterName)
+				|| s.schema != schema
+				|| s.size() != size())
+			return false;
+		for (int i = 0; i < size(); i++) {
+			if (s.columns.timestamp(i) != columns.timestamp(i))
+				return false;
+			for (int c = 0; c < schema.size(); c++) {
+				if (Double.doubleToLongBits(s.columns.value(c, i)) != Double.doubleToLongBits(columns.value(c, i)))
+					return false;
+			}
+		}
+		return true;
 	}
 	
 	private class SampleIterator implements Iterator<Sample> {
@@ -113,22 +438,26 @@ public class SampleSet implements Iterable<Sample> {
 		
 		@Override
 		public boolean hasNext() {
-			return index < samples.length; 
+			return index < size(); 
 		}
 		
 		@Override
 		public Sample next() throws NoSuchElementException {
 			if (!hasNext())
 				throw new NoSuchElementException();
-			return samples[index++];
+			return sampleAt(index++);
 		}
 		
 	}
 	
-	/* Since SampleSets are immutable, we can pre-compute some information
-	 * about the set on instantiation, to reduce the load later down the line.
+	/* Since SampleSets are immutable, we can compute some information about
+	 * the set once and reuse it, to reduce the load later down the line.
 	 * 
-	 * The Meta class contains said pre-computed information.
+	 * The Meta class contains said information. Each statistic is computed
+	 * the first time it is asked for and then cached, so that sets which are
+	 * only loaded to be iterated over (or to have their processName checked)
+	 * never pay for statistics nobody reads. The exceptions are genuine and
+	 * complete, which are computed on instantiation if they were asserted.
 	 * 
 	 * genuine: Whether the SampleSet is "genuine", in that all of the samples
 	 * are of the same PID, and the Sample timestamps are relatively regular 
@@ -147,6 +476,34 @@ public class SampleSet implements Iterable<Sample> {
 	 * 
 	 */
 	
+	/* A thread-safe, memoized value. The supplier is called at most once,
+	 * and is then released so anything it captured can be collected.
+	 */
+	private static final class Lazy<T> {
+		
+		private Supplier<T> supplier;
+		private volatile T value;
+		
+		private Lazy(Supplier<T> supplier) {
+			this.supplier = supplier;
+		}
+		
+		private T get() {
+			T v = value;
+			if (v == null) {
+				synchronized (this) {
+					v = value;
+					if (v == null) {
+						value = v = supplier.get();
+						supplier = null;
+					}
+				}
+			}
+			return v;
+		}
+		
+	}
+	
 	public class Meta {
 		
 		private static final String PID_READING = "id process";
@@ -162,134 +519,125 @@ public class SampleSet implements Iterable<Sample> {
 		 * intervals[0] is the interval between samples[0] and samples[1],
 		 * intervals[1] is the interval between samples[1] and samples[2], etc.
 		 */
-		private final Duration[] intervals;
-		private final Duration minInterval;
-		private final Duration maxInterval;
-		private final Duration meanInterval;
-		
-		private final Sample minSample;
-		private final Sample maxSample;
-		private final Sample meanSample;
-		
-		private final String genuine;
-		private final boolean complete;
-		private final int maxNumReadings;
-		
-		private final double[][] covMatrix;
-		
-		/* Order of computation:
-		 * 
-		 * 1. Intervals
-		 * 2. Complete
-		 * 3. Min/Max/Means
-		 * 4. Genuine
-		 * 
-		 */
+		private final Lazy<long[]> intervals = new Lazy<>(this::calcIntervals);
+		//min, max, mean
+		private final Lazy<long[]> minMaxMeanIntervals = new Lazy<>(this::calcMinMaxMeanIntervals);
+		
+		//min, max, mean
+		private final Lazy<Sample[]> minMaxMeanSamples = new Lazy<>(this::calcMinMaxMeanSamples);
+		
+		//empty if the set is genuine, otherwise the reason it is not
+		private final Lazy<Optional<String>> genuine = new Lazy<>(() -> Optional.ofNullable(calcGenuine()));
+		private final Lazy<Boolean> complete = new Lazy<>(this::calcComplete);
+		private final Lazy<Integer> maxNumReadings = new Lazy<>(this::calcMaxNumReadings);
+		
+		private final Lazy<double[][]> covMatrix = new Lazy<>(this::calcCovMatrix);
 		
 		private Meta(boolean assertGenuine, boolean assertComplete) {
-			this.intervals = calcIntervals();
-			this.complete = calcComplete();
-			if (!complete && assertComplete)
+			if (assertComplete && !isComplete())
 				throw new IllegalArgumentException("The given Samples are not complete");
-			this.maxNumReadings = calcMaxNumReadings();
-			Duration[] minMaxMeanIntervals = calcMinMaxMeanIntervals();
-			this.minInterval = minMaxMeanIntervals[0];
-			this.maxInterval = minMaxMeanIntervals[1];
-			this.meanInterval = minMaxMeanIntervals[2];
-			Sample[] minMaxMeanSamples = calcMinMaxMeanSamples();
-			this.minSample = minMaxMeanSamples[0];
-			this.maxSample = minMaxMeanSamples[1];
-			this.meanSample = minMaxMeanSamples[2];
-			this.genuine = calcGenuine();
-			if (!isGenuine() && assertGenuine)
-				throw new IllegalArgumentException("The given SampleSet is not genuine (" + genuine + ")");
-			this.covMatrix = calcCovMatrix();
+			if (assertGenuine && !isGenuine())
+				throw new IllegalArgumentException("The given SampleSet is not genuine (" + ingenuineReason() + ")");
 		}
 		
 		public Duration[] intervals() {
-			return intervals.clone();
+			long[] intervals = this.intervals.get();
+			Duration[] durations = new Duration[intervals.length];
+			for (int i = 0; i < intervals.length; i++)
+				durations[i] = Duration.ofNanos(intervals[i]);
+			return durations;
+		}
+		
+		//The same as intervals(), in nanoseconds
+		public long[] intervalNanos() {
+			return intervals.get().clone();
 		}
 		
 		public Duration minInterval() {
-			return minInterval;
+			return Duration.ofNanos(minMaxMeanIntervals.get()[0]);
 		}
 		
 		public Duration maxInterval() {
-			return maxInterval();
+			return Duration.ofNanos(minMaxMeanIntervals.get()[1]);
 		}
 		
 		public Duration meanInterval() {
-			return meanInterval;
+			return Duration.ofNanos(minMaxMeanIntervals.get()[2]);
 		}
 		
 		public Sample minSample() {
-			return minSample;
+			return minMaxMeanSamples.get()[0];
 		}
 		
 		public Sample maxSample() {
-			return maxSample;
+			return minMaxMeanSamples.get()[1];
 		}
 		
 		//NOTE: The meanSample's timestamp does not accurately
 		//reflect the mean of the timestamps. I did not think that was
 		//needed for the calculations, but if it is I can add it.
 		public Sample meanSample() {
-			return meanSample;
+			return minMaxMeanSamples.get()[2];
 		}
 		
 		public boolean isGenuine() {
-			return genuine == null;
+			return genuine.get().isEmpty();
 		}
 		
 		public String ingenuineReason() {
-			return genuine;
+			return genuine.get().orElse(null);
 		}
 		
 		public boolean isComplete() {
-			return complete;
+			return complete.get();
 		}
 		
 		public int maxNumReadings() {
-			return maxNumReadings;
+			return maxNumReadings.get();
 		}
 		
+		//Throws an IllegalStateException if the set is not complete
 		public double[][] getCovMatrix(){
-			return covMatrix.clone();
+			return covMatrix.get().clone();
 		}
 		
+		//Every counter column is populated for every sample
 		private boolean calcComplete() {
-			Set<String> readings = Arrays.stream(samples[0].readings())
-					.map(Sample.Reading::name)
-					.collect(Collectors.toSet());
-			for (int i = 1; i < samples.length; i++) {
-				Sample sample = samples[i];
-				if (sample.numReadings() != readings.size())
-					return false;
-				for (Sample.Reading reading : sample)
-					if (!readings.contains(reading.name()))
+			for (int c = 0; c < schema.size(); c++) {
+				for (int i = 0; i < size(); i++) {
+					if (Double.isNaN(columns.value(c, i)))
 						return false;
+				}
 			}
 			return true;
 		}
 		
 		private int calcMaxNumReadings() {
-			if (complete) {
-				return samples[0].numReadings();
+			if (isComplete()) {
+				return schema.size();
+			}
+			int[] numReadings = new int[size()];
+			for (int c = 0; c < schema.size(); c++) {
+				for (int i = 0; i < numReadings.length; i++) {
+					if (!Double.isNaN(columns.value(c, i)))
+						numReadings[i]++;
+				}
 			}
 			int max = 0;
-			for (Sample s : samples) {
-				if (s.numReadings() > max)
-					max = s.numReadings();
+			for (int n : numReadings) {
+				if (n > max)
+					max = n;
 			}
 			return max;
 		}
 		
 		private String calcGenuine() {
+			int pidCounter = schema.indexOf(PID_READING);
 			long pid = -1;
 			boolean assigned = false;
 			boolean died = false;
-			for (Sample s : samples) {
-				if (s.isDeadSample()) {
+			for (int i = 0; i < size(); i++) {
+				if (isDead(i)) {
 					died = true;
 					continue;
 				}
@@ -301,9 +649,9 @@ public class SampleSet implements Iterable<Sample> {
 				 */
 				else if (died)
 					return "contains non-dead samples that were taken after dead samples";
-				if (!s.hasReading(PID_READING))
+				if (pidCounter == -1 || Double.isNaN(columns.value(pidCounter, i)))
 					return "missing 1 or more PID reading";
-				long p = Double.doubleToLongBits(s.getReading(PID_READING).value());
+				long p = Double.doubleToLongBits(columns.value(pidCounter, i));
 				//pid's can never be negative
 				if (p < 0)
 					return "illegal PID value";
@@ -314,9 +662,10 @@ public class SampleSet implements Iterable<Sample> {
 				else if (pid != p)
 					return "contains multiple PID values";
 			}
-			long min = minInterval.getSeconds() + minInterval.getNano();
-			long max = maxInterval.getSeconds() + maxInterval.getNano();
-			long mean = meanInterval.getSeconds() + meanInterval.getNano();
+			long[] minMaxMean = minMaxMeanIntervals.get();
+			long min = secondsPlusNanos(minMaxMean[0]);
+			long max = secondsPlusNanos(minMaxMean[1]);
+			long mean = secondsPlusNanos(minMaxMean[2]);
 			//if the ratio of max interval : mean interval or the ratio of
 			//mean interval : min interval is greater than INTERVAL_OUTLIER_TOLERANCE,
 			//we are assuming that the data was not gathered in the same runtime
@@ -327,107 +676,53 @@ public class SampleSet implements Iterable<Sample> {
 			return null;
 		}
 		
-		private Duration[] calcIntervals() {
-			List<Duration> intervals = new ArrayList<>();
-			for (int i = 1; i < samples.length; i++) {
-				intervals.add(Duration.between(samples[i - 1].timestamp(), samples[i].timestamp()).abs());
+		private long[] calcIntervals() {
+			long[] intervals = new long[size() - 1];
+			for (int i = 1; i < size(); i++) {
+				intervals[i - 1] = Math.abs(columns.timestamp(i) - columns.timestamp(i - 1));
 			}
-			return intervals.toArray(Duration[]::new);
+			return intervals;
+		}
+		
+		/* NOTE: the mean (and the genuineness check above) have always added an
+		 * interval's whole seconds to its leftover nanos, rather than converting it
+		 * all to nanos. That is kept as-is, since changing it would change which
+		 * existing captures are considered genuine.
+		 */
+		private static long secondsPlusNanos(long nanos) {
+			return nanos / SampleUtils.NANOS_PER_SECOND + nanos % SampleUtils.NANOS_PER_SECOND;
 		}
 		
-		private Duration[] calcMinMaxMeanIntervals() {
-			Duration min = intervals[0];
-			Duration max = intervals[0];
+		private long[] calcMinMaxMeanIntervals() {
+			long[] intervals = this.intervals.get();
+			long min = intervals[0];
+			long max = intervals[0];
 			long avg = 0;
-			for (Duration d : intervals) {
-				if (d.compareTo(min) < 0)
+			for (long d : intervals) {
+				if (d < min)
 					min = d;
-				if (d.compareTo(max) > 0)
+				if (d > max)
 					max = d;
-				avg += d.getSeconds() + d.getNano();
-			}
-			Duration average = Duration.ofNanos((avg / intervals.length));
-			return new Duration[]{ min, max, average};
-		}
-		
-		//Prepares a Map containing entries of all of the readings
-		//with a value of 0
-		private Map<String, List<Sample.Reading>> emptyReadings() {
-			Map<String, List<Sample.Reading>> readings = new HashMap<>();
-			if (complete) {
-				for (Sample.Reading reading : samples[0]) {
-					readings.put(reading.name(), new ArrayList<>());
-				}
-			}
-			else {
-				for (Sample s : samples) {
-					for (Sample.Reading r : s) {
-						readings.putIfAbsent(r.name(), new ArrayList<>());
-					}
-				}
+				avg += secondsPlusNanos(d);
 			}
-			return readings;
-		}
-		
-		private static double meanReading(List<Sample.Reading> readings) {
-			double total = 0;
-			for (Sample.Reading r : readings)
-				total += r.value();
-			return total / readings.size();
+			return new long[]{ min, max, avg / intervals.length };
 		}
 		
 		//TODO: Do we need the average timestamp?
 		private Sample[] calcMinMaxMeanSamples() {
-			Map<String, List<Sample.Reading>> sorted = emptyReadings();
-			Map<String, Sample.Reading> minReadings = new HashMap<>();
-			Map<String, Sample.Reading> maxReadings = new HashMap<>();
-			Map<String, Sample.Reading> meanReadings = new HashMap<>();
-			LocalDateTime minTimestamp = null;
-			LocalDateTime maxTimestamp = null;
-			for (Sample s : samples) {
-				for (Sample.Reading r : s) {
-					String name = r.name();
-					sorted.get(name).add(r);
-					if (!minReadings.containsKey(name) || minReadings.get(name).compareValues(r) > 0)
-						minReadings.put(name, r);
-					if (!maxReadings.containsKey(name) || maxReadings.get(name).compareValues(r) < 0)
-						maxReadings.put(name, r);
-				}
-				LocalDateTime timestamp = s.timestamp();
-				if (minTimestamp == null || minTimestamp.compareTo(timestamp) > 0)
-					minTimestamp = timestamp;
-				if (maxTimestamp == null || maxTimestamp.compareTo(timestamp) < 0)
-					maxTimestamp = timestamp;
-			}
-			for (Map.Entry<String, List<Sample.Reading>> entry : sorted.entrySet()) {
-				String name = entry.getKey();
-				meanReadings.put(name, new Sample.Reading(name, meanReading(entry.getValue())));
-			}
+			//Every counter has a value in at least one sample, so each counter
+			//will always have a min, max and mean
+			SampleStatistics statistics = SampleStatistics.of(SampleSet.this, false);
 			return new Sample[] {
-					new Sample(minTimestamp, minReadings.values().toArray(Sample.Reading[]::new)),
-					new Sample(maxTimestamp, maxReadings.values().toArray(Sample.Reading[]::new)),
-					new Sample(LocalDateTime.MIN, meanReadings.values().toArray(Sample.Reading[]::new))
+					new Sample(statistics.minTimestamp(), schema, statistics.mins(), false),
+					new Sample(statistics.maxTimestamp(), schema, statistics.maxs(), false),
+					new Sample(LocalDateTime.MIN, schema, statistics.means(), false)
 					};
 		}
 		
 		private double[][] calcCovMatrix() {
-			//this.meanSample
-			if (complete) {
-				int size = samples[0].numReadings();
-				double[][] covMatrix = new double[size][size];
-				for (int i = 0; i < size; i++) {
-					for (int j=i; j < size; j++) {
-						for (Sample s : samples) {
-							double covVal = (s.get(i).value() - meanSample.get(i).value()) * (s.get(j).value() - meanSample.get(j).value()) / samples.length;
-							covMatrix[i][j] += covVal;
-							if (i != j) {
-								covMatrix[j][i] += covVal;
-							}
-						}
-					}
-				}
-				
-				return covMatrix;
+			if (isComplete()) {
+				return CovarianceUtils.covariance(SampleSet.this);
 			}
 			else {
 				throw new IllegalStateException();
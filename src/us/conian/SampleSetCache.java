@@ -0,0 +1,118 @@
+package us.conian;
+
+import java.io.IOException;
+import java.util.*;
+
+/* A cache of the SampleSets behind SampleSetHandles, holding at most a set number
+ * of bytes worth of SampleSets (see SampleSet#sizeInBytes). When adding a SampleSet
+ * would go over the budget, the least recently used SampleSets are evicted until it
+ * fits, so a corpus much larger than the budget can be walked over (repeatedly)
+ * while only the sets in use, and the most recently used ones, stay in memory.
+ * A SampleSet larger than the whole budget is still returned, just not kept.
+ *
+ * SampleSets are loaded outside of the cache's lock, so threads loading
+ * different SampleSets don't wait on each other. If two threads load the same
+ * SampleSet at the same time, both load it and the first one to finish is kept.
+ * The cache is thread-safe.
+ */
+public class SampleSetCache {
+
+	private final long budget;
+
+	//in access order, least recently used first
+	private final LinkedHashMap<SampleSetHandle, SampleSet> sets = new LinkedHashMap<>(16, 0.75f, true);
+	private long size = 0;
+
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	//budget is the maximum number of bytes of SampleSets to keep
+	public SampleSetCache(long budget) {
+		if (budget < 0)
+			throw new IllegalArgumentException("The budget must not be negative");
+		this.budget = budget;
+	}
+
+	SampleSet get(SampleSetHandle handle) throws IOException, SampleParseException {
+		synchronized (this) {
+			SampleSet cached = sets.get(handle);
+			if (cached != null) {
+				hits++;
+				return cached;
+			}
+			misses++;
+		}
+		SampleSet loaded = handle.load();
+		long loadedSize = loaded.sizeInBytes();
+		synchronized (this) {
+			SampleSet cached = sets.get(handle);
+			if (cached != null)
+				return cached;
+			if (loadedSize > budget)
+				return loaded;
+			evict(budget - loadedSize);
+			sets.put(handle, loaded);
+			size += loadedSize;
+		}
+		return loaded;
+	}
+
+	//Evicts least recently used SampleSets until at most target bytes are held
+	private void evict(long target) {
+		Iterator<SampleSet> it = sets.values().iterator();
+		while (size > target && it.hasNext()) {
+			size -= it.next().sizeInBytes();
+			it.remove();
+			evictions++;
+		}
+	}
+
+	//Whether the handle's SampleSet is currently cached, without counting as a use of it
+	public synchronized boolean contains(SampleSetHandle handle) {
+		return sets.containsKey(handle);
+	}
+
+	public synchronized void invalidate(SampleSetHandle handle) {
+		SampleSet removed = sets.remove(handle);
+		if (removed != null)
+			size -= removed.sizeInBytes();
+	}
+
+	public synchronized void clear() {
+		sets.clear();
+		size = 0;
+	}
+
+	public long budget() {
+		return budget;
+	}
+
+	//The number of bytes of SampleSets currently held
+	public synchronized long size() {
+		return size;
+	}
+
+	public synchronized int numCached() {
+		return sets.size();
+	}
+
+	public synchronized long hits() {
+		return hits;
+	}
+
+	public synchronized long misses() {
+		return misses;
+	}
+
+	public synchronized long evictions() {
+		return evictions;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "SampleSetCache[" + sets.size() + " sets, " + size + "/" + budget + " bytes, "
+				+ hits + " hits, " + misses + " misses, " + evictions + " evictions]";
+	}
+
+}
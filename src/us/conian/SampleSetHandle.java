@@ -0,0 +1,116 @@
+package us.conian;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+
+/* A lightweight reference to a SampleSet stored in a file (or in a capture archive),
+ * which is only loaded when it is first asked for, and then kept in a shared
+ * SampleSetCache for as long as the cache's budget allows. Handles for an entire
+ * corpus take little more memory than its file names, so analyses that make several
+ * passes over a corpus don't need a heap big enough to hold all of it at once.
+ *
+ * Two handles are equal if they refer to the same SampleSet with the same
+ * assertions, so they share the same cached SampleSet.
+ */
+public final class SampleSetHandle {
+
+	private final Path file;
+	private final String counterName;
+	private final String processName;
+	private final boolean archived;
+	private final boolean assertGenuine;
+	private final boolean assertComplete;
+	private final SampleSetCache cache;
+
+	private SampleSetHandle(Path file, String counterName, boolean archived,
+			boolean assertGenuine, boolean assertComplete, SampleSetCache cache) {
+		this.file = file;
+		this.counterName = counterName;
+		//the same as SampleSet
+		this.processName = counterName.split("#")[0];
+		this.archived = archived;
+		this.assertGenuine = assertGenuine;
+		this.assertComplete = assertComplete;
+		this.cache = cache;
+	}
+
+	/* A handle to a Samples file (in any format SampleUtils#loadSampleSet can read),
+	 * whose counterName is taken from the file name, the same as CSVSampleParser does
+	 */
+	public static SampleSetHandle of(File file, boolean assertGenuine, boolean assertComplete, SampleSetCache cache) {
+		if (file == null || cache == null)
+			throw new NullPointerException();
+		String name = file.getName();
+		int extension = name.lastIndexOf('.');
+		return new SampleSetHandle(file.toPath(), extension == -1 ? name : name.substring(0, extension),
+				false, assertGenuine, assertComplete, cache);
+	}
+
+	//A handle to one of the SampleSets in a capture archive
+	public static SampleSetHandle of(Path archive, String counterName, boolean assertGenuine, boolean assertComplete, SampleSetCache cache) {
+		if (archive == null || counterName == null || cache == null)
+			throw new NullPointerException();
+		return new SampleSetHandle(archive, counterName, true, assertGenuine, assertComplete, cache);
+	}
+
+	//A handle to the SampleSet of a catalog entry
+	public static SampleSetHandle of(SampleCatalog.Entry entry, boolean assertGenuine, boolean assertComplete, SampleSetCache cache) {
+		if (entry == null || cache == null)
+			throw new NullPointerException();
+		return new SampleSetHandle(entry.file(), entry.counterName(), entry.isArchived(), assertGenuine, assertComplete, cache);
+	}
+
+	public Path file() {
+		return file;
+	}
+
+	public String counterName() {
+		return counterName;
+	}
+
+	public String processName() {
+		return processName;
+	}
+
+	//Returns the SampleSet, loading it if it isn't cached
+	public SampleSet get() throws IOException, SampleParseException {
+		return cache.get(this);
+	}
+
+	public boolean isLoaded() {
+		return cache.contains(this);
+	}
+
+	SampleSet load() throws IOException, SampleParseException {
+		if (!archived)
+			return SampleUtils.loadSampleSet(file.toFile(), assertGenuine, assertComplete);
+		try (CaptureArchive archive = CaptureArchive.open(file)) {
+			SampleSet samples = archive.read(counterName, assertGenuine, assertComplete);
+			if (samples == null)
+				throw new SampleParseException("The capture archive " + file.toAbsolutePath() + " does not hold " + counterName);
+			return samples;
+		}
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(file, counterName, assertGenuine, assertComplete);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		return obj instanceof SampleSetHandle h
+				&& h.file.equals(file)
+				&& h.counterName.equals(counterName)
+				&& h.assertGenuine == assertGenuine
+				&& h.assertComplete == assertComplete;
+	}
+
+	@Override
+	public String toString() {
+		return file + (archived ? "!" + counterName : "");
+	}
+
+}
@@ -0,0 +1,329 @@
+package us.conian;
+
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.stream.Collector;
+
+/* Accumulates per-counter statistics over Samples in a single pass, without
+ * holding on to the Samples themselves. For each counter of the schema it
+ * tracks the count, min, max, mean and sum of squared differences from the
+ * mean (M2), updated with Welford's algorithm so that the results stay
+ * numerically stable over long captures. Optionally, it also tracks the
+ * co-moments between every pair of counters, from which the covariance
+ * matrix is computed.
+ *
+ * Two accumulators over the same schema can be merged with combine(), using
+ * the pairwise update from Chan et al., so a large set of Samples can be
+ * split into partitions that are accumulated in parallel and then reduced.
+ *
+ * Readings for counters that are not part of the schema are ignored. Since
+ * the co-moments relate every counter to every other counter, a Sample only
+ * contributes to them if it has a reading for every counter of the schema;
+ * jointCount() is the number of Samples that did.
+ *
+ * Like most accumulators, a SampleStatistics is not thread-safe.
+ */
+public class SampleStatistics {
+	
+	private final CounterSchema schema;
+	private final boolean trackCovariance;
+	
+	private long numSamples = 0;
+	private long minTimestamp = Long.MAX_VALUE;
+	private long maxTimestamp = Long.MIN_VALUE;
+	
+	private final long[] counts;
+	private final double[] mins;
+	private final double[] maxs;
+	private final double[] means;
+	private final double[] m2s;
+	//reused to hold the readings of each Sample as it is accepted
+	private final double[] row;
+	
+	//only allocated when tracking the covariance
+	private long jointCount = 0;
+	private final double[] jointMeans;
+	//the upper triangle of the co-moment matrix, stored row-major as a full matrix
+	private final double[] comoments;
+	private final double[] deltas;
+	
+	public SampleStatistics(CounterSchema schema, boolean trackCovariance) {
+		if (schema == null)
+			throw new NullPointerException();
+		int size = schema.size();
+		this.schema = schema;
+		this.trackCovariance = trackCovariance;
+		this.counts = new long[size];
+		this.mins = new double[size];
+		this.maxs = new double[size];
+		this.means = new double[size];
+		this.m2s = new double[size];
+		Arrays.fill(mins, Double.NaN);
+		Arrays.fill(maxs, Double.NaN);
+		this.jointMeans = trackCovariance ? new double[size] : null;
+		this.comoments = trackCovariance ? new double[size * size] : null;
+		this.row = new double[size];
+		this.deltas = trackCovariance ? new double[size] : null;
+	}
+	
+	public SampleStatistics(CounterSchema schema) {
+		this(schema, false);
+	}
+	
+	public static SampleStatistics of(SampleSet samples, boolean trackCovariance) {
+		if (samples == null)
+			throw new NullPointerException();
+		SampleStatistics statistics = new SampleStatistics(samples.schema(), trackCovariance);
+		statistics.accept(samples);
+		return statistics;
+	}
+	
+	//For reducing a (possibly parallel) Stream of Samples
+	public static Collector<Sample, SampleStatistics, SampleStatistics> collector(CounterSchema schema, boolean trackCovariance) {
+		if (schema == null)
+			throw new NullPointerException();
+		return Collector.of(
+				() -> new SampleStatistics(schema, trackCovariance),
+				SampleStatistics::accept,
+				SampleStatistics::combine,
+				Collector.Characteristics.IDENTITY_FINISH
+				);
+	}
+	
+	public void accept(Sample sample) {
+		if (sample == null)
+			throw new NullPointerException();
+		CounterSchema sampleSchema = sample.schema();
+		if (sampleSchema == schema) {
+			for (int c = 0; c < row.length; c++)
+				row[c] = sample.value(c);
+		}
+		else {
+			Arrays.fill(row, Double.NaN);
+			for (int k = 0; k < sampleSchema.size(); k++) {
+				int c = schema.indexOf(sampleSchema.name(k));
+				if (c != -1)
+					row[c] = sample.value(k);
+			}
+		}
+		acceptTimestamp(sample.epochNanos());
+		for (int c = 0; c < row.length; c++) {
+			if (!Double.isNaN(row[c]))
+				update(c, row[c]);
+		}
+		if (trackCovariance)
+			updateJoint();
+	}
+	
+	/* Accepts every Sample of the set. The per-counter statistics are accumulated
+	 * a column at a time, straight from the set's columns.
+	 */
+	public void accept(SampleSet samples) {
+		if (samples == null)
+			throw new NullPointerException();
+		SampleColumns columns = samples.columns();
+		CounterSchema setSchema = samples.schema();
+		int n = columns.numSamples();
+		int[] targets = new int[setSchema.size()];
+		for (int k = 0; k < targets.length; k++)
+			targets[k] = setSchema == schema ? k : schema.indexOf(setSchema.name(k));
+		for (int i = 0; i < n; i++)
+			acceptTimestamp(columns.timestamp(i));
+		for (int k = 0; k < targets.length; k++) {
+			int c = targets[k];
+			if (c == -1)
+				continue;
+			for (int i = 0; i < n; i++) {
+				double value = columns.value(k, i);
+				if (!Double.isNaN(value))
+					update(c, value);
+			}
+		}
+		if (trackCovariance) {
+			for (int i = 0; i < n; i++) {
+				Arrays.fill(row, Double.NaN);
+				for (int k = 0; k < targets.length; k++) {
+					if (targets[k] != -1)
+						row[targets[k]] = columns.value(k, i);
+				}
+				updateJoint();
+			}
+		}
+	}
+	
+	private void acceptTimestamp(long timestamp) {
+		numSamples++;
+		if (timestamp < minTimestamp)
+			minTimestamp = timestamp;
+		if (timestamp > maxTimestamp)
+			maxTimestamp = timestamp;
+	}
+	
+	private void update(int c, double value) {
+		long n = ++counts[c];
+		if (n == 1 || Double.compare(mins[c], value) > 0)
+			mins[c] = value;
+		if (n == 1 || Double.compare(maxs[c], value) < 0)
+			maxs[c] = value;
+		double delta = value - means[c];
+		means[c] += delta / n;
+		m2s[c] += delta * (value - means[c]);
+	}
+	
+	//Updates the co-moments from the current row, if it has every counter
+	private void updateJoint() {
+		for (double value : row) {
+			if (Double.isNaN(value))
+				return;
+		}
+		int size = row.length;
+		long n = ++jointCount;
+		for (int i = 0; i < size; i++) {
+			deltas[i] = row[i] - jointMeans[i];
+			jointMeans[i] += deltas[i] / n;
+		}
+		for (int i = 0; i < size; i++) {
+			double delta = deltas[i];
+			int offset = i * size;
+			for (int j = i; j < size; j++)
+				comoments[offset + j] += delta * (row[j] - jointMeans[j]);
+		}
+	}
+	
+	/* Merges the other accumulator into this one, and returns this one. Both must
+	 * have the same schema, and must both (or neither) be tracking the covariance.
+	 */
+	public SampleStatistics combine(SampleStatistics other) {
+		if (other == null)
+			throw new NullPointerException();
+		if (other.schema != schema)
+			throw new IllegalArgumentException("Cannot combine statistics over different schemas");
+		if (other.trackCovariance != trackCovariance)
+			throw new IllegalArgumentException("Cannot combine statistics that do not both track the covariance");
+		numSamples += other.numSamples;
+		minTimestamp = Math.min(minTimestamp, other.minTimestamp);
+		maxTimestamp = Math.max(maxTimestamp, other.maxTimestamp);
+		for (int c = 0; c < counts.length; c++) {
+			long nb = other.counts[c];
+			if (nb == 0)
+				continue;
+			long na = counts[c];
+			if (na == 0 || Double.compare(mins[c], other.mins[c]) > 0)
+				mins[c] = other.mins[c];
+			if (na == 0 || Double.compare(maxs[c], other.maxs[c]) < 0)
+				maxs[c] = other.maxs[c];
+			long n = na + nb;
+			double delta = other.means[c] - means[c];
+			means[c] += delta * nb / n;
+			m2s[c] += other.m2s[c] + delta * delta * ((double) na * nb / n);
+			counts[c] = n;
+		}
+		if (trackCovariance && other.jointCount != 0) {
+			long na = jointCount;
+			long nb = other.jointCount;
+			long n = na + nb;
+			int size = row.length;
+			for (int i = 0; i < size; i++)
+				deltas[i] = other.jointMeans[i] - jointMeans[i];
+			double weight = (double) na * nb / n;
+			for (int i = 0; i < size; i++) {
+				int offset = i * size;
+				for (int j = i; j < size; j++)
+					comoments[offset + j] += other.comoments[offset + j] + deltas[i] * deltas[j] * weight;
+			}
+			for (int i = 0; i < size; i++)
+				jointMeans[i] += deltas[i] * nb / n;
+			jointCount = n;
+		}
+		return this;
+	}
+	
+	public CounterSchema schema() {
+		return schema;
+	}
+	
+	//The number of Samples accepted
+	public long count() {
+		return numSamples;
+	}
+	
+	//The number of readings accepted for the given counter
+	public long count(int counter) {
+		return counts[counter];
+	}
+	
+	//NaN if there have been no readings for the counter
+	public double min(int counter) {
+		return mins[counter];
+	}
+	
+	public double max(int counter) {
+		return maxs[counter];
+	}
+	
+	public double mean(int counter) {
+		return counts[counter] == 0 ? Double.NaN : means[counter];
+	}
+	
+	//The population variance (i.e. divided by the number of readings)
+	public double variance(int counter) {
+		return counts[counter] == 0 ? Double.NaN : m2s[counter] / counts[counter];
+	}
+	
+	public double[] mins() {
+		return mins.clone();
+	}
+	
+	public double[] maxs() {
+		return maxs.clone();
+	}
+	
+	public double[] means() {
+		double[] means = this.means.clone();
+		for (int c = 0; c < means.length; c++) {
+			if (counts[c] == 0)
+				means[c] = Double.NaN;
+		}
+		return means;
+	}
+	
+	//null if no Samples have been accepted
+	public LocalDateTime minTimestamp() {
+		return numSamples == 0 ? null : SampleUtils.fromEpochNanos(minTimestamp);
+	}
+	
+	public LocalDateTime maxTimestamp() {
+		return numSamples == 0 ? null : SampleUtils.fromEpochNanos(maxTimestamp);
+	}
+	
+	public boolean tracksCovariance() {
+		return trackCovariance;
+	}
+	
+	//The number of Samples that had a reading for every counter, and so contributed to the covariance
+	public long jointCount() {
+		return jointCount;
+	}
+	
+	/* The population covariance matrix (divided by the number of Samples, the
+	 * same as SampleSet.Meta), indexed by the schema's counter indices. Throws
+	 * an IllegalStateException if the covariance is not being tracked.
+	 */
+	public double[][] covarianceMatrix() {
+		if (!trackCovariance)
+			throw new IllegalStateException("The covariance is not being tracked");
+		int size = row.length;
+		double[][] matrix = new double[size][size];
+		if (jointCount == 0)
+			return matrix;
+		for (int i = 0; i < size; i++) {
+			for (int j = i; j < size; j++) {
+				double covariance = comoments[i * size + j] / jointCount;
+				matrix[i][j] = covariance;
+				matrix[j][i] = covariance;
+			}
+		}
+		return matrix;
+	}
+
+}
@@ -1,12 +1,22 @@
 package us.conian;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.text.DecimalFormat;
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.time.format.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.regex.*;
 
 public class SampleUtils {
@@ -14,6 +24,13 @@ public class SampleUtils {
 	public static final String TIMESTAMP_PATTERN = "yyyy/MM/dd HH:mm:ss";
 	public static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern(TIMESTAMP_PATTERN);
 	
+	//Samples files in any format loadSampleSet(File) can read
+	public static final FileFilter SAMPLE_FILE_FILTER = (file) -> CSVUtils.FILE_FILTER.accept(file)
+			|| BinaryUtils.FILE_FILTER.accept(file) || GorillaUtils.FILE_FILTER.accept(file);
+	//The same as SAMPLE_FILE_FILTER, but also accepts capture archives
+	public static final FileFilter SAMPLE_OR_ARCHIVE_FILE_FILTER = (file) -> SAMPLE_FILE_FILTER.accept(file)
+			|| CaptureArchive.FILE_FILTER.accept(file);
+	
 	public static Sample[] parseRaw(List<String> sampleData) throws SampleParseException {
 		sampleData = new ArrayList<>(sampleData);
 		sampleData.removeIf(String::isBlank);
@@ -62,12 +79,7 @@ public class SampleUtils {
 		Matcher timestampMatch = CounterUtils.TIMESTAMP_PARSE_PATTERN.matcher(timestampLine);
 		if (!timestampMatch.matches())
 			throw new SampleParseException("The first line does not contain a timestamp: \"" + timestampLine + "\"");
-		LocalDateTime timestamp;
-		try {
-			timestamp = LocalDateTime.parse(timestampMatch.group(1), TIMESTAMP_FORMAT);
-		} catch (DateTimeParseException e) {
-			throw new SampleParseException("Failed to parse timestamp", e);
-		}
+		LocalDateTime timestamp = parseTimestamp(timestampMatch.group(1));
 		
 		Map<String, Double> readings = new HashMap<>();
 		//Note: the lines alternate between the name of the reading and the value,
@@ -99,15 +111,132 @@ public class SampleUtils {
 		LONG_FORMAT.setMaximumFractionDigits(0);
 	}
 	
+	//DecimalFormats aren't thread-safe, so every thread that needs one gets its own copy
+	private static final ThreadLocal<DecimalFormat> THREAD_DOUBLE_FORMAT = ThreadLocal.withInitial(() -> (DecimalFormat) DOUBLE_FORMAT.clone());
+	private static final ThreadLocal<DecimalFormat> THREAD_LONG_FORMAT = ThreadLocal.withInitial(() -> (DecimalFormat) LONG_FORMAT.clone());
+	
+	//whole values below this are formatted as longs, which is exact
+	private static final double MAX_FAST_WHOLE = 1e15;
+	private static final int MAX_FRACTION_DIGITS = 8;
+	
+	//The way Reading#toString formats a value. Thread-safe
+	public static String formatValue(double value) {
+		return appendValue(new StringBuilder(24), value).toString();
+	}
+	
+	/* Appends the value exactly the way LONG_FORMAT (for whole values) or
+	 * DOUBLE_FORMAT (for everything else) would, without going through a
+	 * DecimalFormat for the values captures are made of. Whole values are
+	 * appended as longs, and other values are taken from Double#toString, which
+	 * has the same digits DecimalFormat starts from: if there are no more than
+	 * 8 fraction digits, DecimalFormat wouldn't round them, so they only need to
+	 * be written out without an exponent (and, because of the "#" pattern,
+	 * without a 0 before the decimal point). Anything else (negative values,
+	 * -0, NaN, infinities, huge values and values that need rounding) is
+	 * formatted by a per-thread copy of the DecimalFormat. Thread-safe.
+	 */
+	public static StringBuilder appendValue(StringBuilder sb, double value) {
+		if (sb == null)
+			throw new NullPointerException();
+		if (isWhole(value)) {
+			if (value >= 0 && value < MAX_FAST_WHOLE && Double.doubleToRawLongBits(value) != Double.doubleToRawLongBits(-0.0))
+				return sb.append((long) value);
+			return sb.append(THREAD_LONG_FORMAT.get().format(value));
+		}
+		if (value > 0 && value < MAX_FAST_WHOLE && appendPlain(sb, Double.toString(value)))
+			return sb;
+		return sb.append(THREAD_DOUBLE_FORMAT.get().format(value));
+	}
+	
+	//Appends Double#toString's digits without an exponent, or returns false if there are too many fraction digits
+	private static boolean appendPlain(StringBuilder sb, String text) {
+		int exponentIndex = text.indexOf('E');
+		int end = exponentIndex == -1 ? text.length() : exponentIndex;
+		int point = text.indexOf('.');
+		char[] digits = new char[end - 1];
+		text.getChars(0, point, digits, 0);
+		text.getChars(point + 1, end, digits, point);
+		//the value is positive and not whole, so there is a non-zero digit after the point
+		int first = 0;
+		while (digits[first] == '0')
+			first++;
+		int last = digits.length - 1;
+		while (digits[last] == '0')
+			last--;
+		//the number of digits before the decimal point, starting from the first non-zero digit
+		int integerDigits = point - first
+				+ (exponentIndex == -1 ? 0 : Integer.parseInt(text, exponentIndex + 1, text.length(), 10));
+		if (last - first + 1 - integerDigits > MAX_FRACTION_DIGITS)
+			return false;
+		if (integerDigits <= 0) {
+			sb.append('.');
+			for (int i = integerDigits; i < 0; i++)
+				sb.append('0');
+			sb.append(digits, first, last - first + 1);
+		}
+		else {
+			sb.append(digits, first, integerDigits)
+			.append('.')
+			.append(digits, first + integerDigits, last - first + 1 - integerDigits);
+		}
+		return true;
+	}
+	
+	/* Appends the timestamp (in epoch seconds, see toEpochNanos) the way
+	 * TIMESTAMP_FORMAT would, without creating a LocalDateTime. Thread-safe.
+	 */
+	public static StringBuilder appendTimestamp(StringBuilder sb, long epochSecond) {
+		if (sb == null)
+			throw new NullPointerException();
+		long epochDay = Math.floorDiv(epochSecond, SECONDS_PER_DAY);
+		int secondOfDay = Math.floorMod(epochSecond, SECONDS_PER_DAY);
+		//the inverse of epochDay(int, int, int)
+		long z = epochDay + DAYS_0000_TO_1970;
+		long era = Math.floorDiv(z, 146_097);
+		int dayOfEra = (int) (z - era * 146_097);
+		int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36_524 - dayOfEra / 146_096) / 365;
+		int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+		int m = (5 * dayOfYear + 2) / 153;
+		int day = dayOfYear - (153 * m + 2) / 5 + 1;
+		int month = m < 10 ? m + 3 : m - 9;
+		long year = era * 400 + yearOfEra + (month <= 2 ? 1 : 0);
+		//years that don't have exactly 4 digits are written with a sign, or aren't years of the current era
+		if (year < 1 || year > 9999)
+			return sb.append(TIMESTAMP_FORMAT.format(LocalDateTime.ofEpochSecond(epochSecond, 0, ZoneOffset.UTC)));
+		appendDigits(sb, (int) year, 4).append('/');
+		appendDigits(sb, month, 2).append('/');
+		appendDigits(sb, day, 2).append(' ');
+		appendDigits(sb, secondOfDay / 3600, 2).append(':');
+		appendDigits(sb, secondOfDay / 60 % 60, 2).append(':');
+		return appendDigits(sb, secondOfDay % 60, 2);
+	}
+	
+	private static StringBuilder appendDigits(StringBuilder sb, int value, int count) {
+		for (int divisor = count == 4 ? 1000 : 10; divisor > 0; divisor /= 10)
+			sb.append((char) ('0' + value / divisor % 10));
+		return sb;
+	}
+	
 	public static String toCSVString(Sample sample) {
 		if (sample == null)
 			throw new NullPointerException();
-		return new StringBuilder()
-				.append(TIMESTAMP_FORMAT.format(sample.timestamp()))
-				.append("\n")
-				.append(CSVUtils.toCSVString(sample.readings(), false))
-				.append("\n")
-				.toString();
+		StringBuilder sb = appendTimestamp(new StringBuilder(), sample.epochSecond()).append('\n');
+		for (int i = 0; i < sample.numReadings(); i++)
+			appendValue(sb.append(sample.schema().name(i)).append(CSVUtils.SEPARATOR), sample.value(i)).append('\n');
+		return sb.append('\n').toString();
+	}
+	
+	public static String toCSVString(SampleSet samples) {
+		if (samples == null)
+			throw new NullPointerException();
+		StringWriter out = new StringWriter();
+		try {
+			CSVSampleWriter.write(samples, out);
+		} catch (IOException e) {
+			//a StringWriter doesn't throw
+			throw new UncheckedIOException(e);
+		}
+		return out.toString();
 	}
 	
 	public static List<Sample> fromCSVStrings(List<String> sampleData) throws SampleParseException {
@@ -125,14 +254,10 @@ public class SampleUtils {
 		//starting at index 1 because we're assuming the first line is the first timestamp,
 		//if it's not it'll be caught while being parsed
 		for (int i = 1; i < sampleData.size(); i++) {
-			String line = sampleData.get(i);
-			try {
-				LocalDateTime.parse(line, TIMESTAMP_FORMAT);
+			if (isTimestamp(sampleData.get(i))) {
 				samples.add(singleFromCSVString(sampleData.subList(start, i)));
 				start = i;
 				expectedSampleCount++;
-			} catch (DateTimeParseException unused) {
-				continue;
 			}
 		}
 		//The last sample in the data isn't parsed by the loop because there is no next timestamp,
@@ -158,13 +283,7 @@ public class SampleUtils {
 		if (sampleData.size() < 2) {
 			throw new SampleParseException("Not enough lines for a full sample");
 		}
-		String timestampLine = sampleData.get(0);
-		LocalDateTime timestamp;
-		try {
-			timestamp = LocalDateTime.parse(timestampLine, TIMESTAMP_FORMAT);
-		} catch (DateTimeParseException e) {
-			throw new SampleParseException("Failed to parse timestamp", e);
-		}
+		LocalDateTime timestamp = parseTimestamp(sampleData.get(0));
 		Map<String, Double> readings = CSVUtils.fromCSVEntries(
 				sampleData.subList(1, sampleData.size()),
 				(s) -> s,
@@ -192,37 +311,349 @@ public class SampleUtils {
 		return d % 1 == 0;
 	}
 	
+	static final long NANOS_PER_SECOND = 1_000_000_000L;
+	
+	private static final int SECONDS_PER_DAY = 24 * 60 * 60;
+	//the number of days from 0000/03/01 to 1970/01/01
+	private static final long DAYS_0000_TO_1970 = 719_468;
+	
+	/* Whether the text has the shape of a TIMESTAMP_PATTERN timestamp: 4 + 2 + 2 digits
+	 * separated by '/', a space, then 2 + 2 + 2 digits separated by ':'. This is only
+	 * a cheap check of which characters go where, for telling timestamp lines apart
+	 * from other lines; the fields are range checked by parseEpochSecond.
+	 */
+	public static boolean isTimestamp(CharSequence text) {
+		if (text == null)
+			throw new NullPointerException();
+		return isTimestamp(text, 0, text.length());
+	}
+	
+	public static boolean isTimestamp(CharSequence text, int from, int to) {
+		if (to - from != TIMESTAMP_PATTERN.length())
+			return false;
+		for (int i = 0; i < TIMESTAMP_PATTERN.length(); i++) {
+			char p = TIMESTAMP_PATTERN.charAt(i);
+			char c = text.charAt(from + i);
+			if (Character.isLetter(p) ? (c < '0' || c > '9') : c != p)
+				return false;
+		}
+		return true;
+	}
+	
+	public static LocalDateTime parseTimestamp(CharSequence text) throws SampleParseException {
+		return LocalDateTime.ofEpochSecond(parseEpochSecond(text, 0, text.length()), 0, ZoneOffset.UTC);
+	}
+	
+	/* Parses a TIMESTAMP_PATTERN timestamp into epoch seconds (treating it as UTC, the
+	 * same as toEpochNanos) without going through a DateTimeFormatter. Fields are
+	 * resolved the same way TIMESTAMP_FORMAT resolves them: a day past the end of
+	 * the month (up to 31) is moved back to the last day of the month, and 24:00:00
+	 * is midnight of the next day.
+	 */
+	public static long parseEpochSecond(CharSequence text, int from, int to) throws SampleParseException {
+		if (!isTimestamp(text, from, to))
+			throw new SampleParseException("Failed to parse timestamp: \"" + text.subSequence(from, to) + "\"");
+		int year = digits(text, from, 4);
+		int month = digits(text, from + 5, 2);
+		int day = digits(text, from + 8, 2);
+		int hour = digits(text, from + 11, 2);
+		int minute = digits(text, from + 14, 2);
+		int second = digits(text, from + 17, 2);
+		if (year == 0 || month < 1 || month > 12 || day < 1 || day > 31
+				|| hour > 24 || minute > 59 || second > 59
+				|| (hour == 24 && (minute != 0 || second != 0)))
+			throw new SampleParseException("Invalid timestamp: \"" + text.subSequence(from, to) + "\"");
+		day = Math.min(day, lengthOfMonth(year, month));
+		return epochDay(year, month, day) * SECONDS_PER_DAY + hour * 3600 + minute * 60 + second;
+	}
+	
+	private static int digits(CharSequence text, int from, int count) {
+		int value = 0;
+		for (int i = from; i < from + count; i++)
+			value = value * 10 + (text.charAt(i) - '0');
+		return value;
+	}
+	
+	private static int lengthOfMonth(int year, int month) {
+		return switch (month) {
+			case 2 -> (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
+			case 4, 6, 9, 11 -> 30;
+			default -> 31;
+		};
+	}
+	
+	/* Days since 1970/01/01 in the proleptic Gregorian calendar. Years are counted
+	 * from March, so that the leap day is the last day of the year, and in 400 year
+	 * cycles of 146097 days.
+	 */
+	private static long epochDay(int year, int month, int day) {
+		int y = month <= 2 ? year - 1 : year;
+		int era = Math.floorDiv(y, 400);
+		int yearOfEra = y - era * 400;
+		int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+		int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		return era * 146_097L + dayOfEra - DAYS_0000_TO_1970;
+	}
+	
+	/* Sample timestamps have no time zone, so they are converted to and from
+	 * epoch nanoseconds as if they were UTC. This only serves as a compact,
+	 * ordered representation; it does not imply the samples were taken in UTC.
+	 * Throws an ArithmeticException for timestamps that can't be represented
+	 * (roughly before 1677 or after 2262).
+	 */
+	public static long toEpochNanos(LocalDateTime timestamp) {
+		if (timestamp == null)
+			throw new NullPointerException();
+		return Math.addExact(Math.multiplyExact(timestamp.toEpochSecond(ZoneOffset.UTC), NANOS_PER_SECOND), timestamp.getNano());
+	}
+	
+	public static LocalDateTime fromEpochNanos(long epochNanos) {
+		return LocalDateTime.ofEpochSecond(Math.floorDiv(epochNanos, NANOS_PER_SECOND), 
+				(int) Math.floorMod(epochNanos, NANOS_PER_SECOND), ZoneOffset.UTC);
+	}
+	
+	public static SampleSet loadSampleSet(File file) throws IOException, SampleParseException {
+		return loadSampleSet(file, true, true);
+	}
+	
+	//Loads a Samples file in either the CSV, the binary (see BinaryUtils) or the compressed (see GorillaUtils) format
+	public static SampleSet loadSampleSet(File file, boolean assertGenuine, boolean assertComplete) throws IOException, SampleParseException {
+		if (file == null)
+			throw new NullPointerException();
+		if (file.getName().endsWith(BinaryUtils.FILE_EXTENSION))
+			return BinaryUtils.read(file.toPath(), assertGenuine, assertComplete);
+		if (file.getName().endsWith(GorillaUtils.FILE_EXTENSION))
+			return GorillaUtils.read(file.toPath(), assertGenuine, assertComplete);
+		if (file.getName().endsWith(CaptureArchive.FILE_EXTENSION))
+			throw new IllegalArgumentException("Capture archives hold more than one SampleSet (see CaptureArchive): " + file.getAbsolutePath());
+		return CSVSampleParser.parse(file, assertGenuine, assertComplete);
+	}
+	
+	/* Loads only the given counters (or all of them if counters is null) of the samples
+	 * taken in [from, to) (either of which may be null to leave that end open), in any
+	 * format loadSampleSet can read. CSV files are read without parsing anything outside
+	 * of the projection (see CSVSampleParser#read). Returns null if fewer than 2 samples
+	 * were taken in the range.
+	 */
+	public static SampleSet loadSampleSet(File file, Collection<String> counters, LocalDateTime from, LocalDateTime to,
+			boolean assertGenuine, boolean assertComplete) throws IOException, SampleParseException {
+		if (file == null)
+			throw new NullPointerException();
+		if (from != null && to != null && from.isAfter(to))
+			throw new IllegalArgumentException("The range must not end before it starts");
+		if (!file.getName().endsWith(BinaryUtils.FILE_EXTENSION) && !file.getName().endsWith(GorillaUtils.FILE_EXTENSION)
+				&& !file.getName().endsWith(CaptureArchive.FILE_EXTENSION))
+			return CSVSampleParser.read(file, counters, from, to, assertGenuine, assertComplete);
+		//the other formats are cheap to load whole, so the projection is taken afterwards
+		return loadSampleSet(file, false, false).select(counters, from == null ? Long.MIN_VALUE : toEpochNanos(from),
+				to == null ? Long.MAX_VALUE : toEpochNanos(to), assertGenuine, assertComplete);
+	}
+	
 	public static Map<String, List<SampleSet>> loadSampleSets(File directory) {
+		return loadSampleSets(directory, Runtime.getRuntime().availableProcessors());
+	}
+	
+	/* Loads every Samples file (and every SampleSet in every capture archive) in the
+	 * given directory and all of its subdirectories, parsing up to parallelism files at
+	 * once. Where a directory holds the same SampleSet in more than one format, only
+	 * one of them is loaded (see withoutDuplicateFormats). Each list in the returned
+	 * map is ordered by the path of the file the SampleSet was loaded from (and then
+	 * by its place in the archive), regardless of parallelism. Files that fail to
+	 * load are reported to System.err and skipped.
+	 */
+	public static Map<String, List<SampleSet>> loadSampleSets(File directory, int parallelism) {
 		if (directory == null)
 			throw new NullPointerException();
 		if (!directory.isDirectory())
 			throw new IllegalArgumentException("Given File is not a directory: " + directory.getAbsolutePath());
+		if (parallelism < 1)
+			throw new IllegalArgumentException("The parallelism must be a positive value");
+		List<File> files = new ArrayList<>();
+		findSampleFiles(directory, files);
+		List<Callable<Collection<SampleSet>>> tasks = files.stream()
+				.<Callable<Collection<SampleSet>>>map((f) -> () -> {
+					try {
+						if (CaptureArchive.FILE_FILTER.accept(f)) {
+							try (CaptureArchive archive = CaptureArchive.open(f.toPath())) {
+								return archive.readAll(true, true).values();
+							}
+						}
+						return List.of(loadSampleSet(f));
+					} catch(Exception e) {
+						System.err.println("Failed to parse Samples file " 
+								+ f.getAbsolutePath() + ": " + e.getLocalizedMessage());
+						return List.of();
+					}
+				})
+				.toList();
 		Map<String, List<SampleSet>> sampleSets = new HashMap<>();
-		File[] files = directory.listFiles(CSVUtils.FILE_FILTER);
-		if (files != null) {
-			for (File f : files) {
-				String counterName = f.getName().replace(CSVUtils.FILE_EXTENSION, "");
-				try (BufferedReader reader = new BufferedReader(new FileReader(f))){
-					SampleSet samples = new SampleSet(counterName, SampleUtils.fromCSVStrings(reader.lines().toList()));
-					sampleSets.putIfAbsent(samples.processName(), new ArrayList<>());
-					sampleSets.get(samples.processName()).add(samples);
+		//the results are in the same order as the tasks, which keeps the lists ordered by path
+		for (Collection<SampleSet> loaded : invokeAllInOrder(tasks, parallelism, "loading Samples files")) {
+			for (SampleSet samples : loaded)
+				sampleSets.computeIfAbsent(samples.processName(), (unused) -> new ArrayList<>()).add(samples);
+		}
+		return sampleSets;
+	}
+	
+	/* Runs the tasks on a pool of up to parallelism threads, and returns their results
+	 * in the same order as the tasks. The tasks must catch their own exceptions (the
+	 * loaders report them to System.err and carry on), so anything else they throw is
+	 * rethrown as an IllegalStateException. action describes the work for the message
+	 * when interrupted, e.g. "loading Samples files".
+	 */
+	static <T> List<T> invokeAllInOrder(List<Callable<T>> tasks, int parallelism, String action) {
+		List<T> results = new ArrayList<>(tasks.size());
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			//invokeAll returns the futures in the same order as the tasks
+			for (Future<T> future : pool.invokeAll(tasks))
+				results.add(future.get());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while " + action, e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+		return results;
+	}
+	
+	@FunctionalInterface
+	interface FileContents {
+		
+		public void writeTo(FileChannel channel) throws IOException;
+	
+	}
+	
+	/* Replaces the file (or creates it) without ever leaving a half-written file
+	 * behind: the contents are written to the file's name + ".tmp" first, which is
+	 * then moved over the file. The channel is closed afterwards, so anything
+	 * wrapping it only needs to be flushed.
+	 */
+	static void atomicWrite(Path file, FileContents contents) throws IOException {
+		Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		try {
+			try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE,
+					StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				contents.writeTo(channel);
+			}
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException | RuntimeException e) {
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+	}
+	
+	static void atomicWrite(Path file, byte[] data) throws IOException {
+		atomicWrite(file, (channel) -> {
+			ByteBuffer buffer = ByteBuffer.wrap(data);
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+		});
+	}
+	
+	/* Finds every Samples file (and every SampleSet in every capture archive) in the
+	 * given directory and all of its subdirectories, in the same order as
+	 * loadSampleSets, but returns handles instead of loading them: each SampleSet is
+	 * only loaded when its handle is first used, and is then kept in the cache for as
+	 * long as its budget allows. Archives that can't be opened are reported to
+	 * System.err and skipped.
+	 *
+	 * Unlike loadSampleSets, this can't tell which SampleSets aren't genuine or
+	 * complete without loading them, so there are handles for those too, which throw
+	 * when used. To skip them, use loadSampleSetHandles(SampleCatalog, SampleSetCache),
+	 * which only returns handles to the SampleSets loadSampleSets would load.
+	 */
+	public static Map<String, List<SampleSetHandle>> loadSampleSetHandles(File directory, SampleSetCache cache) {
+		if (directory == null || cache == null)
+			throw new NullPointerException();
+		if (!directory.isDirectory())
+			throw new IllegalArgumentException("Given File is not a directory: " + directory.getAbsolutePath());
+		List<File> files = new ArrayList<>();
+		findSampleFiles(directory, files);
+		Map<String, List<SampleSetHandle>> handles = new HashMap<>();
+		for (File f : files) {
+			if (CaptureArchive.FILE_FILTER.accept(f)) {
+				try (CaptureArchive archive = CaptureArchive.open(f.toPath())) {
+					for (CaptureArchive.Entry e : archive.entries())
+						handles.computeIfAbsent(e.processName(), (unused) -> new ArrayList<>())
+						.add(SampleSetHandle.of(f.toPath(), e.counterName(), true, true, cache));
 				} catch(Exception e) {
-					System.err.println("Failed to parse Samples file " 
+					System.err.println("Failed to open capture archive " 
 							+ f.getAbsolutePath() + ": " + e.getLocalizedMessage());
 				}
 			}
+			else {
+				SampleSetHandle handle = SampleSetHandle.of(f, true, true, cache);
+				handles.computeIfAbsent(handle.processName(), (unused) -> new ArrayList<>()).add(handle);
+			}
+		}
+		return handles;
+	}
+	
+	/* Handles to the genuine and complete SampleSets in the catalog (the same ones
+	 * loadSampleSets would load, in the same order), using the flags the catalog
+	 * recorded rather than loading anything
+	 */
+	public static Map<String, List<SampleSetHandle>> loadSampleSetHandles(SampleCatalog catalog, SampleSetCache cache) {
+		if (catalog == null || cache == null)
+			throw new NullPointerException();
+		Map<String, List<SampleSetHandle>> handles = new HashMap<>();
+		for (SampleCatalog.Entry e : catalog.entries()) {
+			if (e.genuine() && e.complete())
+				handles.computeIfAbsent(e.processName(), (unused) -> new ArrayList<>())
+				.add(SampleSetHandle.of(e, true, true, cache));
+		}
+		return handles;
+	}
+	
+	//Files are added in a deterministic order: by name, with each directory's files before its subdirectories
+	static void findSampleFiles(File directory, List<File> files) {
+		File[] sampleFiles = directory.listFiles(SAMPLE_OR_ARCHIVE_FILE_FILTER);
+		if (sampleFiles != null) {
+			Arrays.sort(sampleFiles);
+			files.addAll(withoutDuplicateFormats(sampleFiles));
 		}
 		File[] subdirectories = directory.listFiles(File::isDirectory);
 		if (subdirectories != null) {
-			for (File s : subdirectories) {
-				for (Map.Entry<String, List<SampleSet>> entry : loadSampleSets(s).entrySet()) {
-					sampleSets.putIfAbsent(entry.getKey(), new ArrayList<>());
-					sampleSets.get(entry.getKey()).addAll(entry.getValue());
-				}
-				
-			}
+			Arrays.sort(subdirectories);
+			for (File s : subdirectories)
+				findSampleFiles(s, files);
 		}
-		return sampleSets;
+	}
+	
+	/* A directory can hold the same SampleSet in more than one format (e.g. after
+	 * BinaryUtils#convertFromCSV into the same directory), so only one file per
+	 * counterName is kept, in the format that is quickest to load: the binary format,
+	 * then the compressed format, then CSV. Capture archives are always kept. The
+	 * files keep their order.
+	 */
+	static List<File> withoutDuplicateFormats(File[] files) {
+		Map<String, File> preferred = new HashMap<>();
+		for (File f : files) {
+			if (!CaptureArchive.FILE_FILTER.accept(f))
+				preferred.merge(fileCounterName(f), f, (a, b) -> formatRank(a) <= formatRank(b) ? a : b);
+		}
+		List<File> kept = new ArrayList<>(preferred.size());
+		for (File f : files) {
+			if (CaptureArchive.FILE_FILTER.accept(f) || preferred.get(fileCounterName(f)) == f)
+				kept.add(f);
+		}
+		return kept;
+	}
+	
+	private static String fileCounterName(File file) {
+		String name = file.getName();
+		return name.substring(0, name.lastIndexOf('.'));
+	}
+	
+	private static int formatRank(File file) {
+		if (file.getName().endsWith(BinaryUtils.FILE_EXTENSION))
+			return 0;
+		if (file.getName().endsWith(GorillaUtils.FILE_EXTENSION))
+			return 1;
+		return 2;
 	}
 	
 	public static Set<String> META_READINGS = Set.of(
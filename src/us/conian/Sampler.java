@@ -0,0 +1,30 @@
+package us.conian;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/* A source of Samples that is read in-process, as opposed to running Get-Counter
+ * (see CounterUtils#buildCounterProcess) and parsing its output afterwards.
+ *
+ * Each call to sample() takes a single Sample of every process currently
+ * running, keyed by counterName, the same as CounterUtils#parseSingleRaw.
+ * Counters that are rates (e.g. io read bytes/sec) are computed over the time
+ * since the previous call, so a Sampler is expected to be called repeatedly,
+ * at whatever interval the Samples should be taken.
+ */
+public interface Sampler {
+
+	public Map<String, Sample> sample() throws IOException;
+	
+	/* The same as sample(), but the work of collecting each process's readings
+	 * may be spread out over the given Executor. Samplers that can't split up
+	 * their work just call sample().
+	 */
+	public default Map<String, Sample> sample(Executor executor) throws IOException {
+		if (executor == null)
+			throw new NullPointerException();
+		return sample();
+	}
+
+}
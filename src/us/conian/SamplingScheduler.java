@@ -0,0 +1,196 @@
+package us.conian;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+
+/* Drives a Sampler at a fixed rate in-process, instead of leaving the sampling
+ * cadence to Get-Counter's -SampleInterval.
+ *
+ * Ticks are scheduled against a fixed grid (start + n * interval) rather than
+ * sleeping for an interval after each sample, so the delay of one tick doesn't
+ * push back every tick after it. If a tick runs so late that it overlaps the
+ * next one, the ticks it overlapped are skipped (and counted as missed) rather
+ * than being taken back to back, since Samples bunched together would make a
+ * SampleSet's intervals uneven anyway.
+ *
+ * For every tick, how late it started compared to its place on the grid is
+ * recorded in tickLatency(), and how long the Sampler took in tickDuration(),
+ * so sampling jitter can be watched (and bounded) while sampling rather than
+ * being discovered afterwards as ingenuine SampleSets.
+ *
+ * Each Sample is passed to the consumer along with its counterName, on the
+ * scheduler's thread, in the order they were taken. If the Sampler fails on a
+ * tick, the failure is reported to System.err and the tick is counted as
+ * failed, but sampling continues. If the consumer throws, the scheduler stops.
+ */
+public class SamplingScheduler implements AutoCloseable {
+
+	private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+	private final Sampler sampler;
+	private final long intervalNanos;
+	private final int numSamples;
+	private final Executor executor;
+	//only set if the executor was created by (and so must be shut down by) this scheduler
+	private final ExecutorService ownedExecutor;
+	private final BiConsumer<String, Sample> consumer;
+
+	private final LatencyHistogram tickLatency = new LatencyHistogram();
+	private final LatencyHistogram tickDuration = new LatencyHistogram();
+	private final AtomicLong ticks = new AtomicLong();
+	private final AtomicLong missedTicks = new AtomicLong();
+	private final AtomicLong failedTicks = new AtomicLong();
+
+	private final Thread thread;
+	private volatile boolean running = false;
+	private volatile boolean started = false;
+
+	/* numSamples is the number of ticks to take before stopping by itself, or
+	 * CounterUtils.CONTINUOUS (or any value below 1) to keep going until stopped,
+	 * the same as CounterUtils#buildCounterProcess. The per-process work of each
+	 * tick is fanned out over the executor.
+	 */
+	public SamplingScheduler(Sampler sampler, Duration interval, int numSamples, Executor executor, BiConsumer<String, Sample> consumer) {
+		this(sampler, interval, numSamples, executor, null, consumer);
+	}
+
+	//Fans the work out over a pool of daemon threads, one per processor, owned by this scheduler
+	public SamplingScheduler(Sampler sampler, Duration interval, int numSamples, BiConsumer<String, Sample> consumer) {
+		this(sampler, interval, numSamples, null, newDefaultExecutor(), consumer);
+	}
+
+	private SamplingScheduler(Sampler sampler, Duration interval, int numSamples, Executor executor,
+			ExecutorService ownedExecutor, BiConsumer<String, Sample> consumer) {
+		if (sampler == null || interval == null || (executor == null && ownedExecutor == null) || consumer == null)
+			throw new NullPointerException();
+		if (interval.isNegative() || interval.isZero())
+			throw new IllegalArgumentException("The sample interval must be a positive value");
+		this.sampler = sampler;
+		this.intervalNanos = interval.toNanos();
+		this.numSamples = numSamples < 1 ? CounterUtils.CONTINUOUS : numSamples;
+		this.executor = executor == null ? ownedExecutor : executor;
+		this.ownedExecutor = ownedExecutor;
+		this.consumer = consumer;
+		this.thread = new Thread(this::run, "SamplingScheduler-" + THREAD_COUNT.incrementAndGet());
+		thread.setDaemon(true);
+	}
+
+	private static ExecutorService newDefaultExecutor() {
+		AtomicInteger count = new AtomicInteger();
+		return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), (runnable) -> {
+			Thread t = new Thread(runnable, "SamplingScheduler-worker-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	//The first tick is taken immediately. A scheduler can only be started once.
+	public synchronized void start() {
+		if (started)
+			throw new IllegalStateException("The scheduler has already been started");
+		started = true;
+		running = true;
+		thread.start();
+	}
+
+	//Stops the scheduler after the tick in progress (if any) is done
+	public void stop() {
+		running = false;
+		LockSupport.unpark(thread);
+	}
+
+	@Override
+	public void close() {
+		stop();
+	}
+
+	//Returns whether the scheduler stopped within the timeout
+	public boolean awaitTermination(Duration timeout) throws InterruptedException {
+		if (timeout == null)
+			throw new NullPointerException();
+		if (!started)
+			return true;
+		thread.join(Math.max(1, timeout.toMillis()));
+		return !thread.isAlive();
+	}
+
+	public boolean isRunning() {
+		return started && thread.isAlive();
+	}
+
+	private void run() {
+		try {
+			long start = System.nanoTime();
+			long tick = 0;
+			while (running && (numSamples == CounterUtils.CONTINUOUS || ticks.get() < numSamples)) {
+				long target = start + tick * intervalNanos;
+				long now;
+				while ((now = System.nanoTime()) - target < 0 && running)
+					LockSupport.parkNanos(target - now);
+				if (!running)
+					break;
+				tickLatency.record(now - target);
+				sample();
+				tickDuration.record(System.nanoTime() - now);
+				ticks.incrementAndGet();
+				//the next tick on the grid that hasn't already passed
+				long elapsed = System.nanoTime() - start;
+				long next = Math.max(tick + 1, elapsed / intervalNanos + 1);
+				missedTicks.addAndGet(next - tick - 1);
+				tick = next;
+			}
+		} finally {
+			running = false;
+			if (ownedExecutor != null)
+				ownedExecutor.shutdown();
+		}
+	}
+
+	private void sample() {
+		Map<String, Sample> samples;
+		try {
+			samples = sampler.sample(executor);
+		} catch (IOException | RuntimeException e) {
+			failedTicks.incrementAndGet();
+			System.err.println("Failed to take a sample: " + e.getLocalizedMessage());
+			return;
+		}
+		for (Map.Entry<String, Sample> entry : samples.entrySet())
+			consumer.accept(entry.getKey(), entry.getValue());
+	}
+
+	//How late each tick started compared to when it was scheduled
+	public LatencyHistogram tickLatency() {
+		return tickLatency;
+	}
+
+	//How long the Sampler took for each tick
+	public LatencyHistogram tickDuration() {
+		return tickDuration;
+	}
+
+	//The number of ticks taken so far, including failed ones
+	public long ticks() {
+		return ticks.get();
+	}
+
+	//The number of ticks that were skipped because the tick before them ran too long
+	public long missedTicks() {
+		return missedTicks.get();
+	}
+
+	public long failedTicks() {
+		return failedTicks.get();
+	}
+
+	public Duration interval() {
+		return Duration.ofNanos(intervalNanos);
+	}
+
+}